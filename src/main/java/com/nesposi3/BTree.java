@@ -1,135 +1,453 @@
 package com.nesposi3;
 
-import com.nesposi3.Utils.BoundedLinkedHashMap;
-import com.nesposi3.Utils.BTreeUtils;
+import com.nesposi3.Utils.ChecksumUtils;
 
-import java.io.File;
-import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.RandomAccessFile;
-import java.util.HashMap;
-import java.util.Map;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.locks.StampedLock;
 import java.util.function.Consumer;
 
 import static com.nesposi3.Utils.BTreeUtils.*;
 
 /**
- * A persistent, file-based BTree with IOCache
+ * A persistent, file-based BTree with an LRU page cache
+ *
+ * Searches, cursors and inserts may run from several threads at once. Every page has a latch in the cache:
+ * inserts hold write latches from parent to child down the tree, releasing the parent once the child is known
+ * not to split, while searches read pages optimistically and only fall back to read latches if a page changed
+ * underneath them. Deletes latch the same way, also keeping a parent whose child may have to borrow from or merge
+ * with a sibling. Commits wait for inserts and deletes in progress to finish. bulkLoad and compact wait for them too,
+ * and searches and cursors only wait for the moment the rebuilt file is swapped in. close must not run alongside
+ * anything else.
  */
-public class BTree {
-    private Node root;
-    private BoundedLinkedHashMap<Long, Byte[]> cache;
+public class BTree implements TermVector, AutoCloseable {
+    // Returned by an optimistic search that saw a page change and has to start again
+    private static final long RETRY = Long.MIN_VALUE;
+    private static final int OPTIMISTIC_ATTEMPTS = 3;
+    // Returned by insertNonFull when the key was not in the tree
+    private static final int NOT_FOUND = -1;
+    // Far more levels than any tree of order 2 or more can have with 64 bit keys
+    private static final int MAX_HEIGHT = 64;
+
+    private PageCache cache;
     private String fileName;
+    private PageFile file;
+    private volatile BTreeHeader header;
+    private NodeFormat format;
+    private PageAllocator allocator;
+    private WriteAheadLog wal;
+    private int groupCommitSize;
+    private final AtomicInteger uncommittedMutations = new AtomicInteger();
+    // Guards the root address, which may only change while this is held exclusively
+    private final StampedLock rootLatch = new StampedLock();
+    // Held shared by every insert and exclusively by commits, so each commit logs a consistent tree
+    private final ReentrantReadWriteLock mutationLock = new ReentrantReadWriteLock();
+    // Counts splits, merges and rebuilds, so cursors know when the nodes they hold may be stale
+    private final AtomicLong structureVersion = new AtomicLong();
+    // Held shared by every read of a page and exclusively while a rebuilt file is swapped in
+    private final StampedLock fileLatch = new StampedLock();
+    // Views for searches, one per level of the tree, so reading a page allocates nothing
+    private final ThreadLocal<NodeView[]> views = ThreadLocal.withInitial(() -> new NodeView[MAX_HEIGHT]);
+    // Checked by search before reading any page, null if the file has none
+    private volatile BloomFilter bloom;
+    private double bloomFalsePositiveRate;
+    // True to check the checksum of every page read from a checksummed file
+    private boolean verifyChecksums;
+    private int t;
 
     /**
-     * This method checks if the requested node is in cache, or if not, on disk.
+     * This method reads the requested node through the page cache.
+     * Without a latch on its parent the page may have been freed by a delete, callers holding on to addresses
+     * check the structure version before trusting what they read
      *
      * @param address The address to look at
      * @return The node at said address, or null if it does not exist
-     * @throws IOException IOException represents a fatal error during execution, should lead to program shutdown
      */
-    private Node readNodeFromFile(long address) {
-        if (cache.containsValue(address)) {
-            // This node is cached
-            return new Node(cache.get(address));
-        }
-        File f = new File(this.fileName);
+    Node readNodeFromFile(long address) {
+        long fileStamp = fileLatch.readLock();
         try {
-            if (f.exists()) {
-                RandomAccessFile btreeFile = new RandomAccessFile(f, "rw");
-                btreeFile.seek(address);
-                byte[] nodeBytes = new byte[BLOCK_SIZE];
-                btreeFile.read(nodeBytes);
-                Node n = new Node(nodeBytes);
-                cache.put(n.address, BTreeUtils.fromPrimitiveBytes(nodeBytes));
-                btreeFile.close();
-                return n;
-
-            } else {
-                //If you try to read an empty file
+            if (address >= allocator.getNextPage()) {
+                //If you try to read past the end of the file
                 return null;
             }
+            byte[] frame = cache.pin(address);
+            StampedLock latch = cache.latch(address);
+            long stamp = latch.readLock();
+            try {
+                return format.decode(ByteBuffer.wrap(frame));
+            } finally {
+                latch.unlockRead(stamp);
+                cache.unpin(address, false);
+            }
         } catch (IOException ioe) {
             ioe.printStackTrace();
             return null;
+        } finally {
+            fileLatch.unlockRead(fileStamp);
+        }
+    }
+
+    /**
+     * Copies the requested node into a view through the page cache, for cursors that hold on to it.
+     * As with readNodeFromFile the page may have been freed, callers check the structure version
+     *
+     * @param address The address to look at
+     * @param view    The view to copy the node into
+     * @return False if the address is past the end of the file
+     */
+    boolean readView(long address, NodeView view) {
+        long fileStamp = fileLatch.readLock();
+        try {
+            if (address >= allocator.getNextPage()) {
+                return false;
+            }
+            byte[] frame = latchShared(address);
+            try {
+                view.copyOf(frame);
+            } finally {
+                unlatchShared(address);
+            }
+            return true;
+        } catch (IOException ioe) {
+            ioe.printStackTrace();
+            return false;
+        } finally {
+            fileLatch.unlockRead(fileStamp);
+        }
+    }
+
+    /**
+     * @return A new view of this tree's node format
+     */
+    NodeView newView() {
+        return format.newView();
+    }
+
+    /**
+     * @param level The level of the tree the view is for
+     * @return This thread's view for that level
+     */
+    private NodeView view(int level) {
+        NodeView[] pool = views.get();
+        if (pool[level] == null) {
+            pool[level] = format.newView();
         }
+        return pool[level];
+    }
+
+    /**
+     * Pins and read latches a page without decoding it, until unlatchShared is called
+     *
+     * @param address The address of the page
+     * @return The frame holding the page
+     */
+    private byte[] latchShared(long address) throws IOException {
+        byte[] frame = cache.pin(address);
+        cache.latch(address).readLock();
+        return frame;
+    }
 
+    private void unlatchShared(long address) {
+        cache.latch(address).tryUnlockRead();
+        cache.unpin(address, false);
+    }
+
+    /**
+     * Pins the page at the given address, latches it and decodes its node.
+     * The page stays pinned and latched until the node is released
+     *
+     * @param address   The address of the node
+     * @param exclusive True to take a write latch, false for a read latch
+     * @return The node at the address
+     */
+    private Node acquire(long address, boolean exclusive) throws IOException {
+        byte[] frame = cache.pin(address);
+        StampedLock latch = cache.latch(address);
+        if (exclusive) {
+            latch.writeLock();
+        } else {
+            latch.readLock();
+        }
+        return format.decode(ByteBuffer.wrap(frame));
+    }
+
+    /**
+     * Allocates a page for a new node, pinned and write latched until the node is released
+     *
+     * @return The new empty node
+     */
+    private Node acquireNew() throws IOException {
+        Node n = format.newNode();
+        n.address = getNewAddress();
+        cache.pinForOverwrite(n.address);
+        cache.latch(n.address).writeLock();
+        return n;
+    }
+
+    /**
+     * Releases the latch and pin taken by acquire or acquireNew
+     *
+     * @param n         The node to release
+     * @param exclusive True if the node was acquired with a write latch
+     */
+    private void release(Node n, boolean exclusive) {
+        StampedLock latch = cache.latch(n.address);
+        if (exclusive) {
+            latch.tryUnlockWrite();
+        } else {
+            latch.tryUnlockRead();
+        }
+        cache.unpin(n.address, false);
     }
 
     /**
-     * Writes a node to disk and cache
+     * Writes a node into its cached page, it reaches disk when evicted or flushed
      *
-     * @param n The node to write to disk/cache
+     * @param n The node to write to cache
      * @throws IOException Represents fatal error in execution, should cause shutdown
      */
     private void writeNodeToFile(Node n) throws IOException {
         long address = n.address;
-        byte[] nodeBytes = n.toBytes();
-        if (cache.containsKey(address)) {
-            // Need to update cache
-            cache.remove(address);
-            cache.put(address, BTreeUtils.fromPrimitiveBytes(nodeBytes));
-        }
-        File f = new File(this.fileName);
-        RandomAccessFile btreeFile = new RandomAccessFile(f, "rw");
-        btreeFile.seek(address);
-        btreeFile.write(nodeBytes);
-        btreeFile.close();
+        byte[] frame = cache.pinForOverwrite(address);
+        format.encode(n, ByteBuffer.wrap(frame));
+        cache.unpin(address, true);
     }
 
+    /**
+     * Writes the in-memory header into page 0
+     */
+    private void writeHeader() throws IOException {
+        header.nextPage = allocator.getNextPage();
+        byte[] frame = cache.pinForOverwrite(0);
+        header.writeTo(ByteBuffer.wrap(frame));
+        cache.unpin(0, true);
+    }
+
+    /**
+     * Opens the BTree stored in the given file, creating an empty tree if the file does not exist.
+     * The file stays open until {@link #close()} is called.
+     *
+     * @param fileName The file holding the tree
+     * @throws IOException If the file cannot be opened
+     */
     public BTree(String fileName) throws IOException {
+        this(fileName, BTreeConfig.defaults());
+    }
+
+    /**
+     * Opens the BTree stored in the given file, creating an empty tree if the file does not exist.
+     * The file stays open until {@link #close()} is called.
+     *
+     * @param fileName   The file holding the tree
+     * @param cachePages The number of pages the page cache holds
+     * @throws IOException If the file cannot be opened
+     */
+    public BTree(String fileName, int cachePages) throws IOException {
+        this(fileName, BTreeConfig.defaults().cachePages(cachePages));
+    }
+
+    /**
+     * Opens the BTree stored in the given file, creating an empty tree with the configured page size and order
+     * if the file does not exist. Files written before headers existed are rebuilt in the current format.
+     * The file stays open until {@link #close()} is called.
+     *
+     * @param fileName The file holding the tree
+     * @param config   The settings to open the tree with
+     * @throws IOException If the file cannot be opened
+     */
+    public BTree(String fileName, BTreeConfig config) throws IOException {
         this.fileName = fileName;
-        this.cache = new BoundedLinkedHashMap<>(CACHE_MAX_SIZE);
-        File f = new File(this.fileName);
-        if (f.exists()) {
-            RandomAccessFile btreeFile = new RandomAccessFile(this.fileName, "rw");
-            //File exists, read root node and set as root
-            btreeFile.seek(0);
-            byte[] nodeBytes = new byte[BLOCK_SIZE];
-            btreeFile.read(nodeBytes);
-            btreeFile.close();
-            Node initial = new Node(nodeBytes);
-            this.root = initial;
+        this.file = new PageFile(fileName);
+        // Finish any commits a crash left in the log before reading the file
+        WriteAheadLog.replay(fileName + WAL_SUFFIX, file);
+        byte[] first = new byte[BTreeHeader.HEADER_BYTES];
+        file.read(0, ByteBuffer.wrap(first));
+        if (!file.isEmpty() && BTreeHeader.isHeader(first)) {
+            this.header = new BTreeHeader(first);
         } else {
-            //File doesn't already exist, create and initialize root
-            f.createNewFile();
-            RandomAccessFile btreeFile = new RandomAccessFile(f, "rw");
-            btreeFile.seek(0);
-            Node initial = new Node();
-            byte[] initialBytes = initial.toBytes();
-            btreeFile.write(initialBytes);
-            btreeFile.close();
-            this.root = initial;
+            this.header = new BTreeHeader(config.getPageSize(), config.getOrder(), config.getEncoding());
+            // Files written before headers hold MD5 keys
+            header.termHash = file.isEmpty() ? config.getTermHash() : TermHash.MD5;
+        }
+        this.t = header.t;
+        this.format = new NodeFormat(header.t, header.pageSize, header.encoding, header.checksummed);
+        this.cache = new PageCache(file, header.pageSize, config.getCachePages());
+        this.groupCommitSize = config.getGroupCommitSize();
+        this.bloomFalsePositiveRate = config.getBloomFalsePositiveRate();
+        this.verifyChecksums = config.isVerifyChecksums();
+        cache.setChecksums(header.checksummed, verifyChecksums);
+        if (!file.isEmpty() && BTreeHeader.isHeader(first) && header.checksummed && verifyChecksums) {
+            // The header was read before the cache, check the whole of its page.
+            // Files without a header have no checksums, they are rebuilt with them below
+            cache.pin(0);
+            cache.unpin(0, false);
+        }
+        int reserved = header.checksummed ? ChecksumUtils.CHECKSUM_SIZE : 0;
+        if (config.isWriteAheadLog()) {
+            this.wal = new WriteAheadLog(fileName + WAL_SUFFIX, header.pageSize);
+            cache.setRetainDirty(true);
+        }
+        if (file.isEmpty()) {
+            //File doesn't already exist, initialize header and root
+            this.allocator = new PageAllocator(header.pageSize, header.pageSize);
+            Node initial = format.newNode();
+            initial.address = getNewAddress();
+            header.rootAddress = initial.address;
+            if (bloomFalsePositiveRate > 0) {
+                this.bloom = BloomFilter.create(MIN_BLOOM_CAPACITY, bloomFalsePositiveRate, header.pageSize, reserved);
+            }
+            writeHeader();
+            writeNodeToFile(initial);
+        } else if (!BTreeHeader.isHeader(first)) {
+            this.allocator = new PageAllocator(header.pageSize, header.pageSize);
+            migrateLegacyFile();
+        } else {
+            this.allocator = new PageAllocator(header.pageSize, header.nextPage);
+            allocator.load(cache, header.freeListHead);
+            if (header.bloomBits > 0) {
+                this.bloom = new BloomFilter(header.bloomCapacity, header.bloomHashes, header.bloomBits, header.pageSize,
+                        reserved);
+                bloom.load(cache, header.bloomHead);
+            } else if (bloomFalsePositiveRate > 0) {
+                // The filter is written with the header at the next commit
+                long capacity = Math.max(MIN_BLOOM_CAPACITY, 2 * header.distinctKeys);
+                this.bloom = filled(BloomFilter.create(capacity, bloomFalsePositiveRate, header.pageSize, reserved));
+            }
         }
 
     }
 
-    private long getNewAddress() {
+    /**
+     * Rebuilds a file written before headers existed, where nodes of order 3 filled 512 byte blocks.
+     * Legacy block format in bytes, every slot is written whether used or not, unused keys are NULL:
+     *          8          8         8*2T          8 * (2T-1)    4*(2T-1)
+     *    | address | parent |   children    |     keys      |  frequencies
+     * Only the keys and frequencies are read, every block holds a node so the tree structure is not needed
+     */
+    private void migrateLegacyFile() throws IOException {
+        int keysOffset = 8 + 8 + 8 * 2 * LEGACY_T;
+        int frequenciesOffset = keysOffset + 8 * (2 * LEGACY_T - 1);
+        LongIntHashMap entries = new LongIntHashMap();
+        ByteBuffer block = ByteBuffer.allocate(LEGACY_BLOCK_SIZE);
+        for (long addr = 0; addr + LEGACY_BLOCK_SIZE <= file.length(); addr += LEGACY_BLOCK_SIZE) {
+            block.clear();
+            file.read(addr, block);
+            for (int i = 0; i < 2 * LEGACY_T - 1; i++) {
+                long key = block.getLong(keysOffset + 8 * i);
+                if (key != NULL) {
+                    entries.put(key, block.getInt(frequenciesOffset + 4 * i));
+                }
+            }
+        }
+        long[] keys = entries.sortedKeys();
+        int[] freqs = new int[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            freqs[i] = entries.get(keys[i]);
+        }
+        bulkLoad(keys, freqs);
+    }
+
+    /**
+     * Rebuilds the tree from entries in key order, the caller holds the mutation lock exclusively.
+     * Only the first of any repeated key is kept, as that is the one search finds
+     *
+     * @param source The entries of the tree
+     */
+    private void rebuildDistinct(TermCursor source) throws IOException {
+        long[] keys = new long[64];
+        int[] freqs = new int[64];
+        int count = 0;
+        while (source.next()) {
+            if (count > 0 && source.key() == keys[count - 1]) {
+                continue;
+            }
+            if (count == keys.length) {
+                keys = Arrays.copyOf(keys, count * 2);
+                freqs = Arrays.copyOf(freqs, count * 2);
+            }
+            keys[count] = source.key();
+            freqs[count] = source.frequency();
+            count++;
+        }
+        rebuild(Arrays.copyOf(keys, count), Arrays.copyOf(freqs, count));
+    }
+
+    /**
+     * Stores the Bloom filter and free list and writes the header
+     */
+    private void storeHeader() throws IOException {
+        // The filter may take pages from the free list, so it is stored first
+        BloomFilter filter = bloom;
+        if (filter != null) {
+            header.bloomHead = filter.store(cache, allocator);
+            header.bloomBits = filter.getNumBits();
+            header.bloomHashes = filter.getNumHashes();
+            header.bloomCapacity = filter.getCapacity();
+        }
+        header.freeListHead = allocator.store(cache);
+        writeHeader();
+    }
+
+    /**
+     * Adds every key of the tree to a filter
+     *
+     * @param filter An empty filter
+     * @return The filter
+     */
+    private BloomFilter filled(BloomFilter filter) {
+        TermCursor cursor = cursor();
+        while (cursor.next()) {
+            filter.add(cursor.key());
+        }
+        return filter;
+    }
+
+    /**
+     * Replaces the Bloom filter with one twice the size once the tree holds more keys than it was sized for,
+     * so its false positive rate stays near the configured one
+     */
+    private void growBloomFilter() throws IOException {
+        mutationLock.writeLock().lock();
         try {
-            File f = new File(this.fileName);
-            RandomAccessFile rFile = new RandomAccessFile(f, "r");
-            rFile.close();
-            return rFile.length();
-        } catch (FileNotFoundException fnf) {
-            return 0L;
-        } catch (IOException ioe) {
-            return 0L;
+            BloomFilter old = bloom;
+            if (header.distinctKeys <= old.getCapacity()) {
+                return;
+            }
+            BloomFilter grown = filled(old.resized(Math.max(2 * old.getCapacity(), header.distinctKeys)));
+            old.release(allocator);
+            bloom = grown;
+        } finally {
+            mutationLock.writeLock().unlock();
         }
     }
 
-    private void splitChild(Node x, int index) {
-        Node z = new Node();
-        z.address = getNewAddress();
-        Node y = readNodeFromFile(x.children[index]);
-        y.parent = x.address;
-        z.parent = x.address;
-        for (int i = 0; i < T - 1; i++) {
-            z.keys[i] = y.keys[i + T];
-            z.frequencies[i] = y.frequencies[i + T];
+    private long getNewAddress() {
+        return allocator.allocate();
+    }
+
+    /**
+     * Splits the full child y of x around its middle key, moving its upper half into a new sibling.
+     * x and y must be write latched, the sibling is returned write latched as well
+     */
+    private Node splitChild(Node x, int index, Node y) throws IOException {
+        Node z = acquireNew();
+        // Split around the middle key, for RAW nodes this is key t-1 of 2t-1,
+        // PACKED nodes can fill their page before holding 2t-1 keys
+        int n = y.numKeys();
+        int mid = n / 2;
+        for (int i = 0; i < n - mid - 1; i++) {
+            z.keys[i] = y.keys[i + mid + 1];
+            z.frequencies[i] = y.frequencies[i + mid + 1];
         }
         if (!y.leafStatus()) {
-            for (int i = 0; i < T; i++) {
-                z.children[i] = y.children[i + T];
+            for (int i = 0; i < n - mid; i++) {
+                z.children[i] = y.children[i + mid + 1];
+                y.children[i + mid + 1] = NULL;
             }
         }
         for (int i = x.numKeys(); i > index; i--) {
@@ -140,189 +458,1059 @@ public class BTree {
             x.keys[i + 1] = x.keys[i];
             x.frequencies[i + 1] = x.frequencies[i];
         }
-        x.keys[index] = y.keys[T - 1];
-        x.frequencies[index] = y.frequencies[T - 1];
-        y.setNumKeys(T - 1);
+        x.keys[index] = y.keys[mid];
+        x.frequencies[index] = y.frequencies[mid];
+        y.setNumKeys(mid);
+        // Only the three nodes that changed are written, nodes do not point back to their parents
+        writeNodeToFile(z);
+        writeNodeToFile(x);
+        writeNodeToFile(y);
+        structureVersion.incrementAndGet();
+        return z;
+    }
+
+    /**
+     * Inserts a key with the given frequency, replacing its frequency if the key is already in the tree
+     *
+     * @param k    The key
+     * @param freq The frequency
+     */
+    public void insert(long k, int freq) {
         try {
-            writeNodeToFile(z);
-            writeNodeToFile(x);
-            writeNodeToFile(y);
-            propagateChildren(z);
-            propagateChildren(x);
-            propagateChildren(y);
+            mutationLock.readLock().lock();
+            try {
+                BloomFilter filter = bloom;
+                if (filter != null) {
+                    filter.add(k);
+                }
+                int old = insertNonFull(acquireRootForInsert(), k, freq);
+                if (old == NOT_FOUND) {
+                    header.countEntry(freq);
+                } else {
+                    header.changeEntry(old, freq);
+                }
+            } finally {
+                mutationLock.readLock().unlock();
+            }
+            afterMutation();
         } catch (IOException ioe) {
             ioe.printStackTrace();
         }
     }
 
-    public void insert(long k, int freq) {
+    /**
+     * Removes a key from the tree, taking keys from siblings or merging nodes so no node is left underfull.
+     * Pages freed by merges go back to the free list
+     *
+     * @param key The key to remove
+     * @return The frequency the key had, or 0 if it was absent
+     */
+    public int delete(long key) {
+        int old;
         try {
-            Node r = readNodeFromFile(0);
-            if (r.isFull()) {
-                r.address = getNewAddress();
-                r.parent = 0;
-                writeNodeToFile(r);
-                Node s = new Node();
-                s.children[0] = r.address;
-                s.address = 0;
-                writeNodeToFile(s);
-                splitChild(s, 0);
-                s = readNodeFromFile(0);
-                insertNonFull(s, k, freq);
-            } else {
-                insertNonFull(r, k, freq);
+            mutationLock.readLock().lock();
+            try {
+                old = remove(key);
+            } finally {
+                mutationLock.readLock().unlock();
+            }
+            if (old == NOT_FOUND) {
+                return 0;
             }
+            afterMutation();
         } catch (IOException ioe) {
             ioe.printStackTrace();
+            return 0;
         }
+        return old;
     }
 
-    private void insertNonFull(Node x, long k, int freq) {
-        try {
-            int i = x.numKeys() - 1;
+    /**
+     * Removes a key in one pass down the tree, then rebalances on the way back up whatever part of the path
+     * is still latched. On the way down a child is latched before its parent, full PACKED children are split
+     * first, and the nodes above a child are only released once the child can lose a key without becoming
+     * underfull. A key in an internal node is replaced by its predecessor, which is removed from a leaf.
+     * On the way up an underfull node takes a key from a sibling, or is merged with one
+     *
+     * @param key The key to remove
+     * @return The frequency the key had, or NOT_FOUND if nothing was removed
+     */
+    private int remove(long key) throws IOException {
+        Node[] path = new Node[MAX_HEIGHT];
+        // The index of each node in the node above it in the path, or -1 if its parent was released
+        int[] indexes = new int[MAX_HEIGHT];
+        boolean[] changed = new boolean[MAX_HEIGHT];
+        // The root latch stays held for writing while the root may still be replaced
+        long rootStamp = rootLatch.readLock();
+        Node root = acquire(header.rootAddress, true);
+        if (!root.leafStatus() && (root.numKeys() < 2 || format.needsSplitBeforeDelete(root))) {
+            release(root, true);
+            rootLatch.unlockRead(rootStamp);
+            rootStamp = rootLatch.writeLock();
+            root = acquire(header.rootAddress, true);
+            if (format.needsSplitBeforeDelete(root)) {
+                root = growRoot(root);
+            }
+        } else {
+            rootLatch.unlockRead(rootStamp);
+            rootStamp = 0;
+        }
+        path[0] = root;
+        indexes[0] = -1;
+        int depth = 1;
+        // The depth of the internal node holding the key, while its predecessor is looked for below it
+        int target = -1;
+        int keyIndex = -1;
+        Node x = root;
+        while (true) {
+            int n = x.numKeys();
+            int i = n;
+            if (target < 0) {
+                i = x.lowerBound(key, n);
+                if (i < n && x.keys[i] == key) {
+                    keyIndex = i;
+                    if (x.leafStatus()) {
+                        break;
+                    }
+                    target = depth - 1;
+                }
+            }
             if (x.leafStatus()) {
-                while (i >= 0 && k < x.keys[i]) {
-                    x.keys[i + 1] = x.keys[i];
-                    x.frequencies[i + 1] = x.frequencies[i];
-                    i--;
+                if (target >= 0) {
+                    break;
                 }
-                x.keys[i + 1] = k;
-                x.frequencies[i + 1] = freq;
-                writeNodeToFile(x);
-            } else {
-                while (i >= 0 && k < x.keys[i]) {
-                    i--;
+                releasePath(path, 0, depth);
+                unlockRoot(rootStamp);
+                return NOT_FOUND;
+            }
+            Node child = acquire(x.children[i], true);
+            if (format.needsSplitBeforeDelete(child)) {
+                Node z = splitChild(x, i, child);
+                if (target >= 0) {
+                    // The predecessor is the largest key below, now in the upper half
+                    if (depth - 1 == target && i == keyIndex) {
+                        keyIndex++;
+                    }
+                    release(child, true);
+                    child = z;
+                    i++;
+                } else if (key > x.keys[i]) {
+                    release(child, true);
+                    child = z;
+                    i++;
+                } else {
+                    release(z, true);
+                    if (key == x.keys[i]) {
+                        // The key was the middle of the child and moved up into x
+                        target = depth - 1;
+                        keyIndex = i;
+                    }
                 }
-                i++;
-                Node node = readNodeFromFile(x.children[i]);
-                if (node.isFull()) {
-                    splitChild(x, i);
-                    x = readNodeFromFile(x.address);
-                    if (k > x.keys[i]) i++;
-                    node = readNodeFromFile(x.children[i]);
+            }
+            int keep = target >= 0 ? target + 1 : 0;
+            if (format.canLend(child) && keep < depth) {
+                // Nothing above the child can change any more
+                releasePath(path, keep, depth);
+                if (keep == 0) {
+                    unlockRoot(rootStamp);
+                    rootStamp = 0;
                 }
-                insertNonFull(node, k, freq);
+                depth = keep;
+                indexes[depth] = -1;
+            } else {
+                indexes[depth] = i;
+            }
+            path[depth] = child;
+            changed[depth] = false;
+            depth++;
+            x = child;
+        }
 
+        Node leaf = path[depth - 1];
+        int old;
+        if (target < 0) {
+            old = leaf.frequencies[keyIndex];
+            removeAt(leaf, keyIndex, -1);
+        } else {
+            int last = leaf.numKeys() - 1;
+            Node holder = path[target];
+            old = holder.frequencies[keyIndex];
+            holder.keys[keyIndex] = leaf.keys[last];
+            holder.frequencies[keyIndex] = leaf.frequencies[last];
+            removeAt(leaf, last, -1);
+            changed[target] = true;
+            // The predecessor moved up, cursors holding either node have to find their place again
+            structureVersion.incrementAndGet();
+        }
+        changed[depth - 1] = true;
+
+        for (int d = depth - 1; d >= 0; d--) {
+            Node u = path[d];
+            if (indexes[d] >= 0 && format.isUnderfull(u)) {
+                rebalance(path[d - 1], indexes[d], u);
+                changed[d - 1] = true;
+            } else if (d == 0 && rootStamp != 0 && !u.leafStatus() && u.numKeys() == 0) {
+                // The root lost its last key to a merge, its only child becomes the root
+                header.rootAddress = u.children[0];
+                structureVersion.incrementAndGet();
+                release(u, true);
+                allocator.release(u.address);
+            } else {
+                if (changed[d]) {
+                    writeNodeToFile(u);
+                }
+                release(u, true);
             }
-        } catch (IOException ioe) {
-            ioe.printStackTrace();
         }
+        unlockRoot(rootStamp);
+        header.removeEntry(old);
+        return old;
     }
 
-    public int search(long key) {
-        return bTreeSearch(this.root, key);
+    private void releasePath(Node[] path, int from, int to) {
+        for (int d = from; d < to; d++) {
+            release(path[d], true);
+        }
     }
 
-    private int bTreeSearch(Node node, long key) {
-        int i = 0;
-        while (i < K && key > node.keys[i]) {
-            if (node.keys[i] == NULL) {
-                // Need this in here as NULL==-1, which could be evaluated
-                break;
-            } else {
-                i++;
+    private void unlockRoot(long rootStamp) {
+        if (rootStamp != 0) {
+            rootLatch.unlockWrite(rootStamp);
+        }
+    }
+
+    /**
+     * Refills an underfull node with a key from a sibling, or merges it with one, then writes and releases it.
+     * The parent is changed but not written
+     *
+     * @param p   The parent, write latched
+     * @param idx The index of u in p
+     * @param u   The underfull node, write latched
+     */
+    private void rebalance(Node p, int idx, Node u) throws IOException {
+        Node left = idx > 0 ? acquire(p.children[idx - 1], true) : null;
+        if (left != null && format.canLend(left)) {
+            rotateRight(p, idx - 1, left, u);
+            structureVersion.incrementAndGet();
+            finishRebalance(left, u, null);
+            return;
+        }
+        Node right = idx < p.numKeys() ? acquire(p.children[idx + 1], true) : null;
+        if (right != null && format.canLend(right)) {
+            rotateLeft(p, idx, u, right);
+            if (format.fits(right)) {
+                structureVersion.incrementAndGet();
+                finishRebalance(right, u, left);
+                return;
             }
+            // The new first key of a PACKED sibling can take more bytes than the entry it gave up
+            rotateRight(p, idx, u, right);
+        }
+        if (left != null && merge(p, idx - 1, left, u)) {
+            structureVersion.incrementAndGet();
+            release(u, true);
+            allocator.release(u.address);
+            finishRebalance(left, null, right);
+            return;
+        }
+        if (right != null && merge(p, idx, u, right)) {
+            structureVersion.incrementAndGet();
+            release(right, true);
+            allocator.release(right.address);
+            finishRebalance(u, null, left);
+            return;
+        }
+        // Only a PACKED node too large to merge gets here, it is left as it is
+        writeNodeToFile(u);
+        release(u, true);
+        if (left != null) {
+            release(left, true);
+        }
+        if (right != null) {
+            release(right, true);
+        }
+    }
 
+    /**
+     * Writes and releases the nodes a rebalance changed, and releases a sibling it only looked at.
+     * The structure version is bumped before any of them is released
+     */
+    private void finishRebalance(Node a, Node b, Node untouched) throws IOException {
+        writeNodeToFile(a);
+        release(a, true);
+        if (b != null) {
+            writeNodeToFile(b);
+            release(b, true);
         }
-        if (i < K && key == node.keys[i]) {
-            return node.frequencies[i];
-        } else if (node.leafStatus()) {
-            return 0;
-        } else {
-            Node next = readNodeFromFile(node.children[i]);
-            if (next == null) return 0;
-            return bTreeSearch(next, key);
+        if (untouched != null) {
+            release(untouched, true);
         }
     }
 
-    public double computeEuclideanDistance(BTree other) {
-        Node n = readNodeFromFile(0);
-        return Math.sqrt(computeEuclideanDistance(n, other, 0));
+    /**
+     * Moves the last key of l up into the parent, and the parent's key down to the front of r
+     *
+     * @param p The parent
+     * @param s The index in p of the key between l and r
+     */
+    private static void rotateRight(Node p, int s, Node l, Node r) {
+        int ln = l.numKeys();
+        int rn = r.numKeys();
+        boolean internal = !l.leafStatus();
+        for (int i = rn - 1; i >= 0; i--) {
+            r.keys[i + 1] = r.keys[i];
+            r.frequencies[i + 1] = r.frequencies[i];
+        }
+        r.keys[0] = p.keys[s];
+        r.frequencies[0] = p.frequencies[s];
+        if (internal) {
+            for (int i = rn; i >= 0; i--) {
+                r.children[i + 1] = r.children[i];
+            }
+            r.children[0] = l.children[ln];
+        }
+        p.keys[s] = l.keys[ln - 1];
+        p.frequencies[s] = l.frequencies[ln - 1];
+        l.keys[ln - 1] = NULL;
+        l.frequencies[ln - 1] = -1;
+        l.children[ln] = NULL;
     }
 
-    private double computeEuclideanDistance(Node node, BTree other, double total) {
-        if (node.leafStatus()) {
-            return total;
-        } else {
-            for (int i = 0; i < node.keys.length; i++) {
-                long wordA = node.keys[i];
-                int freqA = node.frequencies[i];
-                int freqB = other.search(wordA);
-                double x = (freqA - freqB) * (freqA - freqB);
-                total = total + x;
-            }
-            for (int i = 0; i < NUM_CHILDREN; i++) {
-                if (node.children[i] != NULL) {
-                    Node x = readNodeFromFile(node.children[i]);
-                    return computeEuclideanDistance(x, other, total);
-                }
+    /**
+     * Moves the first key of r up into the parent, and the parent's key down to the end of l
+     *
+     * @param p The parent
+     * @param s The index in p of the key between l and r
+     */
+    private static void rotateLeft(Node p, int s, Node l, Node r) {
+        int ln = l.numKeys();
+        boolean internal = !r.leafStatus();
+        l.keys[ln] = p.keys[s];
+        l.frequencies[ln] = p.frequencies[s];
+        if (internal) {
+            l.children[ln + 1] = r.children[0];
+        }
+        p.keys[s] = r.keys[0];
+        p.frequencies[s] = r.frequencies[0];
+        removeAt(r, 0, internal ? 0 : -1);
+    }
+
+    /**
+     * Merges r and the key between them in p into l, if the result fits in a page
+     *
+     * @param p The parent, which loses the key and its child r
+     * @param s The index in p of the key between l and r
+     * @return True if the nodes were merged
+     */
+    private boolean merge(Node p, int s, Node l, Node r) {
+        int ln = l.numKeys();
+        int rn = r.numKeys();
+        if (ln + 1 + rn > format.maxKeys()) {
+            return false;
+        }
+        Node m = format.newNode();
+        m.address = l.address;
+        boolean internal = !l.leafStatus() || !r.leafStatus();
+        System.arraycopy(l.keys, 0, m.keys, 0, ln);
+        System.arraycopy(l.frequencies, 0, m.frequencies, 0, ln);
+        m.keys[ln] = p.keys[s];
+        m.frequencies[ln] = p.frequencies[s];
+        System.arraycopy(r.keys, 0, m.keys, ln + 1, rn);
+        System.arraycopy(r.frequencies, 0, m.frequencies, ln + 1, rn);
+        if (internal) {
+            System.arraycopy(l.children, 0, m.children, 0, ln + 1);
+            System.arraycopy(r.children, 0, m.children, ln + 1, rn + 1);
+        }
+        if (!format.fits(m)) {
+            return false;
+        }
+        l.keys = m.keys;
+        l.frequencies = m.frequencies;
+        l.children = m.children;
+        removeAt(p, s, s + 1);
+        return true;
+    }
+
+    /**
+     * Removes a key and optionally a child from a node, shifting the ones after them down
+     *
+     * @param n     The node
+     * @param index The index of the key
+     * @param child The index of the child, or -1 to leave the children as they are
+     */
+    private static void removeAt(Node n, int index, int child) {
+        int numKeys = n.numKeys();
+        for (int i = index; i < numKeys - 1; i++) {
+            n.keys[i] = n.keys[i + 1];
+            n.frequencies[i] = n.frequencies[i + 1];
+        }
+        n.keys[numKeys - 1] = NULL;
+        n.frequencies[numKeys - 1] = -1;
+        if (child >= 0) {
+            for (int i = child; i < numKeys; i++) {
+                n.children[i] = n.children[i + 1];
+            }
+            n.children[numKeys] = NULL;
+        }
+    }
+
+    /**
+     * Write latches the root for an insert, first growing a new root above it if it is full
+     *
+     * @return The root, write latched
+     */
+    private Node acquireRootForInsert() throws IOException {
+        long stamp = rootLatch.readLock();
+        try {
+            Node r = acquire(header.rootAddress, true);
+            if (!format.isFull(r)) {
+                return r;
             }
-            return total;
+            release(r, true);
+        } finally {
+            rootLatch.unlockRead(stamp);
+        }
+        stamp = rootLatch.writeLock();
+        try {
+            Node r = acquire(header.rootAddress, true);
+            if (!format.isFull(r)) {
+                // Another insert grew the tree first
+                return r;
+            }
+            return growRoot(r);
+        } finally {
+            rootLatch.unlockWrite(stamp);
         }
     }
 
-    public int totalWordCount() {
-        Node node = readNodeFromFile(0);
-        return this.totalWordCount(node, 0);
+    /**
+     * Grows a new root above the old one by splitting it, the caller holds the root latch for writing
+     *
+     * @param r The old root, write latched and released here
+     * @return The new root, write latched
+     */
+    private Node growRoot(Node r) throws IOException {
+        Node s = acquireNew();
+        s.children[0] = r.address;
+        Node z = splitChild(s, 0, r);
+        release(z, true);
+        release(r, true);
+        header.rootAddress = s.address;
+        return s;
     }
 
-    private int totalWordCount(Node n, int total) {
-        if (n.leafStatus()) {
-            return total;
-        } else {
-            for (int i = 0; i < K; i++) {
-                if (n.keys[i] != NULL) {
-                    total += n.frequencies[i];
+    /**
+     * Commits once enough mutations have built up, or the cache is filling up with dirty pages
+     */
+    private void afterMutation() throws IOException {
+        BloomFilter filter = bloom;
+        if (filter != null && totalNumKeys() > filter.getCapacity()) {
+            growBloomFilter();
+        }
+        if (uncommittedMutations.incrementAndGet() >= groupCommitSize || cache.getDirtyCount() * 2 >= cache.getCapacity()) {
+            commit();
+        }
+    }
+
+    /**
+     * Makes every mutation so far durable. With a write-ahead log the changed pages are logged and synced
+     * together, then written back to the file, which is only synced at the next checkpoint.
+     * Without one they are written back to the file without syncing.
+     * Waits for inserts in progress to finish, and holds back new ones until it is done.
+     *
+     * @throws IOException If the pages could not be logged or written
+     */
+    public void commit() throws IOException {
+        mutationLock.writeLock().lock();
+        try {
+            uncommittedMutations.set(0);
+            if (cache.getDirtyCount() == 0) {
+                return;
+            }
+            storeHeader();
+            if (wal != null) {
+                cache.forEachDirty(wal::append);
+                wal.commit();
+            }
+            cache.flush();
+            if (wal != null && wal.size() >= WAL_CHECKPOINT_BYTES) {
+                checkpoint();
+            }
+        } finally {
+            mutationLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Syncs the file and empties the write-ahead log
+     */
+    private void checkpoint() throws IOException {
+        file.force();
+        if (wal != null) {
+            wal.reset();
+        }
+    }
+
+    /**
+     * Replaces the contents of this tree with the given keys, building it bottom up.
+     * Every level is packed as evenly as possible and the whole tree is laid out root first,
+     * level by level, then written to a new file with a single sequential write that replaces the old one.
+     * Inserts and deletes wait for it, searches and cursors keep reading the old file until it is swapped in.
+     *
+     * @param sortedKeys Keys in strictly ascending order
+     * @param freqs      The frequency of each key
+     * @throws IOException If the tree could not be written
+     */
+    public void bulkLoad(long[] sortedKeys, int[] freqs) throws IOException {
+        mutationLock.writeLock().lock();
+        try {
+            rebuild(sortedKeys, freqs);
+        } finally {
+            mutationLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Replaces the contents of the tree, the caller holds the mutation lock exclusively
+     */
+    private void rebuild(long[] sortedKeys, int[] freqs) throws IOException {
+        if (sortedKeys.length != freqs.length) {
+            throw new IllegalArgumentException("Keys and frequencies differ in length");
+        }
+        for (int i = 1; i < sortedKeys.length; i++) {
+            if (sortedKeys[i - 1] >= sortedKeys[i]) {
+                throw new IllegalArgumentException("Keys are not in strictly ascending order");
+            }
+        }
+        // Build levels bottom up, each level's separators become the keys of the level above
+        ArrayList<Node[]> levels = new ArrayList<>();
+        ArrayList<int[]> childStarts = new ArrayList<>();
+        long[] keys = sortedKeys;
+        int[] frequencies = freqs;
+        int pageSize = header.pageSize;
+        // The new file gets its own header, the current one stays in use until the swap.
+        // Its pages carry checksums whenever its nodes leave room for them
+        BTreeHeader built = new BTreeHeader(pageSize, t, header.encoding);
+        built.termHash = header.termHash;
+        NodeFormat target = new NodeFormat(t, pageSize, header.encoding, built.checksummed);
+        long pagesBelow = 1;
+        do {
+            int m = keys.length;
+            // Start from the fewest nodes that can hold the keys, and add nodes until every one fits in a page
+            int numNodes = (m + 2 * t) / (2 * t);
+            // Children are addressed once the layout is known, until then use a page number at least as long
+            long placeholderChild = levels.isEmpty() ? NULL : 2 * pagesBelow * pageSize;
+            Node[] level;
+            int[] starts;
+            while (true) {
+                level = new Node[numNodes];
+                starts = new int[numNodes];
+                int perNode = (m - numNodes + 1) / numNodes;
+                int extra = (m - numNodes + 1) % numNodes;
+                int item = 0;
+                int largest = 0;
+                for (int g = 0; g < numNodes; g++) {
+                    Node n = target.newNode();
+                    int size = perNode + (g < extra ? 1 : 0);
+                    starts[g] = item;
+                    for (int i = 0; i < size; i++) {
+                        n.keys[i] = keys[item];
+                        n.frequencies[i] = frequencies[item];
+                        item++;
+                    }
+                    if (placeholderChild != NULL) {
+                        for (int c = 0; c <= size; c++) {
+                            n.children[c] = placeholderChild;
+                        }
+                    }
+                    // Skip the separator that follows this node
+                    item++;
+                    largest = Math.max(largest, target.encodedSize(n));
+                    level[g] = n;
+                }
+                if (largest <= target.getCapacity()) {
+                    break;
                 }
+                numNodes = Math.max(numNodes + 1, (int) ((long) numNodes * largest / target.getCapacity()));
+            }
+            long[] upperKeys = new long[numNodes - 1];
+            int[] upperFreqs = new int[numNodes - 1];
+            for (int g = 0; g < numNodes - 1; g++) {
+                int separator = starts[g + 1] - 1;
+                upperKeys[g] = keys[separator];
+                upperFreqs[g] = frequencies[separator];
+            }
+            levels.add(level);
+            childStarts.add(starts);
+            pagesBelow += numNodes;
+            keys = upperKeys;
+            frequencies = upperFreqs;
+        } while (levels.get(levels.size() - 1).length > 1);
+
+        // Lay out the header at 0, the root after it, then every level below it in order
+        long address = pageSize;
+        for (int l = levels.size() - 1; l >= 0; l--) {
+            for (Node n : levels.get(l)) {
+                n.address = address;
+                address += pageSize;
             }
-            for (int i = 0; i < NUM_CHILDREN; i++) {
-                if (n.children[i] != NULL) {
-                    Node x = readNodeFromFile(n.children[i]);
-                    return totalWordCount(x, total);
+        }
+        Node root = levels.get(levels.size() - 1)[0];
+        // The Bloom filter, if the tree has one, follows the nodes
+        BloomFilter filter = null;
+        long filterAddress = address;
+        if (bloom != null || bloomFalsePositiveRate > 0) {
+            long capacity = Math.max(MIN_BLOOM_CAPACITY, 2L * sortedKeys.length);
+            int reserved = built.checksummed ? ChecksumUtils.CHECKSUM_SIZE : 0;
+            filter = bloom != null ? bloom.resized(capacity, reserved)
+                    : BloomFilter.create(capacity, bloomFalsePositiveRate, pageSize, reserved);
+            for (long key : sortedKeys) {
+                filter.add(key);
+            }
+            address += (long) filter.pageCount() * pageSize;
+            built.bloomHead = filterAddress;
+            built.bloomBits = filter.getNumBits();
+            built.bloomHashes = filter.getNumHashes();
+            built.bloomCapacity = filter.getCapacity();
+        }
+        built.rootAddress = root.address;
+        built.nextPage = address;
+        for (int f : freqs) {
+            built.countEntry(f);
+        }
+        for (int l = levels.size() - 1; l > 0; l--) {
+            Node[] level = levels.get(l);
+            Node[] below = levels.get(l - 1);
+            int[] starts = childStarts.get(l);
+            for (int g = 0; g < level.length; g++) {
+                Node n = level[g];
+                // Key i of a level separates nodes i and i + 1 of the level below
+                int first = starts[g];
+                for (int c = 0; c <= n.numKeys(); c++) {
+                    n.children[c] = below[first + c].address;
                 }
             }
-            return total;
+        }
+        ByteBuffer out = ByteBuffer.allocate((int) address);
+        built.writeTo(out);
+        for (int l = levels.size() - 1; l >= 0; l--) {
+            for (Node n : levels.get(l)) {
+                target.encode(n, out);
+            }
+        }
+        if (filter != null) {
+            filter.layOut(out, filterAddress);
+        }
+        if (built.checksummed) {
+            for (int p = 0; p < address / pageSize; p++) {
+                ChecksumUtils.stampPage(out.array(), p * pageSize, pageSize);
+            }
+        }
+        out.flip();
+        // Build the new file next to the old one and swap it in, so a crash leaves one or the other.
+        // Uncommitted changes are superseded, committed ones must leave the log before the swap
+        if (wal != null && wal.size() > 0) {
+            checkpoint();
+        }
+        String tempName = fileName + REBUILD_SUFFIX;
+        try (PageFile rebuilt = new PageFile(tempName)) {
+            rebuilt.truncate(0);
+            rebuilt.write(0, out);
+            if (wal != null) {
+                rebuilt.force();
+            }
+        }
+        long fileStamp = fileLatch.writeLock();
+        try {
+            cache.replaceFile(tempName);
+            cache.setChecksums(built.checksummed, verifyChecksums);
+            format = target;
+            header = built;
+            allocator.reset(address);
+            bloom = filter;
+            uncommittedMutations.set(0);
+            // Bumped last, so a cursor that sees the new version also sees the new root.
+            // Cursors holding nodes of the old file find their place again in the new one
+            structureVersion.incrementAndGet();
+        } finally {
+            fileLatch.unlockWrite(fileStamp);
         }
     }
 
+    /**
+     * Rewrites the tree into a new file with the bulkLoad layout, dropping the pages deletes and splits left free
+     * and packing every node again. Searches and cursors keep running until the new file is swapped in
+     *
+     * @throws IOException If the tree could not be read or written
+     */
+    public void compact() throws IOException {
+        mutationLock.writeLock().lock();
+        try {
+            rebuildDistinct(cursor());
+        } finally {
+            mutationLock.writeLock().unlock();
+        }
+    }
 
-    public int totalNumKeys() {
-        int total = 0;
-        File f = new File(this.fileName);
-        long addr = 0;
-        while(addr<f.length()){
-            Node node =readNodeFromFile(addr);
-            addr += BLOCK_SIZE;
-            for (int i = 0; i <K ; i++) {
-                if(node.keys[i]!=-1){
-                    total++;
+    /**
+     * Inserts into the subtree below x, which must be write latched and is released here.
+     * A child is latched before its parent is released and split first if it is full,
+     * so nothing below can change a node once the insert has moved past it
+     *
+     * @param freq The frequency to insert, replacing the frequency of the key if it is already in the tree
+     * @return The frequency the key had before, or NOT_FOUND if a new entry was inserted
+     */
+    private int insertNonFull(Node x, long k, int freq) throws IOException {
+        while (!x.leafStatus()) {
+            int i = x.numKeys() - 1;
+            while (i >= 0 && k < x.keys[i]) {
+                i--;
+            }
+            if (i >= 0 && x.keys[i] == k) {
+                return replaceInPlace(x, i, freq);
+            }
+            i++;
+            Node node = acquire(x.children[i], true);
+            if (format.isFull(node)) {
+                Node z = splitChild(x, i, node);
+                if (k == x.keys[i]) {
+                    // The key was the median of the child and moved up into x
+                    release(z, true);
+                    release(node, true);
+                    return replaceInPlace(x, i, freq);
+                }
+                if (k > x.keys[i]) {
+                    release(node, true);
+                    node = z;
+                } else {
+                    release(z, true);
                 }
             }
+            release(x, true);
+            x = node;
+        }
+        int i = x.numKeys() - 1;
+        while (i >= 0 && k < x.keys[i]) {
+            i--;
         }
-        return total;
+        if (i >= 0 && x.keys[i] == k) {
+            return replaceInPlace(x, i, freq);
+        }
+        for (int j = x.numKeys() - 1; j > i; j--) {
+            x.keys[j + 1] = x.keys[j];
+            x.frequencies[j + 1] = x.frequencies[j];
+        }
+        x.keys[i + 1] = k;
+        x.frequencies[i + 1] = freq;
+        writeNodeToFile(x);
+        release(x, true);
+        return NOT_FOUND;
     }
 
     /**
-     * This method ensures that, on disk, the children of nodes point to their correct parents
+     * Replaces the frequency of an entry of a write latched node, which is released here.
+     * The node is never full, so a PACKED page has room for the longer frequency
+     *
+     * @param x     The node
+     * @param index The index of the entry
+     * @param freq  The new frequency
+     * @return The frequency before
      */
-    private void propagateChildren(Node n) throws IOException {
-        for (int i = 0; i < K; i++) {
-            if (n.children[i] != -1) {
-                Node child = readNodeFromFile(n.children[i]);
-                child.parent = n.address;
-                writeNodeToFile(child);
+    private int replaceInPlace(Node x, int index, int freq) throws IOException {
+        int old = x.frequencies[index];
+        x.frequencies[index] = freq;
+        writeNodeToFile(x);
+        release(x, true);
+        return old;
+    }
+
+    @Override
+    public int search(long key) {
+        BloomFilter filter = bloom;
+        if (filter != null && !filter.mightContain(key)) {
+            return 0;
+        }
+        try {
+            for (int attempt = 0; attempt < OPTIMISTIC_ATTEMPTS; attempt++) {
+                long fileStamp = fileLatch.tryOptimisticRead();
+                if (fileStamp == 0) {
+                    break;
+                }
+                long found;
+                try {
+                    found = searchOptimistic(key);
+                } catch (IOException | RuntimeException e) {
+                    // Addresses read from a file that was swapped out meanwhile can point anywhere
+                    if (fileLatch.validate(fileStamp)) {
+                        throw e;
+                    }
+                    found = RETRY;
+                }
+                // Whatever was read in a file that was swapped out meanwhile is meaningless
+                if (found != RETRY && fileLatch.validate(fileStamp)) {
+                    return (int) found;
+                }
             }
+            long fileStamp = fileLatch.readLock();
+            try {
+                return searchLatched(key);
+            } finally {
+                fileLatch.unlockRead(fileStamp);
+            }
+        } catch (IOException ioe) {
+            ioe.printStackTrace();
+            return 0;
         }
     }
+
+    /**
+     * Searches without taking any latches, checking after reading each page that no insert changed it meanwhile
+     *
+     * @param key The key to look for
+     * @return The frequency of the key, 0 if it is absent, or RETRY if a page changed during the search
+     */
+    private long searchOptimistic(long key) throws IOException {
+        long rootStamp = rootLatch.tryOptimisticRead();
+        long address = header.rootAddress;
+        if (!rootLatch.validate(rootStamp)) {
+            return RETRY;
+        }
+        byte[] frame = cache.pin(address);
+        // The page still pinned, released in the finally block whichever way the search ends
+        long pinned = address;
+        try {
+            StampedLock latch = cache.latch(address);
+            long stamp = latch.tryOptimisticRead();
+            if (!rootLatch.validate(rootStamp)) {
+                return RETRY;
+            }
+            NodeView node = view(0);
+            for (int level = 0; ; level++) {
+                // Everything is read from the frame before the validation, which tells whether it can be trusted
+                boolean found;
+                int frequency = 0;
+                long childAddress = NULL;
+                try {
+                    if (level == MAX_HEIGHT) {
+                        throw new IllegalStateException("Search went deeper than any tree");
+                    }
+                    node.wrap(frame);
+                    int n = node.numKeys();
+                    int i = node.lowerBound(key);
+                    found = i < n && node.key(i) == key;
+                    if (found) {
+                        frequency = node.frequency(i);
+                    } else if (!node.leafStatus()) {
+                        childAddress = node.child(i);
+                    }
+                } catch (RuntimeException e) {
+                    // The page was half written or swapped out, which the validations catch
+                    return RETRY;
+                }
+                if (!latch.validate(stamp)) {
+                    return RETRY;
+                }
+                if (found) {
+                    return frequency;
+                }
+                if (childAddress == NULL) {
+                    return 0;
+                }
+                byte[] childFrame = cache.pin(childAddress);
+                cache.unpin(address, false);
+                pinned = childAddress;
+                StampedLock childLatch = cache.latch(childAddress);
+                long childStamp = childLatch.tryOptimisticRead();
+                // The child is only the right one if the parent has not changed since it was read
+                if (!latch.validate(stamp)) {
+                    return RETRY;
+                }
+                address = childAddress;
+                frame = childFrame;
+                latch = childLatch;
+                stamp = childStamp;
+            }
+        } finally {
+            cache.unpin(pinned, false);
+        }
+    }
+
+    /**
+     * Searches holding read latches, the latch of each child is taken before its parent's is released
+     *
+     * @param key The key to look for
+     * @return The frequency of the key, or 0 if it is absent
+     */
+    private int searchLatched(long key) throws IOException {
+        NodeView node = view(0);
+        long address;
+        byte[] frame;
+        long rootStamp = rootLatch.readLock();
+        try {
+            address = header.rootAddress;
+            frame = latchShared(address);
+        } finally {
+            rootLatch.unlockRead(rootStamp);
+        }
+        while (true) {
+            node.wrap(frame);
+            int n = node.numKeys();
+            int i = node.lowerBound(key);
+            if (i < n && node.key(i) == key) {
+                int frequency = node.frequency(i);
+                unlatchShared(address);
+                return frequency;
+            }
+            if (node.leafStatus()) {
+                unlatchShared(address);
+                return 0;
+            }
+            long child = node.child(i);
+            frame = latchShared(child);
+            unlatchShared(address);
+            address = child;
+        }
+    }
+
+    /**
+     * Looks up many keys in one walk of the tree. Keys that fall under the same child are looked up together,
+     * so each page is read at most once however many of the keys it covers
+     *
+     * @param sortedKeys The keys to look for, in ascending order
+     * @param out        Receives the frequency of each key, or 0 if it is absent, at the same index
+     */
+    @Override
+    public void searchAll(long[] sortedKeys, int[] out) {
+        if (out.length < sortedKeys.length) {
+            throw new IllegalArgumentException("Output holds " + out.length + " of " + sortedKeys.length + " keys");
+        }
+        // Indices of the keys the filter cannot rule out, every other key is absent
+        int[] pending = new int[sortedKeys.length];
+        int count = 0;
+        BloomFilter filter = bloom;
+        for (int i = 0; i < sortedKeys.length; i++) {
+            if (i > 0 && sortedKeys[i] < sortedKeys[i - 1]) {
+                throw new IllegalArgumentException("Keys are not in ascending order at index " + i);
+            }
+            out[i] = 0;
+            if (filter == null || filter.mightContain(sortedKeys[i])) {
+                pending[count++] = i;
+            }
+        }
+        if (count == 0) {
+            return;
+        }
+        long fileStamp = fileLatch.readLock();
+        try {
+            long root;
+            byte[] frame;
+            long rootStamp = rootLatch.readLock();
+            try {
+                root = header.rootAddress;
+                frame = latchShared(root);
+            } finally {
+                rootLatch.unlockRead(rootStamp);
+            }
+            try {
+                searchAll(view(0).wrap(frame), 0, sortedKeys, pending, 0, count, out);
+            } finally {
+                unlatchShared(root);
+            }
+        } catch (IOException ioe) {
+            ioe.printStackTrace();
+        } finally {
+            fileLatch.unlockRead(fileStamp);
+        }
+    }
+
+    /**
+     * Looks up a run of keys under a read latched node, latching each child while its keys are looked up
+     * so no insert can move them out from under the search
+     *
+     * @param node       A view of the node, read latched by the caller
+     * @param level      The level of the node, counting down from the root
+     * @param sortedKeys The keys being looked up
+     * @param pending    Indices into sortedKeys of the keys still to look up, in ascending key order
+     * @param from       The first entry of pending under this node
+     * @param to         One past the last entry of pending under this node
+     * @param out        Receives the frequencies
+     */
+    private void searchAll(NodeView node, int level, long[] sortedKeys, int[] pending, int from, int to, int[] out)
+            throws IOException {
+        int n = node.numKeys();
+        int p = from;
+        while (p < to) {
+            long key = sortedKeys[pending[p]];
+            int i = node.lowerBound(key);
+            if (i < n && node.key(i) == key) {
+                out[pending[p++]] = node.frequency(i);
+                continue;
+            }
+            if (node.leafStatus()) {
+                p++;
+                continue;
+            }
+            int end = p + 1;
+            while (end < to && (i == n || sortedKeys[pending[end]] < node.key(i))) {
+                end++;
+            }
+            long child = node.child(i);
+            byte[] frame = latchShared(child);
+            try {
+                searchAll(view(level + 1).wrap(frame), level + 1, sortedKeys, pending, p, end, out);
+            } finally {
+                unlatchShared(child);
+            }
+            p = end;
+        }
+    }
+
+    /**
+     * @return The sum of the frequencies of every key, read from the header
+     */
+    @Override
+    public long totalWordCount() {
+        synchronized (header) {
+            return header.termCount;
+        }
+    }
+
+    /**
+     * @return The function the keys of the tree come from, if they are the words of a document
+     */
+    public TermHash getTermHash() {
+        return header.termHash;
+    }
+
+    /**
+     * @return The number of keys in the tree, read from the header
+     */
+    @Override
+    public int totalNumKeys() {
+        synchronized (header) {
+            return (int) header.distinctKeys;
+        }
+    }
+
+    /**
+     * @return The length of the frequency vector of the tree, read from the header
+     */
+    @Override
+    public double norm() {
+        synchronized (header) {
+            return Math.sqrt(header.sumOfSquares);
+        }
+    }
+
     public void printAllAgain(){
-        Node root = readNodeFromFile(0);
+        Node root = readNodeFromFile(header.rootAddress);
         printAllAgain(root);
     }
     private void printAllAgain(Node n){
         this.forEach(System.out::println);
     }
     public void forEach(Consumer<Node> consumer){
-        Node root= readNodeFromFile(0);
+        Node root= readNodeFromFile(header.rootAddress);
         forEach(consumer,root);
     }
     private void forEach(Consumer<Node> consumer,Node n){
@@ -333,43 +1521,80 @@ public class BTree {
             }
         }
     }
-    public double cosineSimilarity(BTree other){
-        HashMap<Long,Integer> currMap = getKeyFreqMap();
-        HashMap<Long,Integer> otherMap = other.getKeyFreqMap();
-        double top = 0;
-        double bottomA =0;
-        double bottomB = 0;
-        for(Map.Entry<Long,Integer> entry:currMap.entrySet()){
-            int a = entry.getValue().intValue();
-            int b =0;
-            if(otherMap.containsKey(entry.getKey())){
-                b = otherMap.get(entry.getKey());
-            }
-            top += (a * b);
-            bottomA += (a*a);
-        }
-        for(Map.Entry<Long,Integer> entry:otherMap.entrySet()){
-            int b = entry.getValue().intValue();
-            bottomB +=(b*b);
+    public LongIntHashMap getKeyFreqMap(){
+        LongIntHashMap out = new LongIntHashMap();
+        TermCursor cursor = cursor();
+        while (cursor.next()) {
+            out.put(cursor.key(), cursor.frequency());
         }
-        double bottom = ((Math.sqrt(bottomA)) * (Math.sqrt(bottomB)));
-        return top/bottom;
+        return out;
+    }
 
+    /**
+     * @return A cursor over every entry of the tree in ascending key order
+     */
+    @Override
+    public BTreeCursor cursor() {
+        BTreeCursor cursor = new BTreeCursor(this, Long.MAX_VALUE);
+        cursor.seek(Long.MIN_VALUE);
+        return cursor;
     }
 
-    public HashMap<Long,Integer> getKeyFreqMap(){
-        HashMap<Long,Integer> out = new HashMap<>();
-        this.forEach(node -> {
-            for (int i = 0; i <node.keys.length ; i++) {
-                if(node.keys[i]!=NULL){
-                    out.put(node.keys[i],node.frequencies[i]);
-                }
-            }
-        });
-        return out;
+    /**
+     * @param from The smallest key to return
+     * @param to   The largest key to return
+     * @return A cursor over the entries with keys from from to to inclusive, in ascending key order
+     */
+    public BTreeCursor range(long from, long to) {
+        BTreeCursor cursor = new BTreeCursor(this, to);
+        cursor.seek(from);
+        return cursor;
+    }
+
+    long getRootAddress() {
+        long stamp = rootLatch.readLock();
+        try {
+            return header.rootAddress;
+        } finally {
+            rootLatch.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * @return A number that changes whenever keys move between nodes
+     */
+    long getStructureVersion() {
+        return structureVersion.get();
     }
 
     public String getFileName() {
         return fileName;
     }
+
+    /**
+     * Writes every modified page in the cache back to the file
+     *
+     * @throws IOException If a page could not be written
+     */
+    public void flush() throws IOException {
+        commit();
+    }
+
+    /**
+     * Commits, checkpoints and closes the underlying file, the tree cannot be used afterwards
+     *
+     * @throws IOException If the file could not be written or closed
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            commit();
+            if (wal != null) {
+                checkpoint();
+                wal.close();
+            }
+        } finally {
+            file.close();
+        }
+    }
 }
@@ -0,0 +1,162 @@
+package com.nesposi3;
+
+import static com.nesposi3.Utils.BTreeUtils.*;
+
+/**
+ * Settings used when opening a BTree.
+ * The page size and order only apply when a new file is created, an existing file always uses the
+ * settings recorded in its header.
+ */
+public class BTreeConfig {
+    private int pageSize = DEFAULT_PAGE_SIZE;
+    private int t = 0;
+    private int cachePages = DEFAULT_CACHE_PAGES;
+    private NodeFormat.Encoding encoding = NodeFormat.Encoding.RAW;
+    private boolean writeAheadLog = true;
+    private int groupCommitSize = DEFAULT_GROUP_COMMIT_SIZE;
+    private double bloomFalsePositiveRate = DEFAULT_BLOOM_FALSE_POSITIVE_RATE;
+    private boolean verifyChecksums = true;
+    private TermHash termHash = TermHash.DEFAULT;
+
+    /**
+     * @return A config with the default page size, RAW encoding, the highest order that fits, the default cache size,
+     * a write-ahead log, a Bloom filter and checksum verification
+     */
+    public static BTreeConfig defaults() {
+        return new BTreeConfig();
+    }
+
+    /**
+     * @param pageSize The size of a page in bytes, a multiple of 512
+     * @return this
+     */
+    public BTreeConfig pageSize(int pageSize) {
+        if (pageSize <= 0 || pageSize % 512 != 0) {
+            throw new IllegalArgumentException("Page size must be a positive multiple of 512: " + pageSize);
+        }
+        this.pageSize = pageSize;
+        return this;
+    }
+
+    /**
+     * @param t The minimum degree of the tree, 0 picks the default order for the page size and encoding
+     * @return this
+     */
+    public BTreeConfig order(int t) {
+        if (t != 0 && t < 2) {
+            throw new IllegalArgumentException("Order must be at least 2: " + t);
+        }
+        this.t = t;
+        return this;
+    }
+
+    /**
+     * @param cachePages The number of pages the page cache holds
+     * @return this
+     */
+    public BTreeConfig cachePages(int cachePages) {
+        this.cachePages = cachePages;
+        return this;
+    }
+
+    /**
+     * @param encoding How node pages are laid out, PACKED fits more keys per page at the cost of decoding
+     * @return this
+     */
+    public BTreeConfig encoding(NodeFormat.Encoding encoding) {
+        this.encoding = encoding;
+        return this;
+    }
+
+    /**
+     * @param writeAheadLog True to log changed pages before they reach the file, so a crash cannot corrupt the tree
+     * @return this
+     */
+    public BTreeConfig writeAheadLog(boolean writeAheadLog) {
+        this.writeAheadLog = writeAheadLog;
+        return this;
+    }
+
+    /**
+     * @param groupCommitSize The number of mutations committed together with a single sync
+     * @return this
+     */
+    public BTreeConfig groupCommitSize(int groupCommitSize) {
+        if (groupCommitSize < 1) {
+            throw new IllegalArgumentException("Group commit size must be at least 1: " + groupCommitSize);
+        }
+        this.groupCommitSize = groupCommitSize;
+        return this;
+    }
+
+    /**
+     * @param bloomFalsePositiveRate The false positive rate of the Bloom filter searches check first, 0 for no filter.
+     *                               Only applies to files that do not have a filter yet
+     * @return this
+     */
+    public BTreeConfig bloomFalsePositiveRate(double bloomFalsePositiveRate) {
+        if (bloomFalsePositiveRate < 0 || bloomFalsePositiveRate >= 1) {
+            throw new IllegalArgumentException("False positive rate must be in [0, 1): " + bloomFalsePositiveRate);
+        }
+        this.bloomFalsePositiveRate = bloomFalsePositiveRate;
+        return this;
+    }
+
+    /**
+     * @param verifyChecksums True to check the checksum of every page read from the file, when its pages carry one.
+     *                        Checksums are written either way
+     * @return this
+     */
+    public BTreeConfig verifyChecksums(boolean verifyChecksums) {
+        this.verifyChecksums = verifyChecksums;
+        return this;
+    }
+
+    /**
+     * @param termHash The function the keys come from, recorded in new files for readers that hash words to look them up
+     * @return this
+     */
+    public BTreeConfig termHash(TermHash termHash) {
+        this.termHash = termHash;
+        return this;
+    }
+
+    public int getPageSize() {
+        return pageSize;
+    }
+
+    /**
+     * @return The configured order, or the default order for the page size and encoding if none was set
+     */
+    public int getOrder() {
+        return t == 0 ? NodeFormat.maxOrder(pageSize, encoding) : t;
+    }
+
+    public int getCachePages() {
+        return cachePages;
+    }
+
+    public NodeFormat.Encoding getEncoding() {
+        return encoding;
+    }
+
+    public boolean isWriteAheadLog() {
+        return writeAheadLog;
+    }
+
+    public int getGroupCommitSize() {
+        return groupCommitSize;
+    }
+
+    public double getBloomFalsePositiveRate() {
+        return bloomFalsePositiveRate;
+    }
+
+    public boolean isVerifyChecksums() {
+        return verifyChecksums;
+    }
+
+    public TermHash getTermHash() {
+        return termHash;
+    }
+}
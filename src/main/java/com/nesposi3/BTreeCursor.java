@@ -0,0 +1,167 @@
+package com.nesposi3;
+
+import static com.nesposi3.Utils.BTreeUtils.NULL;
+
+/**
+ * An in-order cursor over a BTree, optionally bounded above.
+ * It keeps a copy of one node per level of the tree, so memory use is bounded by the height of the tree
+ * rather than the number of keys. The copies are views the cursor reuses, so a scan allocates nothing per page.
+ *
+ * The cursor is weakly consistent when the tree is changed while it is open: keys inserted behind it are not
+ * returned, but no key present throughout is skipped or repeated. When a split moves keys out of the nodes it holds,
+ * it finds its place again from the root. Keys deleted after the cursor read their node may still be returned.
+ * A delete can free a page the cursor is about to read, so anything read while the structure version moved
+ * is thrown away and read again from the root.
+ */
+public class BTreeCursor implements TermCursor {
+    // Far more levels than any tree of order 2 or more can have with 64 bit keys
+    private static final int MAX_HEIGHT = 64;
+    private final BTree tree;
+    private final long upperBound;
+    private final NodeView[] nodes;
+    private final int[] sizes;
+    private final int[] positions;
+    private int depth;
+    private long key;
+    private int frequency;
+    // The structure version of the tree when the held nodes were read
+    private long version;
+    // The key to seek to if the held nodes go stale, and whether there is none because the last key was returned
+    private long resumeKey;
+    private boolean exhausted;
+    // Set when a node read for the next key may have been freed while it was read
+    private boolean reseek;
+
+    /**
+     * Creates a cursor that is not positioned, seek must be called before next
+     *
+     * @param tree       The tree to walk
+     * @param upperBound The largest key the cursor returns
+     */
+    BTreeCursor(BTree tree, long upperBound) {
+        this.tree = tree;
+        this.upperBound = upperBound;
+        this.nodes = new NodeView[MAX_HEIGHT];
+        this.sizes = new int[MAX_HEIGHT];
+        this.positions = new int[MAX_HEIGHT];
+    }
+
+    @Override
+    public void seek(long target) {
+        resumeKey = target;
+        exhausted = false;
+        reseek = false;
+        do {
+            depth = 0;
+            version = tree.getStructureVersion();
+            try {
+                long address = tree.getRootAddress();
+                while (address != NULL && read(address)) {
+                    NodeView node = nodes[depth];
+                    int n = node.numKeys();
+                    // Find the first key at least as large as the target
+                    int low = node.lowerBound(target);
+                    push(n, low);
+                    address = node.leafStatus() ? NULL : node.child(low);
+                }
+            } catch (RuntimeException e) {
+                // A page freed under the descent can hold anything, only trust the failure if nothing moved
+                if (tree.getStructureVersion() == version) {
+                    throw e;
+                }
+            }
+        } while (tree.getStructureVersion() != version);
+    }
+
+    @Override
+    public boolean next() {
+        if (reseek) {
+            if (exhausted) {
+                depth = 0;
+                return false;
+            }
+            seek(resumeKey);
+        }
+        while (depth > 0) {
+            int top = depth - 1;
+            NodeView node = nodes[top];
+            int i = positions[top];
+            if (i < sizes[top]) {
+                if (!node.leafStatus() && tree.getStructureVersion() != version) {
+                    // A split may have moved keys out of the nodes held here, find the next key from the root again
+                    if (exhausted) {
+                        depth = 0;
+                        return false;
+                    }
+                    seek(resumeKey);
+                    continue;
+                }
+                key = node.key(i);
+                frequency = node.frequency(i);
+                positions[top] = i + 1;
+                if (!node.leafStatus()) {
+                    try {
+                        pushLeftmost(node.child(i + 1));
+                    } catch (RuntimeException e) {
+                        if (tree.getStructureVersion() == version) {
+                            throw e;
+                        }
+                    }
+                    // The key itself was read before anything moved, only what comes after it is in doubt
+                    reseek = tree.getStructureVersion() != version;
+                }
+                if (key > upperBound) {
+                    depth = 0;
+                    return false;
+                }
+                exhausted = key == Long.MAX_VALUE;
+                resumeKey = key + 1;
+                return true;
+            }
+            depth--;
+        }
+        return false;
+    }
+
+    @Override
+    public long key() {
+        return key;
+    }
+
+    @Override
+    public int frequency() {
+        return frequency;
+    }
+
+    private void pushLeftmost(long address) {
+        while (read(address)) {
+            NodeView node = nodes[depth];
+            push(node.numKeys(), 0);
+            if (node.leafStatus()) {
+                return;
+            }
+            address = node.child(0);
+        }
+    }
+
+    /**
+     * Copies a node into the view of the next level, creating the view the first time the level is reached
+     *
+     * @return False if the address is past the end of the file
+     */
+    private boolean read(long address) {
+        if (nodes[depth] == null) {
+            nodes[depth] = tree.newView();
+        }
+        return tree.readView(address, nodes[depth]);
+    }
+
+    /**
+     * Pushes the node just read into the view of the next level
+     */
+    private void push(int size, int position) {
+        sizes[depth] = size;
+        positions[depth] = position;
+        depth++;
+    }
+}
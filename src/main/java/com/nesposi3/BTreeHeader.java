@@ -0,0 +1,177 @@
+package com.nesposi3;
+
+import java.nio.ByteBuffer;
+
+import static com.nesposi3.Utils.BTreeUtils.NULL;
+
+/**
+ * The header of a BTree file, stored in the page at address 0.
+ * It records the settings the rest of the file was written with, and where the root lives.
+ *
+ * Header format in bytes:
+ *        4         4          4         4        8         4           8              8
+ *    | magic | version | page size |   T   |  root  | encoding | next page | free list head |
+ *
+ *         8             8                8                8              8              4               8
+ *    | term count | distinct keys | sum of squares | bloom head | bloom bits | bloom hashes | bloom capacity |
+ *
+ *      4          4
+ *    | flags | term hash |
+ * Flag 1 marks a file whose every page ends in a CRC32C checksum.
+ * The term hash is the ordinal of the TermHash the keys come from, if they are the words of a document.
+ * A Bloom filter of 0 bits means there is none, one is built when the file is opened if the tree is configured for it.
+ * Files written before headers existed have no version, they are rebuilt in this format when opened.
+ */
+public class BTreeHeader {
+    public static final int MAGIC = 0x42545245;
+    public static final int VERSION = 1;
+    public static final int HEADER_BYTES = 104;
+    public static final int FLAG_CHECKSUMS = 1;
+
+    public int version;
+    public int pageSize;
+    public int t;
+    public long rootAddress;
+    public NodeFormat.Encoding encoding;
+    public long nextPage;
+    public long freeListHead = NULL;
+    // The sum of every frequency, the number of keys and the sum of every frequency squared
+    public long termCount;
+    public long distinctKeys;
+    public long sumOfSquares;
+    public long bloomHead = NULL;
+    public long bloomBits;
+    public int bloomHashes;
+    public long bloomCapacity;
+    public boolean checksummed;
+    public TermHash termHash = TermHash.MD5;
+
+    /**
+     * Creates the header of a new file
+     *
+     * @param pageSize The size of every page
+     * @param t        The order of the tree
+     * @param encoding The encoding of the node pages
+     */
+    public BTreeHeader(int pageSize, int t, NodeFormat.Encoding encoding) {
+        this.version = VERSION;
+        this.pageSize = pageSize;
+        this.t = t;
+        this.encoding = encoding;
+        // RAW nodes of an order that fills the whole page leave no room for a checksum
+        this.checksummed = encoding == NodeFormat.Encoding.PACKED || t <= NodeFormat.maxOrder(pageSize, encoding);
+        this.termHash = TermHash.DEFAULT;
+    }
+
+    /**
+     * Reads a header from the start of a page
+     *
+     * @param bytes The bytes of the header page
+     */
+    public BTreeHeader(byte[] bytes) {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        if (buffer.getInt() != MAGIC) {
+            throw new IllegalArgumentException("Not a BTree file");
+        }
+        this.version = buffer.getInt();
+        if (version != VERSION) {
+            throw new IllegalArgumentException("Unsupported BTree file version " + version);
+        }
+        this.pageSize = buffer.getInt();
+        this.t = buffer.getInt();
+        this.rootAddress = buffer.getLong();
+        this.encoding = NodeFormat.Encoding.values()[buffer.getInt()];
+        this.nextPage = buffer.getLong();
+        this.freeListHead = buffer.getLong();
+        this.termCount = buffer.getLong();
+        this.distinctKeys = buffer.getLong();
+        this.sumOfSquares = buffer.getLong();
+        this.bloomHead = buffer.getLong();
+        this.bloomBits = buffer.getLong();
+        this.bloomHashes = buffer.getInt();
+        this.bloomCapacity = buffer.getLong();
+        this.checksummed = (buffer.getInt() & FLAG_CHECKSUMS) != 0;
+        this.termHash = TermHash.fromOrdinal(buffer.getInt());
+    }
+
+    /**
+     * Adds one entry to the statistics
+     *
+     * @param frequency The frequency of the entry
+     */
+    public synchronized void countEntry(int frequency) {
+        termCount += frequency;
+        distinctKeys++;
+        sumOfSquares += (long) frequency * frequency;
+    }
+
+    /**
+     * Removes one entry from the statistics
+     *
+     * @param frequency The frequency of the entry
+     */
+    public synchronized void removeEntry(int frequency) {
+        termCount -= frequency;
+        distinctKeys--;
+        sumOfSquares -= (long) frequency * frequency;
+    }
+
+    /**
+     * Updates the statistics for an entry whose frequency changed
+     *
+     * @param oldFrequency The frequency before
+     * @param newFrequency The frequency after
+     */
+    public synchronized void changeEntry(int oldFrequency, int newFrequency) {
+        termCount += newFrequency - oldFrequency;
+        sumOfSquares += (long) newFrequency * newFrequency - (long) oldFrequency * oldFrequency;
+    }
+
+    /**
+     * Clears the statistics, before they are counted again
+     */
+    public synchronized void clearStatistics() {
+        termCount = 0;
+        distinctKeys = 0;
+        sumOfSquares = 0;
+    }
+
+    /**
+     * Checks if the given bytes begin with a BTree header
+     *
+     * @param bytes The first bytes of a file
+     * @return true if the magic number is present
+     */
+    public static boolean isHeader(byte[] bytes) {
+        return bytes.length >= 4 && ByteBuffer.wrap(bytes).getInt() == MAGIC;
+    }
+
+    /**
+     * Writes this header at the position of the buffer, padded to a full page
+     *
+     * @param buffer The buffer to write into
+     */
+    public void writeTo(ByteBuffer buffer) {
+        int start = buffer.position();
+        buffer.putInt(MAGIC);
+        buffer.putInt(version);
+        buffer.putInt(pageSize);
+        buffer.putInt(t);
+        buffer.putLong(rootAddress);
+        buffer.putInt(encoding.ordinal());
+        buffer.putLong(nextPage);
+        buffer.putLong(freeListHead);
+        buffer.putLong(termCount);
+        buffer.putLong(distinctKeys);
+        buffer.putLong(sumOfSquares);
+        buffer.putLong(bloomHead);
+        buffer.putLong(bloomBits);
+        buffer.putInt(bloomHashes);
+        buffer.putLong(bloomCapacity);
+        buffer.putInt(checksummed ? FLAG_CHECKSUMS : 0);
+        buffer.putInt(termHash.ordinal());
+        while (buffer.position() < start + pageSize) {
+            buffer.put((byte) 0);
+        }
+    }
+}
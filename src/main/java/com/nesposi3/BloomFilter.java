@@ -0,0 +1,256 @@
+package com.nesposi3;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import static com.nesposi3.Utils.BTreeUtils.NULL;
+
+/**
+ * A Bloom filter over the keys of a BTree, so a search for an absent key can usually be answered without reading
+ * any page. Each key sets a fixed number of bits, picked by double hashing a mix of the key.
+ *
+ * The filter lives in memory while the tree is open and is stored in a chain of pages of the tree's file.
+ * Only the pages whose bits changed since the last commit are written again.
+ *
+ * Filter page format in bytes:
+ *       8          8 * w
+ *    | next |  bit words  |
+ * In files with page checksums the words stop short of the checksum at the end of the page.
+ */
+public class BloomFilter {
+    private final long capacity;
+    private final int numHashes;
+    private final long numBits;
+    private final int pageSize;
+    // Bytes at the end of every page the filter leaves alone
+    private final int reserved;
+    private final AtomicLongArray words;
+    private long[] pages;
+    private boolean[] dirty;
+
+    /**
+     * @param capacity  The number of keys the filter is sized for
+     * @param numHashes The number of bits each key sets
+     * @param numBits   The number of bits in the filter
+     * @param pageSize  The size of a page of the file the filter is stored in
+     * @param reserved  The bytes at the end of every page the filter leaves alone
+     */
+    public BloomFilter(long capacity, int numHashes, long numBits, int pageSize, int reserved) {
+        this.capacity = capacity;
+        this.numHashes = numHashes;
+        this.numBits = Math.max(64, numBits);
+        this.pageSize = pageSize;
+        this.reserved = reserved;
+        this.words = new AtomicLongArray((int) ((this.numBits + 63) / 64));
+    }
+
+    /**
+     * Sizes a filter to hold the given number of keys at the given false positive rate
+     *
+     * @param capacity          The number of keys the filter is sized for
+     * @param falsePositiveRate The chance an absent key is reported present once the filter holds capacity keys
+     * @param pageSize          The size of a page of the file the filter is stored in
+     * @param reserved          The bytes at the end of every page the filter leaves alone
+     * @return An empty filter
+     */
+    public static BloomFilter create(long capacity, double falsePositiveRate, int pageSize, int reserved) {
+        double ln2 = Math.log(2);
+        long numBits = (long) Math.ceil(-capacity * Math.log(falsePositiveRate) / (ln2 * ln2));
+        int numHashes = Math.max(1, (int) Math.round((double) numBits / capacity * ln2));
+        return new BloomFilter(capacity, numHashes, numBits, pageSize, reserved);
+    }
+
+    /**
+     * @param newCapacity The number of keys the new filter is sized for
+     * @return An empty filter with the same bits per key and number of hashes as this one
+     */
+    public BloomFilter resized(long newCapacity) {
+        return resized(newCapacity, reserved);
+    }
+
+    /**
+     * @param newCapacity The number of keys the new filter is sized for
+     * @param reserved    The bytes at the end of every page the new filter leaves alone
+     * @return An empty filter with the same bits per key and number of hashes as this one
+     */
+    public BloomFilter resized(long newCapacity, int reserved) {
+        long newBits = (long) Math.ceil((double) numBits * newCapacity / capacity);
+        return new BloomFilter(newCapacity, numHashes, newBits, pageSize, reserved);
+    }
+
+    /**
+     * Adds a key, safe to call from several threads at once
+     *
+     * @param key The key to add
+     */
+    public void add(long key) {
+        long h1 = mix(key);
+        long h2 = Long.rotateLeft(h1, 32) | 1;
+        for (int i = 0; i < numHashes; i++) {
+            long bit = Math.floorMod(h1 + i * h2, numBits);
+            int word = (int) (bit >>> 6);
+            long mask = 1L << bit;
+            long old = words.get(word);
+            while ((old & mask) == 0) {
+                if (words.compareAndSet(word, old, old | mask)) {
+                    markDirty(word);
+                    break;
+                }
+                old = words.get(word);
+            }
+        }
+    }
+
+    /**
+     * @param key The key to look for
+     * @return False if the key was never added, true if it may have been
+     */
+    public boolean mightContain(long key) {
+        long h1 = mix(key);
+        long h2 = Long.rotateLeft(h1, 32) | 1;
+        for (int i = 0; i < numHashes; i++) {
+            long bit = Math.floorMod(h1 + i * h2, numBits);
+            if ((words.get((int) (bit >>> 6)) & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Spreads the bits of a key, so keys that are not already hashes still fill the filter evenly
+     */
+    private static long mix(long key) {
+        key = (key ^ (key >>> 30)) * 0xBF58476D1CE4E5B9L;
+        key = (key ^ (key >>> 27)) * 0x94D049BB133111EBL;
+        return key ^ (key >>> 31);
+    }
+
+    private int wordsPerPage() {
+        return (pageSize - reserved - 8) / 8;
+    }
+
+    /**
+     * @return The number of pages the filter takes in a file
+     */
+    public int pageCount() {
+        return (words.length() + wordsPerPage() - 1) / wordsPerPage();
+    }
+
+    private synchronized void markDirty(int word) {
+        if (dirty != null) {
+            dirty[word / wordsPerPage()] = true;
+        }
+    }
+
+    /**
+     * Reads a filter stored by store
+     *
+     * @param cache The cache of the file
+     * @param head  The first page of the chain
+     * @throws IOException On a failed read
+     */
+    public synchronized void load(PageCache cache, long head) throws IOException {
+        int count = pageCount();
+        pages = new long[count];
+        dirty = new boolean[count];
+        long address = head;
+        int word = 0;
+        for (int p = 0; p < count; p++) {
+            pages[p] = address;
+            ByteBuffer page = ByteBuffer.wrap(cache.pin(address));
+            long next = page.getLong();
+            for (int i = 0; i < wordsPerPage() && word < words.length(); i++) {
+                words.set(word++, page.getLong());
+            }
+            cache.unpin(address, false);
+            address = next;
+        }
+    }
+
+    /**
+     * Writes every page of the filter that changed since it was last stored, allocating its pages the first time
+     *
+     * @param cache     The cache of the file
+     * @param allocator The allocator of the file
+     * @return The first page of the chain
+     * @throws IOException On a failed write
+     */
+    public synchronized long store(PageCache cache, PageAllocator allocator) throws IOException {
+        if (pages == null) {
+            pages = new long[pageCount()];
+            dirty = new boolean[pages.length];
+            for (int p = 0; p < pages.length; p++) {
+                pages[p] = allocator.allocate();
+                dirty[p] = true;
+            }
+        }
+        for (int p = 0; p < pages.length; p++) {
+            if (dirty[p]) {
+                ByteBuffer page = ByteBuffer.wrap(cache.pinForOverwrite(pages[p]));
+                writePage(p, page);
+                cache.unpin(pages[p], true);
+                dirty[p] = false;
+            }
+        }
+        return pages[0];
+    }
+
+    /**
+     * Writes the whole filter into consecutive pages of a buffer holding a file being built
+     *
+     * @param out          The buffer, positioned at the first page
+     * @param firstAddress The address of the first page in the file
+     * @return The first page of the chain
+     */
+    public synchronized long layOut(ByteBuffer out, long firstAddress) {
+        pages = new long[pageCount()];
+        dirty = new boolean[pages.length];
+        for (int p = 0; p < pages.length; p++) {
+            pages[p] = firstAddress + (long) p * pageSize;
+        }
+        for (int p = 0; p < pages.length; p++) {
+            writePage(p, out);
+        }
+        return pages[0];
+    }
+
+    private void writePage(int p, ByteBuffer page) {
+        int start = page.position();
+        page.putLong(p + 1 < pages.length ? pages[p + 1] : NULL);
+        int first = p * wordsPerPage();
+        for (int w = first; w < first + wordsPerPage() && w < words.length(); w++) {
+            page.putLong(words.get(w));
+        }
+        while (page.position() < start + pageSize) {
+            page.put((byte) 0);
+        }
+    }
+
+    /**
+     * Returns the pages of the filter to the allocator, once it has been replaced
+     *
+     * @param allocator The allocator of the file
+     */
+    public synchronized void release(PageAllocator allocator) {
+        if (pages != null) {
+            for (long page : pages) {
+                allocator.release(page);
+            }
+            pages = null;
+        }
+    }
+
+    public long getCapacity() {
+        return capacity;
+    }
+
+    public int getNumHashes() {
+        return numHashes;
+    }
+
+    public long getNumBits() {
+        return numBits;
+    }
+}
@@ -1,6 +1,7 @@
 package com.nesposi3;
 
 import com.nesposi3.Utils.CacheUtils;
+import com.nesposi3.Utils.ChecksumUtils;
 
 import java.io.File;
 import java.io.IOException;
@@ -17,6 +18,7 @@ import java.nio.file.Files;
  * |       4      |              4          |            n              |         4         |           (4 | n)*          |
  *   Cluster Id    Length of medioid string   n bytes of medioid string   Number of members    N pairs of lengths and bytes
  *
+ * On disk the packet is followed by a checksum trailer, see ChecksumUtils
  */
 public class Cluster {
     private static final String CLUSTER_FILE_LOCATION = "storage/clusters/";
@@ -67,7 +69,7 @@ public class Cluster {
             buffer.get(currBytes);
             this.members[i] = new String(currBytes);
         }
-
+        ChecksumUtils.checkTrailer(buffer);
     }
     public void addMember(String newMember){
         String[] newMembers = new String[members.length+1];
@@ -94,7 +96,7 @@ public class Cluster {
             f.createNewFile();
             RandomAccessFile x = new RandomAccessFile(f,"rw");
             x.seek(0);
-            x.write(this.toBytes());
+            x.write(ChecksumUtils.seal(this.toBytes()));
             x.close();
         }catch (IOException ioe){
             ioe.printStackTrace();
@@ -116,6 +118,10 @@ public class Cluster {
         return members;
     }
 
+    public int getClusterId() {
+        return clusterId;
+    }
+
     @Override
     public String toString() {
         StringBuilder s = new StringBuilder("Cluster: "  + clusterId + "\n" );
@@ -0,0 +1,932 @@
+package com.nesposi3;
+
+import com.nesposi3.Utils.ChecksumUtils;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.StandardCharsets;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static com.nesposi3.Utils.BTreeUtils.*;
+import static com.nesposi3.Utils.ChecksumUtils.CHECKSUM_SIZE;
+
+/**
+ * Checks the BTrees, document segments, term dictionary, graph nodes and clusters under storage/ for corruption
+ * without changing them. Every file is checked by its own task, on as many threads as there are cores, and BTree
+ * and segment files are read sequentially in large chunks, so a large store is checked at close to the speed
+ * of the disk.
+ *
+ * A BTree file has the checksum of every page verified, then its tree is walked from the root: keys must be
+ * in order and within the bounds of their parent, children must be pages of the file, every leaf must be at
+ * the same depth, and no page may be reachable twice. Pages that are neither in the tree, the Bloom filter
+ * nor the free list are reported as leaked.
+ *
+ * Every record of a segment has its checksum verified and is decoded: keys must be in order, frequencies must fit
+ * an int, and a patch must point back at an earlier record of the same document. Every entry of the segment index
+ * has its checksum verified and must point at the start of a record of the document it names. The meta file must
+ * name a known term hash.
+ *
+ * Every word of the term dictionary must be valid UTF-8, follow the word before it in the pool and hash to
+ * the key its id records, and no two ids may share a key. A table that matches the ids must lead every key to its id.
+ *
+ * Graph nodes and clusters are parsed, which checks their trailer, and every name they refer to must exist.
+ *
+ * Usage: Fsck [storage directory], storage/ by default. Exits with 1 if any file has errors.
+ */
+public class Fsck {
+    // Pages read at once while verifying checksums
+    private static final int CHUNK_PAGES = 256;
+    // Deeper than any tree, a walk this deep is following a cycle
+    private static final int MAX_DEPTH = 64;
+    // Problems listed per file, the rest are only counted
+    private static final int MAX_LISTED = 100;
+    // Similarities are 1 minus a cosine, rounding can take them just below 0
+    private static final double SIMILARITY_TOLERANCE = 1e-9;
+    private static final int SEGMENT_BUFFER_SIZE = 1 << 20;
+    // A segment record holds at least a name length and a key count
+    private static final int MIN_RECORD_LENGTH = 2 + 4;
+
+    /**
+     * The problems found in one file
+     */
+    public static class Report {
+        public final String file;
+        public final List<String> problems = new ArrayList<>();
+        public int errors;
+        public int warnings;
+        public long bytes;
+        public long pages;
+
+        Report(String file) {
+            this.file = file;
+        }
+
+        void error(String message) {
+            errors++;
+            list("ERROR " + message);
+        }
+
+        void warn(String message) {
+            warnings++;
+            list("WARNING " + message);
+        }
+
+        private void list(String problem) {
+            if (problems.size() < MAX_LISTED) {
+                problems.add(problem);
+            }
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        File root = new File(args.length > 0 ? args[0] : "storage");
+        long start = System.nanoTime();
+        List<Report> reports = check(root);
+        double seconds = (System.nanoTime() - start) / 1e9;
+        long bytes = 0;
+        long pages = 0;
+        int errors = 0;
+        int warnings = 0;
+        for (Report report : reports) {
+            bytes += report.bytes;
+            pages += report.pages;
+            errors += report.errors;
+            warnings += report.warnings;
+            for (String problem : report.problems) {
+                System.out.println(report.file + ": " + problem);
+            }
+            int unlisted = report.errors + report.warnings - report.problems.size();
+            if (unlisted > 0) {
+                System.out.println(report.file + ": and " + unlisted + " more");
+            }
+        }
+        double megabytes = bytes / (1024.0 * 1024.0);
+        System.out.printf("Checked %d files, %.1f MB, %d pages in %.2f s (%.1f MB/s): %d errors, %d warnings%n",
+                reports.size(), megabytes, pages, seconds, megabytes / Math.max(seconds, 1e-9), errors, warnings);
+        if (errors > 0) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Checks every file of a store, in parallel
+     *
+     * @param root The storage directory
+     * @return A report for every file, ordered by path
+     * @throws InterruptedException If interrupted while waiting for the checks
+     */
+    public static List<Report> check(File root) throws InterruptedException {
+        File[] trees = list(new File(root, "btrees"));
+        File[] graph = list(new File(root, "graph"));
+        File[] clusters = list(new File(root, "clusters"));
+        StoreCheck store = new StoreCheck(new File(root, "segments"));
+        File terms = new File(root, "terms");
+        Set<String> graphNames = new HashSet<>();
+        for (File f : graph) {
+            graphNames.add(f.getName());
+        }
+        ExecutorService pool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        List<Future<Report>> futures = new ArrayList<>();
+        try {
+            for (File f : trees) {
+                // Logs are checked along with their tree
+                if (!f.getName().endsWith(WAL_SUFFIX)) {
+                    futures.add(pool.submit(() -> checkBTree(f)));
+                }
+            }
+            for (File f : graph) {
+                futures.add(pool.submit(() -> checkGraphNode(f, graphNames)));
+            }
+            for (File f : clusters) {
+                futures.add(pool.submit(() -> checkCluster(f, graphNames)));
+            }
+            for (int segment = 0; segment < store.reports.length; segment++) {
+                int number = segment;
+                futures.add(pool.submit(() -> store.checkSegment(number)));
+            }
+            if (new File(terms, TermDictionary.IDS_NAME).exists()) {
+                futures.add(pool.submit(() -> checkTermDictionary(terms)));
+            }
+            List<Report> reports = new ArrayList<>();
+            for (Future<Report> future : futures) {
+                try {
+                    reports.add(future.get());
+                } catch (ExecutionException e) {
+                    throw new IllegalStateException("A check failed unexpectedly", e.getCause());
+                }
+            }
+            // The index refers to records of every segment, so it is checked once they all are
+            if (store.exists()) {
+                reports.add(store.checkIndex());
+                reports.add(store.checkMeta());
+            }
+            reports.sort(Comparator.comparing(r -> r.file));
+            return reports;
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private static File[] list(File dir) {
+        File[] files = dir.listFiles(File::isFile);
+        return files == null ? new File[0] : files;
+    }
+
+    /**
+     * @param f A BTree file
+     * @return The problems found in the file
+     */
+    public static Report checkBTree(File f) {
+        Report report = new Report(f.getPath());
+        if (f.getName().endsWith(REBUILD_SUFFIX)) {
+            report.bytes = f.length();
+            report.warn("Left behind by an interrupted rebuild, the tree it belongs to does not use it");
+            return report;
+        }
+        File wal = new File(f.getPath() + WAL_SUFFIX);
+        if (wal.length() > 0) {
+            report.warn("Has " + wal.length() + " bytes of log, which are replayed into the file when the tree is opened");
+        }
+        try (FileChannel channel = FileChannel.open(f.toPath(), StandardOpenOption.READ)) {
+            new TreeCheck(channel, report).run();
+        } catch (IOException | RuntimeException e) {
+            report.error("Could not be read: " + e);
+        }
+        return report;
+    }
+
+    /**
+     * Walks one BTree file
+     */
+    private static class TreeCheck {
+        private final FileChannel channel;
+        private final Report report;
+        private BTreeHeader header;
+        private NodeFormat format;
+        private int pageSize;
+        private long nextPage;
+        // Pages that failed their checksum, and pages something refers to
+        private final BitSet corrupt = new BitSet();
+        private final BitSet used = new BitSet();
+        // One page and view per level of the walk
+        private final byte[][] pages = new byte[MAX_DEPTH][];
+        private final NodeView[] views = new NodeView[MAX_DEPTH];
+        private int leafDepth = -1;
+        private long distinctKeys;
+        private long termCount;
+        private long sumOfSquares;
+
+        TreeCheck(FileChannel channel, Report report) {
+            this.channel = channel;
+            this.report = report;
+        }
+
+        void run() throws IOException {
+            long length = channel.size();
+            report.bytes = length;
+            if (length == 0) {
+                report.warn("Is empty");
+                return;
+            }
+            byte[] first = new byte[(int) Math.min(length, BTreeHeader.HEADER_BYTES)];
+            read(0, first);
+            if (!BTreeHeader.isHeader(first)) {
+                report.warn("Was written before headers, it is rebuilt in the current format when opened");
+                return;
+            }
+            if (first.length < BTreeHeader.HEADER_BYTES) {
+                report.error("Ends inside its header");
+                return;
+            }
+            int version = ByteBuffer.wrap(first).getInt(4);
+            if (version != BTreeHeader.VERSION) {
+                report.error("Has an unknown version " + version);
+                return;
+            }
+            header = new BTreeHeader(first);
+            pageSize = header.pageSize;
+            if (pageSize < 512 || pageSize % 512 != 0) {
+                report.error("Has an unknown page size " + pageSize);
+                return;
+            }
+            format = new NodeFormat(header.t, pageSize, header.encoding, header.checksummed);
+            nextPage = header.nextPage;
+            report.pages = length / pageSize;
+            if (length % pageSize != 0) {
+                report.error("Length " + length + " is not a whole number of " + pageSize + " byte pages");
+            }
+            if (nextPage > length || nextPage < 2L * pageSize || nextPage % pageSize != 0) {
+                report.error("Header puts the end of the pages at " + nextPage + ", the file is " + length + " bytes");
+                nextPage = Math.min(length - length % pageSize, Math.max(nextPage - nextPage % pageSize, 0));
+            }
+            if (header.checksummed) {
+                verifyChecksums(length - length % pageSize);
+            }
+            used.set(0);
+            walk(header.rootAddress, 0, false, 0, false, 0);
+            if (header.bloomBits > 0) {
+                checkBloomFilter();
+            }
+            checkFreeList();
+            int leaked = 0;
+            for (long p = 1; p < nextPage / pageSize; p++) {
+                if (!used.get((int) p)) {
+                    leaked++;
+                }
+            }
+            // Pages below a broken node are not reached, they are only leaked if the tree is sound
+            if (leaked > 0 && report.errors == 0) {
+                report.warn(leaked + " pages are not in the tree, the Bloom filter or the free list, compact reclaims them");
+            }
+            if (report.errors == 0
+                    && (distinctKeys != header.distinctKeys || termCount != header.termCount
+                    || sumOfSquares != header.sumOfSquares)) {
+                report.error("Header statistics of " + header.distinctKeys + " keys and " + header.termCount
+                        + " terms do not match the " + distinctKeys + " keys and " + termCount + " terms in the tree");
+            }
+        }
+
+        /**
+         * Reads the pages in order, in large chunks, checking each one
+         */
+        private void verifyChecksums(long end) throws IOException {
+            byte[] chunk = new byte[CHUNK_PAGES * pageSize];
+            for (long address = 0; address < end; address += chunk.length) {
+                int size = (int) Math.min(chunk.length, end - address);
+                read(address, chunk, size);
+                for (int offset = 0; offset < size; offset += pageSize) {
+                    if (!ChecksumUtils.verifyPage(chunk, offset, pageSize)) {
+                        corrupt.set((int) ((address + offset) / pageSize));
+                        report.error("Page " + (address + offset) + " fails its checksum");
+                    }
+                }
+            }
+        }
+
+        /**
+         * @return True if the address is a page the file can refer to, and no other reference was already found
+         */
+        private boolean claim(long address, String what) {
+            if (address < pageSize || address >= nextPage || address % pageSize != 0) {
+                report.error(what + " refers to " + address + ", which is not a page of the file");
+                return false;
+            }
+            int page = (int) (address / pageSize);
+            if (used.get(page)) {
+                report.error(what + " refers to page " + address + ", which is already in use");
+                return false;
+            }
+            used.set(page);
+            return !corrupt.get(page);
+        }
+
+        /**
+         * Checks a node and everything below it
+         *
+         * @param address The address of the node
+         * @param depth   The depth of the node, the root is at 0
+         * @param hasLow  True if the keys of the node must be above low
+         * @param low     The separator before the node in its parent
+         * @param hasHigh True if the keys of the node must be below high
+         * @param high    The separator after the node in its parent
+         */
+        private void walk(long address, int depth, boolean hasLow, long low, boolean hasHigh, long high)
+                throws IOException {
+            String what = depth == 0 ? "Header root" : "A node at depth " + (depth - 1);
+            if (depth == MAX_DEPTH) {
+                report.error("Tree is deeper than " + MAX_DEPTH + " levels at page " + address);
+                return;
+            }
+            if (!claim(address, what)) {
+                return;
+            }
+            if (pages[depth] == null) {
+                pages[depth] = new byte[pageSize];
+                views[depth] = format.newView();
+            }
+            read(address, pages[depth]);
+            NodeView node;
+            try {
+                node = views[depth].wrap(pages[depth]);
+            } catch (IllegalStateException e) {
+                report.error("Page " + address + " does not hold a node: " + e.getMessage());
+                return;
+            }
+            if (node.address() != address) {
+                report.error("Page " + address + " holds the node of page " + node.address());
+            }
+            int n = node.numKeys();
+            if (n == 0 && (depth > 0 || !node.leafStatus())) {
+                report.error("Node " + address + " is empty");
+            }
+            for (int i = 0; i < n; i++) {
+                long key = node.key(i);
+                boolean ordered = i == 0 || node.key(i - 1) < key;
+                boolean aboveLow = !hasLow || key > low;
+                boolean belowHigh = !hasHigh || key < high;
+                if (!ordered || !aboveLow || !belowHigh) {
+                    report.error("Key " + i + " of node " + address + " is out of order");
+                }
+                int frequency = node.frequency(i);
+                if (frequency <= 0) {
+                    report.error("Key " + i + " of node " + address + " has frequency " + frequency);
+                }
+                distinctKeys++;
+                termCount += frequency;
+                sumOfSquares += (long) frequency * frequency;
+            }
+            if (node.leafStatus()) {
+                if (leafDepth == -1) {
+                    leafDepth = depth;
+                } else if (leafDepth != depth) {
+                    report.error("Leaf " + address + " is at depth " + depth + ", other leaves are at " + leafDepth);
+                }
+                return;
+            }
+            // The view of this level is reused below, copy what is still needed
+            long[] keys = new long[n];
+            long[] children = new long[n + 1];
+            for (int i = 0; i < n; i++) {
+                keys[i] = node.key(i);
+            }
+            for (int i = 0; i <= n; i++) {
+                children[i] = node.child(i);
+            }
+            for (int i = 0; i <= n; i++) {
+                walk(children[i], depth + 1,
+                        i > 0 || hasLow, i > 0 ? keys[i - 1] : low,
+                        i < n || hasHigh, i < n ? keys[i] : high);
+            }
+        }
+
+        private void checkBloomFilter() throws IOException {
+            int reserved = header.checksummed ? ChecksumUtils.CHECKSUM_SIZE : 0;
+            int count = new BloomFilter(header.bloomCapacity, header.bloomHashes, header.bloomBits, pageSize, reserved)
+                    .pageCount();
+            byte[] page = new byte[8];
+            long address = header.bloomHead;
+            for (int p = 0; p < count; p++) {
+                if (!claim(address, "Page " + p + " of the Bloom filter")) {
+                    return;
+                }
+                read(address, page);
+                address = ByteBuffer.wrap(page).getLong();
+            }
+        }
+
+        private void checkFreeList() throws IOException {
+            int perPage = PageAllocator.addressesPerPage(pageSize);
+            byte[] page = new byte[pageSize];
+            long address = header.freeListHead;
+            String what = "Header free list";
+            while (address != NULL) {
+                if (!claim(address, what)) {
+                    return;
+                }
+                read(address, page);
+                ByteBuffer buffer = ByteBuffer.wrap(page);
+                long next = buffer.getLong();
+                int count = buffer.getInt();
+                if (count < 0 || count > perPage) {
+                    report.error("Free list page " + address + " lists " + count + " pages");
+                    return;
+                }
+                for (int i = 0; i < count; i++) {
+                    claim(buffer.getLong(), "Free list page " + address);
+                }
+                what = "Free list page " + address;
+                address = next;
+            }
+        }
+
+        private void read(long address, byte[] into) throws IOException {
+            read(address, into, into.length);
+        }
+
+        private void read(long address, byte[] into, int length) throws IOException {
+            ByteBuffer buffer = ByteBuffer.wrap(into, 0, length);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, address + buffer.position()) < 0) {
+                    throw new EOFException("Page " + address + " is past the end of the file");
+                }
+            }
+        }
+    }
+
+    /**
+     * A record found in a segment
+     */
+    private static class StoredRecord {
+        final String name;
+        final int length;
+        // Where the record a patch changes is, the segment is -1 for a full record
+        final int previousSegment;
+        final long previousOffset;
+        final int previousLength;
+
+        StoredRecord(String name, int length, int previousSegment, long previousOffset, int previousLength) {
+            this.name = name;
+            this.length = length;
+            this.previousSegment = previousSegment;
+            this.previousOffset = previousOffset;
+            this.previousLength = previousLength;
+        }
+    }
+
+    /**
+     * Checks a segment store. Each segment is checked by its own task, collecting where its records start,
+     * then the index and the links of patches are checked against what the segments hold
+     */
+    private static class StoreCheck {
+        private final File directory;
+        final Report[] reports;
+        // The records of each segment by offset, a record failing its checksum is kept with a null name
+        private final List<Map<Long, StoredRecord>> records = new ArrayList<>();
+
+        StoreCheck(File directory) {
+            this.directory = directory;
+            int count = 0;
+            while (SegmentStore.segmentFile(directory, count).exists()) {
+                count++;
+            }
+            this.reports = new Report[count];
+            for (int i = 0; i < count; i++) {
+                records.add(new HashMap<>());
+            }
+        }
+
+        boolean exists() {
+            return new File(directory, SegmentStore.INDEX_NAME).exists();
+        }
+
+        Report checkSegment(int number) {
+            File f = SegmentStore.segmentFile(directory, number);
+            Report report = new Report(f.getPath());
+            reports[number] = report;
+            Map<Long, StoredRecord> found = records.get(number);
+            long length = f.length();
+            report.bytes = length;
+            boolean last = number == reports.length - 1;
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                    new FileInputStream(f), SEGMENT_BUFFER_SIZE))) {
+                byte[] body = new byte[0];
+                long offset = 0;
+                while (offset < length) {
+                    int size = length - offset < 4 ? -1 : in.readInt();
+                    if (size < MIN_RECORD_LENGTH || offset + SegmentStore.recordSize(size) > length) {
+                        // Opening the store cuts the last segment after its newest indexed record
+                        String problem = "Ends in a record cut short at " + offset;
+                        if (last) {
+                            report.warn(problem + ", which is dropped when the store is opened");
+                        } else {
+                            report.error(problem);
+                        }
+                        break;
+                    }
+                    if (body.length < size + CHECKSUM_SIZE) {
+                        body = new byte[Math.max(size + CHECKSUM_SIZE, body.length * 2)];
+                    }
+                    in.readFully(body, 0, size + CHECKSUM_SIZE);
+                    if (ByteBuffer.wrap(body).getInt(size) != ChecksumUtils.crc32c(body, 0, size)) {
+                        report.error("Record at " + offset + " fails its checksum");
+                        found.put(offset, new StoredRecord(null, size, -1, 0, 0));
+                    } else {
+                        found.put(offset, checkRecord(ByteBuffer.wrap(body, 0, size), number, offset, report));
+                    }
+                    offset += SegmentStore.recordSize(size);
+                }
+            } catch (IOException | RuntimeException e) {
+                report.error("Could not be read: " + e);
+            }
+            return report;
+        }
+
+        /**
+         * Decodes the body of a record whose checksum matched
+         *
+         * @return The record, with a null name if it does not decode
+         */
+        private static StoredRecord checkRecord(ByteBuffer body, int segment, long offset, Report report) {
+            String what = "Record at " + offset;
+            try {
+                int nameLength = body.getShort() & 0xFFFF;
+                if (2 + nameLength + 4 > body.limit()) {
+                    report.error(what + " has a name longer than the record");
+                    return new StoredRecord(null, body.limit(), -1, 0, 0);
+                }
+                String name = new String(body.array(), 2, nameLength, StandardCharsets.UTF_8);
+                body.position(2 + nameLength);
+                what += " of " + name;
+                int count = body.getInt();
+                boolean patch = (count & SegmentStore.PATCH_FLAG) != 0;
+                count &= ~SegmentStore.PATCH_FLAG;
+                StoredRecord record = new StoredRecord(name, body.limit(), -1, 0, 0);
+                if (patch) {
+                    int depth = body.getInt();
+                    record = new StoredRecord(name, body.limit(), body.getInt(), body.getLong(), body.getInt());
+                    if (depth < 1 || depth > SegmentStore.MAX_PATCH_DEPTH) {
+                        report.error(what + " is a patch at depth " + depth);
+                    }
+                    if (record.previousSegment < 0 || record.previousSegment > segment
+                            || (record.previousSegment == segment && record.previousOffset >= offset)) {
+                        report.error(what + " patches a record at " + record.previousOffset + " of segment "
+                                + record.previousSegment + ", which is not before it");
+                    }
+                }
+                // Each key and value takes at least a byte
+                if (count > body.remaining() / 2) {
+                    report.error(what + " has " + count + " keys, more than fit in it");
+                    return record;
+                }
+                long key = 0;
+                for (int i = 0; i < count; i++) {
+                    long next = i == 0 ? unZigZag(getVarLong(body)) : key + getVarLong(body);
+                    if (i > 0 && next <= key) {
+                        report.error(what + " has key " + next + " after " + key);
+                        return record;
+                    }
+                    key = next;
+                }
+                for (int i = 0; i < count; i++) {
+                    long value = getVarLong(body);
+                    if (patch ? unZigZag(value) == 0 || unZigZag(value) != (int) unZigZag(value)
+                            : value > 0xFFFFFFFFL) {
+                        report.error(what + " has " + (patch ? "change " : "frequency ") + value + " at entry " + i);
+                        return record;
+                    }
+                }
+                if (body.hasRemaining()) {
+                    report.error(what + " has " + body.remaining() + " bytes after its last entry");
+                }
+                return record;
+            } catch (BufferUnderflowException e) {
+                report.error(what + " runs past its length");
+                return new StoredRecord(null, body.limit(), -1, 0, 0);
+            }
+        }
+
+        /**
+         * @return The problems found in the index, and in the links of patches to the records they change
+         */
+        Report checkIndex() {
+            File f = new File(directory, SegmentStore.INDEX_NAME);
+            Report report = new Report(f.getPath());
+            long lastEnd = 0;
+            try {
+                byte[] bytes = Files.readAllBytes(f.toPath());
+                report.bytes = bytes.length;
+                ByteBuffer buffer = ByteBuffer.wrap(bytes);
+                int start = 0;
+                while (buffer.hasRemaining()) {
+                    String name;
+                    int segment;
+                    long offset;
+                    int length;
+                    try {
+                        byte[] nameBytes = new byte[buffer.getShort() & 0xFFFF];
+                        buffer.get(nameBytes);
+                        name = new String(nameBytes, StandardCharsets.UTF_8);
+                        segment = buffer.getInt();
+                        offset = buffer.getLong();
+                        length = buffer.getInt();
+                        if (buffer.getInt() != ChecksumUtils.crc32c(bytes, start, buffer.position() - CHECKSUM_SIZE - start)) {
+                            report.error("Entry at " + start + " fails its checksum, opening the store drops it "
+                                    + "and every entry after it");
+                            break;
+                        }
+                    } catch (BufferUnderflowException e) {
+                        report.warn("Ends in an entry cut short at " + start + ", which is dropped when the store is opened");
+                        break;
+                    }
+                    String what = "Entry at " + start + " for " + name;
+                    StoredRecord record = segment >= 0 && segment < records.size()
+                            ? records.get(segment).get(offset) : null;
+                    if (record == null) {
+                        report.error(what + " points at " + offset + " of segment " + segment
+                                + ", where no record starts");
+                    } else if (record.length != length) {
+                        report.error(what + " gives length " + length + " to a record of length " + record.length);
+                    } else if (record.name != null && !record.name.equals(name)) {
+                        report.error(what + " points at the record of " + record.name);
+                    } else if (segment == records.size() - 1) {
+                        lastEnd = Math.max(lastEnd, offset + SegmentStore.recordSize(length));
+                    }
+                    start = buffer.position();
+                }
+            } catch (IOException | RuntimeException e) {
+                report.error("Could not be read: " + e);
+            }
+            checkPatches();
+            int last = reports.length - 1;
+            if (last >= 0 && reports[last].bytes > lastEnd) {
+                reports[last].warn((reports[last].bytes - lastEnd) + " bytes after the newest indexed record "
+                        + "are dropped when the store is opened");
+            }
+            return report;
+        }
+
+        /**
+         * Every patch has to point at the start of an earlier record of the same document, of the length it gives
+         */
+        private void checkPatches() {
+            for (int segment = 0; segment < records.size(); segment++) {
+                for (Map.Entry<Long, StoredRecord> entry : records.get(segment).entrySet()) {
+                    StoredRecord patch = entry.getValue();
+                    if (patch.name == null || patch.previousSegment < 0 || patch.previousSegment >= records.size()) {
+                        continue;
+                    }
+                    StoredRecord previous = records.get(patch.previousSegment).get(patch.previousOffset);
+                    String what = "Record at " + entry.getKey() + " of " + patch.name;
+                    if (previous == null) {
+                        reports[segment].error(what + " patches " + patch.previousOffset + " of segment "
+                                + patch.previousSegment + ", where no record starts");
+                    } else if (previous.length != patch.previousLength) {
+                        reports[segment].error(what + " patches a record of length " + previous.length
+                                + " as if it were " + patch.previousLength);
+                    } else if (previous.name != null && !previous.name.equals(patch.name)) {
+                        reports[segment].error(what + " patches the record of " + previous.name);
+                    }
+                }
+            }
+        }
+
+        /**
+         * @return The problems found in the meta file
+         */
+        Report checkMeta() {
+            File f = new File(directory, SegmentStore.META_NAME);
+            Report report = new Report(f.getPath());
+            if (!f.exists()) {
+                report.warn("Is missing, opening the store writes it");
+                return report;
+            }
+            try {
+                ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(f.toPath()));
+                report.bytes = buffer.capacity();
+                if (buffer.remaining() < 8 || buffer.getInt() != SegmentStore.META_MAGIC) {
+                    report.error("Is not the meta file of a store");
+                } else {
+                    TermHash.fromOrdinal(buffer.getInt());
+                }
+            } catch (IOException | RuntimeException e) {
+                report.error("Could not be read: " + e);
+            }
+            return report;
+        }
+    }
+
+    /**
+     * @param directory The directory of a term dictionary
+     * @return The problems found in the pool, id and table files of the dictionary
+     */
+    public static Report checkTermDictionary(File directory) {
+        Report report = new Report(directory.getPath());
+        try (FileChannel pool = FileChannel.open(new File(directory, TermDictionary.POOL_NAME).toPath(),
+                StandardOpenOption.READ)) {
+            byte[] ids = Files.readAllBytes(new File(directory, TermDictionary.IDS_NAME).toPath());
+            report.bytes = ids.length + pool.size();
+            ByteBuffer idBuffer = ByteBuffer.wrap(ids);
+            if (ids.length < TermDictionary.IDS_HEADER_SIZE || idBuffer.getInt() != TermDictionary.IDS_MAGIC) {
+                report.error("Id file is not the id file of a term dictionary");
+                return report;
+            }
+            TermHash termHash = TermHash.fromOrdinal(idBuffer.getInt());
+            if (idBuffer.remaining() % TermDictionary.ID_ENTRY_SIZE != 0) {
+                report.warn("Id file ends in an entry cut short, which is dropped when the dictionary is opened");
+            }
+            int count = idBuffer.remaining() / TermDictionary.ID_ENTRY_SIZE;
+            long[] hashes = new long[count];
+            ByteBuffer words = pool.map(FileChannel.MapMode.READ_ONLY, 0, pool.size());
+            LongIntHashMap seen = new LongIntHashMap(count);
+            long expected = 0;
+            for (int id = 0; id < count; id++) {
+                long hash = idBuffer.getLong();
+                long offset = idBuffer.getInt() & 0xFFFFFFFFL;
+                hashes[id] = hash;
+                if (offset != expected) {
+                    report.error("Id " + id + " puts its word at " + offset + " of the pool, after the word before it at "
+                            + expected);
+                    return report;
+                }
+                if (offset + 4 > words.capacity() || offset + 4 + words.getInt((int) offset) > words.capacity()) {
+                    // Words reach the pool before their ids, so only a crash while adding them leaves this
+                    report.warn("Ids from " + id + " on point past the end of the pool, they are dropped when "
+                            + "the dictionary is opened");
+                    count = id;
+                    break;
+                }
+                int length = words.getInt((int) offset);
+                if (length < 0) {
+                    report.error("Word of id " + id + " has length " + length);
+                    return report;
+                }
+                ByteBuffer bytes = words.duplicate();
+                bytes.position((int) offset + 4).limit((int) offset + 4 + length);
+                try {
+                    CharBuffer word = StandardCharsets.UTF_8.newDecoder().decode(bytes);
+                    if (termHash.hash(word, 0, word.length()) != hash) {
+                        report.error("Word " + word + " of id " + id + " does not hash to its key " + hash);
+                    }
+                } catch (CharacterCodingException e) {
+                    report.error("Word of id " + id + " is not UTF-8");
+                }
+                if (seen.containsKey(hash)) {
+                    report.error("Ids " + seen.get(hash) + " and " + id + " share the key " + hash);
+                } else {
+                    seen.put(hash, id);
+                }
+                expected = offset + 4 + length;
+            }
+            if (count == hashes.length && words.capacity() > expected) {
+                report.warn((words.capacity() - expected) + " bytes after the last word of the pool are dropped "
+                        + "when the dictionary is opened");
+            }
+            checkTermTable(new File(directory, TermDictionary.TABLE_NAME), hashes, count, report);
+        } catch (IOException | RuntimeException e) {
+            report.error("Could not be read: " + e);
+        }
+        return report;
+    }
+
+    /**
+     * A table that matches the ids is used as it is, so every id has to be in it once, where probing for its key
+     * finds it. Any other table is built again when the dictionary is opened
+     */
+    private static void checkTermTable(File f, long[] hashes, int count, Report report) throws IOException {
+        if (!f.exists()) {
+            return;
+        }
+        ByteBuffer table = ByteBuffer.wrap(Files.readAllBytes(f.toPath()));
+        report.bytes += table.capacity();
+        if (table.capacity() < TermDictionary.TABLE_HEADER_SIZE || table.getInt() != TermDictionary.TABLE_MAGIC
+                || table.getInt() != count) {
+            report.warn("Table does not match the ids, it is built again when the dictionary is opened");
+            return;
+        }
+        int capacity = table.getInt();
+        if (Integer.bitCount(capacity) != 1 || table.remaining() != 4L * capacity) {
+            report.warn("Table has the wrong size, it is built again when the dictionary is opened");
+            return;
+        }
+        int[] slots = new int[capacity];
+        table.asIntBuffer().get(slots);
+        BitSet placed = new BitSet(count);
+        for (int slot = 0; slot < capacity; slot++) {
+            int id = slots[slot] - 1;
+            if (id < -1 || id >= count) {
+                report.error("Table slot " + slot + " holds id " + id + ", the dictionary has " + count);
+            } else if (id >= 0 && placed.get(id)) {
+                report.error("Table holds id " + id + " more than once");
+            } else if (id >= 0) {
+                placed.set(id);
+            }
+        }
+        int mask = capacity - 1;
+        for (int id = 0; id < count; id++) {
+            long hash = hashes[id];
+            int slot = (int) (hash ^ (hash >>> 32)) & mask;
+            int probes = 0;
+            while (slots[slot] != 0 && slots[slot] != id + 1 && probes++ < capacity) {
+                slot = (slot + 1) & mask;
+            }
+            if (slots[slot] != id + 1) {
+                report.error("Table does not lead key " + hash + " to id " + id);
+            }
+        }
+    }
+
+    /**
+     * @param f          A graph node file
+     * @param graphNames The names of every graph node file
+     * @return The problems found in the file
+     */
+    public static Report checkGraphNode(File f, Set<String> graphNames) {
+        Report report = new Report(f.getPath());
+        try {
+            byte[] bytes = Files.readAllBytes(f.toPath());
+            report.bytes = bytes.length;
+            GraphNode node = new GraphNode(bytes);
+            if (bytes.length == node.toBytes().length) {
+                report.warn("Was written before checksums");
+            }
+            if (!f.getName().equals(node.getUrl())) {
+                report.error("Holds the node of " + node.getUrl());
+            }
+            String[] children = node.getChildren();
+            double[] similarities = node.getChildSimilarity();
+            Set<String> seen = new HashSet<>();
+            for (int i = 0; i < children.length; i++) {
+                if (children[i].equals(node.getUrl())) {
+                    report.error("Links to itself");
+                } else if (!seen.add(children[i])) {
+                    report.error("Links to " + children[i] + " more than once");
+                } else if (!graphNames.contains(children[i])) {
+                    report.error("Links to " + children[i] + ", which is not in the graph");
+                }
+                double similarity = similarities[i];
+                if (!Double.isFinite(similarity) || similarity < -SIMILARITY_TOLERANCE) {
+                    report.error("Link to " + children[i] + " has similarity " + similarity);
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            report.error("Could not be read: " + e);
+        }
+        return report;
+    }
+
+    /**
+     * @param f          A cluster file
+     * @param graphNames The names of every graph node file, the documents clusters refer to
+     * @return The problems found in the file
+     */
+    public static Report checkCluster(File f, Set<String> graphNames) {
+        Report report = new Report(f.getPath());
+        try {
+            byte[] bytes = Files.readAllBytes(f.toPath());
+            report.bytes = bytes.length;
+            Cluster cluster = new Cluster(bytes);
+            if (bytes.length == cluster.toBytes().length) {
+                report.warn("Was written before checksums");
+            }
+            if (!f.getName().equals(String.valueOf(cluster.getClusterId()))) {
+                report.error("Holds cluster " + cluster.getClusterId());
+            }
+            List<String> documents = new ArrayList<>(Arrays.asList(cluster.getMembers()));
+            documents.add(cluster.getMedioid());
+            Set<String> seen = new HashSet<>();
+            for (String document : documents) {
+                if (!seen.add(document)) {
+                    report.error(document + " is in the cluster more than once");
+                } else if (!graphNames.isEmpty() && !graphNames.contains(document)) {
+                    report.error(document + " is not in the graph");
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            report.error("Could not be read: " + e);
+        }
+        return report;
+    }
+}
@@ -1,4 +1,6 @@
 package com.nesposi3;
+import com.nesposi3.Utils.ChecksumUtils;
+
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
@@ -63,6 +65,7 @@ public class GraphNode implements Comparable<GraphNode>{
             this.children[i] = new String(nameBytes);
             this.childSimilarity[i] = buffer.getDouble();
         }
+        ChecksumUtils.checkTrailer(buffer);
     }
     public byte[] toBytes(){
         int totalSize = 12;
@@ -115,7 +118,7 @@ public class GraphNode implements Comparable<GraphNode>{
         f.createNewFile();
         RandomAccessFile x = new RandomAccessFile(f,"rw");
         x.seek(0);
-        x.write(this.toBytes());
+        x.write(ChecksumUtils.seal(this.toBytes()));
         x.close();
     }
     public static GraphNode getNodeFromDisk(String fileName, boolean isMedioid) throws IOException {
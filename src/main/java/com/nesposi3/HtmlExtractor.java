@@ -0,0 +1,559 @@
+package com.nesposi3;
+
+import org.jsoup.nodes.Entities;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Set;
+
+/**
+ * Reads html once through a fixed size buffer and hands the visible text, the links and the title to a handler
+ * as it goes, without building a tree of the page. Memory stays at a few buffers however large the page is.
+ *
+ * The text comes out as Jsoup's Document.text() would give it, so words are split as before: entities decoded,
+ * runs of whitespace collapsed to one space except in pre, textarea and title elements, a space around
+ * block elements and none at either end. Script and style contents, comments and doctypes are skipped.
+ */
+public class HtmlExtractor {
+    private static final int BUFFER_CHARS = 8192;
+    // Longer tag names and attribute values are cut, the rest of them is still read past
+    private static final int MAX_NAME_CHARS = 32;
+    private static final int MAX_VALUE_CHARS = 4096;
+    // Elements that start on a new line, so their text is never joined to the text around them. Line breaks are not
+    // blocks but start a new line too
+    private static final Set<String> BLOCK_TAGS = Set.of(
+            "html", "head", "body", "frameset", "script", "noscript", "style", "meta", "link", "title", "frame",
+            "noframes", "section", "nav", "aside", "hgroup", "header", "footer", "p", "h1", "h2", "h3", "h4", "h5",
+            "h6", "ul", "ol", "pre", "div", "blockquote", "hr", "address", "figure", "figcaption", "form",
+            "fieldset", "ins", "del", "dl", "dt", "dd", "li", "table", "caption", "thead", "tfoot", "tbody",
+            "colgroup", "col", "tr", "th", "td", "video", "audio", "canvas", "details", "menu", "plaintext",
+            "template", "article", "main", "svg", "math", "center", "dir", "applet", "marquee", "listing");
+
+    private final Reader reader;
+    private final Handler handler;
+    private final char[] in = new char[BUFFER_CHARS];
+    private int inPosition;
+    private int inLength;
+    private boolean ended;
+    // Chars read ahead and given back, the last one is read first
+    private final char[] pushback = new char[MAX_NAME_CHARS + 2];
+    private int pushed;
+    private final char[] out = new char[BUFFER_CHARS];
+    private int outLength;
+    // Whitespace written after the last visible char, only passed on once more text follows
+    private final StringBuilder heldWhitespace = new StringBuilder();
+    private boolean wroteText;
+    private boolean lastSpace;
+    // Set after a block element closes, until the next tag or text
+    private boolean blockEnded;
+    // The number of open elements whose whitespace is kept as it is
+    private int preserve;
+    // The text of the first title element while it is read
+    private StringBuilder title;
+    private boolean sawTitle;
+    // The chars read while checking for a closing tag
+    private final char[] closing = new char[MAX_NAME_CHARS + 1];
+    private final StringBuilder name = new StringBuilder();
+    private final StringBuilder attribute = new StringBuilder();
+    private final StringBuilder value = new StringBuilder();
+    private final StringBuilder entityChars = new StringBuilder();
+
+    /**
+     * What is found in the html, in the order it appears
+     */
+    public interface Handler {
+        /**
+         * @param chars A buffer holding the next piece of the text, only valid during the call
+         * @param from  The first char of the piece
+         * @param to    The char after the piece
+         */
+        void text(char[] chars, int from, int to);
+
+        /**
+         * @param href The href of an a element, entities decoded
+         */
+        default void link(String href) {
+        }
+
+        /**
+         * @param title The text of the page's first title element, whitespace collapsed
+         */
+        default void title(String title) {
+        }
+    }
+
+    private HtmlExtractor(Reader reader, Handler handler) {
+        this.reader = reader;
+        this.handler = handler;
+    }
+
+    /**
+     * Reads the html to its end. The reader is not closed
+     *
+     * @param reader  The html
+     * @param handler The handler of its text and links
+     * @throws IOException If the html could not be read
+     */
+    public static void extract(Reader reader, Handler handler) throws IOException {
+        new HtmlExtractor(reader, handler).run();
+    }
+
+    private void run() throws IOException {
+        int c;
+        while ((c = read()) != -1) {
+            if (c == '<') {
+                markup();
+            } else if (c == '&') {
+                text(entity(false));
+            } else {
+                text((char) c);
+            }
+        }
+        if (title != null) {
+            endTitle();
+        }
+        if (outLength > 0) {
+            handler.text(out, 0, outLength);
+        }
+    }
+
+    private int read() throws IOException {
+        if (pushed > 0) {
+            return pushback[--pushed];
+        }
+        if (inPosition == inLength) {
+            inLength = reader.read(in, 0, in.length);
+            inPosition = 0;
+            if (inLength <= 0) {
+                inLength = 0;
+                ended = true;
+                return -1;
+            }
+        }
+        return in[inPosition++];
+    }
+
+    private void unread(int c) {
+        if (c != -1) {
+            pushback[pushed++] = (char) c;
+        }
+    }
+
+    private int peek() throws IOException {
+        int c = read();
+        unread(c);
+        return c;
+    }
+
+    private static boolean isWhitespace(int c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\r' || c == '\f' || c == '\u00a0';
+    }
+
+    private static boolean isLetter(int c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+    }
+
+    private void text(String chars) {
+        for (int i = 0; i < chars.length(); i++) {
+            text(chars.charAt(i));
+        }
+    }
+
+    /**
+     * Adds a char of the page's text, collapsing whitespace outside elements that keep it
+     */
+    private void text(char c) {
+        if (title != null) {
+            title.append(c);
+        }
+        if (blockEnded) {
+            // Text right after a block element is kept apart from it
+            blockEnded = false;
+            if (!lastSpace) {
+                emit(' ');
+            }
+        }
+        if (preserve > 0) {
+            emit(c);
+        } else if (isWhitespace(c)) {
+            if (!lastSpace) {
+                emit(' ');
+            }
+        } else if (c != '\u200B' && c != '\u00AD') {
+            // Zero width spaces and soft hyphens are dropped
+            emit(c);
+        }
+    }
+
+    /**
+     * Writes a char of the text. Whitespace is held back until text follows it, so the text never starts or ends with it
+     */
+    private void emit(char c) {
+        lastSpace = c == ' ';
+        if (c <= ' ') {
+            if (wroteText) {
+                heldWhitespace.append(c);
+            }
+            return;
+        }
+        for (int i = 0; i < heldWhitespace.length(); i++) {
+            put(heldWhitespace.charAt(i));
+        }
+        heldWhitespace.setLength(0);
+        put(c);
+        wroteText = true;
+    }
+
+    private void put(char c) {
+        out[outLength++] = c;
+        if (outLength == out.length) {
+            handler.text(out, 0, outLength);
+            outLength = 0;
+        }
+    }
+
+    /**
+     * Keeps the text of a block element or line break apart from the text before it
+     */
+    private void blockStart() {
+        if (!lastSpace) {
+            emit(' ');
+        }
+    }
+
+    /**
+     * Handles what follows a '<': a tag, a comment or doctype, or a '<' that is just text
+     */
+    private void markup() throws IOException {
+        int c = peek();
+        if (c != '!' && c != '?' && c != '/' && !isLetter(c)) {
+            text('<');
+            return;
+        }
+        blockEnded = false;
+        if (c == '!') {
+            read();
+            c = read();
+            if (c == '-') {
+                int next = read();
+                if (next == '-') {
+                    skipComment();
+                    return;
+                }
+                unread(next);
+            } else {
+                unread(c);
+            }
+            skipPast('>');
+        } else if (c == '?') {
+            skipPast('>');
+        } else if (c == '/') {
+            read();
+            if (isLetter(peek())) {
+                readName(name);
+                skipPast('>');
+                closeTag(name.toString());
+            } else {
+                skipPast('>');
+            }
+        } else {
+            readName(name);
+            String tag = name.toString();
+            String href = readAttributes(tag.equals("a"));
+            // A tag cut off by the end of the html is dropped
+            if (!ended) {
+                openTag(tag, href);
+            }
+        }
+    }
+
+    private void openTag(String tag, String href) throws IOException {
+        if (BLOCK_TAGS.contains(tag) || tag.equals("br")) {
+            blockStart();
+        }
+        if (href != null) {
+            handler.link(href);
+        }
+        switch (tag) {
+            case "script":
+            case "style":
+                rawText(tag, false);
+                blockEnded = true;
+                break;
+            case "title":
+                if (!sawTitle) {
+                    sawTitle = true;
+                    title = new StringBuilder();
+                }
+                preserve++;
+                rawText(tag, true);
+                preserve--;
+                if (title != null) {
+                    endTitle();
+                }
+                blockEnded = true;
+                break;
+            case "textarea":
+                preserve++;
+                skipNewline();
+                rawText(tag, true);
+                preserve--;
+                break;
+            case "pre":
+                preserve++;
+                skipNewline();
+                break;
+            case "plaintext":
+                preserve++;
+                break;
+            case "listing":
+                skipNewline();
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Skips a line break right after a start tag, which is not part of the element's text
+     */
+    private void skipNewline() throws IOException {
+        int c = read();
+        if (c != '\n') {
+            unread(c);
+        }
+    }
+
+    private void closeTag(String tag) {
+        if (tag.equals("br")) {
+            // Read as a line break, as browsers do
+            blockStart();
+        } else if (BLOCK_TAGS.contains(tag)) {
+            blockEnded = true;
+        }
+        if ((tag.equals("pre") || tag.equals("plaintext")) && preserve > 0) {
+            preserve--;
+        }
+    }
+
+    private void endTitle() {
+        String text = title.toString().replaceAll("[ \\t\\n\\r\\f\\u00a0]+", " ").replaceAll("[\\u200B\\u00AD]", "");
+        handler.title(text.trim());
+        title = null;
+    }
+
+    /**
+     * Reads the contents of an element that holds no tags, up to and past its closing tag
+     *
+     * @param tag  The element
+     * @param keep True if the contents are text, false to skip them
+     */
+    private void rawText(String tag, boolean keep) throws IOException {
+        int c;
+        while ((c = read()) != -1) {
+            if (c == '<' && closes(tag)) {
+                skipPast('>');
+                return;
+            }
+            if (!keep) {
+                continue;
+            }
+            if (c == '&') {
+                text(entity(false));
+            } else {
+                text((char) c);
+            }
+        }
+    }
+
+    /**
+     * Checks whether a '<' just read starts the closing tag of an element, giving back what it read if not
+     */
+    private boolean closes(String tag) throws IOException {
+        char[] seen = closing;
+        int count = 0;
+        boolean matches = true;
+        int c = read();
+        if (c != '/') {
+            unread(c);
+            return false;
+        }
+        seen[count++] = '/';
+        for (int i = 0; i < tag.length() && matches; i++) {
+            c = read();
+            if (c == -1) {
+                matches = false;
+            } else {
+                seen[count++] = (char) c;
+                matches = Character.toLowerCase((char) c) == tag.charAt(i);
+            }
+        }
+        if (matches) {
+            c = peek();
+            matches = c == -1 || c == '>' || c == '/' || isWhitespace(c);
+        }
+        if (!matches) {
+            while (count > 0) {
+                unread(seen[--count]);
+            }
+        }
+        return matches;
+    }
+
+    private void skipComment() throws IOException {
+        int dashes = 0;
+        int c;
+        while ((c = read()) != -1) {
+            if (c == '>' && dashes >= 2) {
+                return;
+            }
+            dashes = c == '-' ? dashes + 1 : 0;
+        }
+    }
+
+    private void skipPast(char end) throws IOException {
+        int c;
+        do {
+            c = read();
+        } while (c != -1 && c != end);
+    }
+
+    /**
+     * Reads a tag or attribute name in lower case, up to the first char that cannot be in one
+     */
+    private void readName(StringBuilder into) throws IOException {
+        into.setLength(0);
+        int c;
+        while ((c = read()) != -1) {
+            if (isWhitespace(c) || c == '>' || c == '/' || c == '=') {
+                unread(c);
+                return;
+            }
+            if (into.length() < MAX_NAME_CHARS) {
+                into.append(Character.toLowerCase((char) c));
+            }
+        }
+    }
+
+    /**
+     * Reads the attributes of an opening tag and the '>' ending it
+     *
+     * @param wantHref True to return the href attribute
+     * @return The value of the href attribute, or null if it was not wanted or not there
+     */
+    private String readAttributes(boolean wantHref) throws IOException {
+        String href = null;
+        while (true) {
+            int c = read();
+            while (isWhitespace(c) || c == '/') {
+                c = read();
+            }
+            if (c == '>' || c == -1) {
+                return href;
+            }
+            unread(c);
+            readName(attribute);
+            if (attribute.length() == 0) {
+                // A stray '=' where a name should be
+                read();
+                continue;
+            }
+            c = read();
+            while (isWhitespace(c)) {
+                c = read();
+            }
+            if (c != '=') {
+                unread(c);
+                continue;
+            }
+            readValue();
+            if (wantHref && href == null && attribute.toString().equals("href")) {
+                href = value.toString();
+            }
+        }
+    }
+
+    private void readValue() throws IOException {
+        value.setLength(0);
+        int c = read();
+        while (isWhitespace(c)) {
+            c = read();
+        }
+        int quote = c == '"' || c == '\'' ? c : -1;
+        if (quote == -1) {
+            unread(c);
+        }
+        while ((c = read()) != -1) {
+            if (quote != -1 ? c == quote : isWhitespace(c) || c == '>') {
+                if (quote == -1) {
+                    unread(c);
+                }
+                return;
+            }
+            if (c == '&') {
+                String decoded = entity(true);
+                if (value.length() + decoded.length() <= MAX_VALUE_CHARS) {
+                    value.append(decoded);
+                }
+            } else if (value.length() < MAX_VALUE_CHARS) {
+                value.append((char) c);
+            }
+        }
+    }
+
+    /**
+     * Decodes the entity after an '&'
+     *
+     * @param inAttribute True if the entity is in an attribute value
+     * @return The chars of the entity, or the text read if it was not one
+     */
+    private String entity(boolean inAttribute) throws IOException {
+        StringBuilder read = entityChars;
+        read.setLength(0);
+        read.append('&');
+        int c = read();
+        if (c == '#') {
+            read.append('#');
+            c = read();
+            int radix = 10;
+            if (c == 'x' || c == 'X') {
+                read.append((char) c);
+                radix = 16;
+                c = read();
+            }
+            int codePoint = 0;
+            int digits = 0;
+            while (c != -1 && Character.digit(c, radix) >= 0) {
+                read.append((char) c);
+                // Anything past the last code point stays past it
+                codePoint = Math.min(codePoint * radix + Character.digit(c, radix), Character.MAX_CODE_POINT + 1);
+                digits++;
+                c = read();
+            }
+            if (c != ';' || digits == 0) {
+                unread(c);
+            }
+            if (digits == 0) {
+                return read.toString();
+            }
+            if (!Character.isValidCodePoint(codePoint)
+                    || (codePoint >= Character.MIN_SURROGATE && codePoint <= Character.MAX_SURROGATE)) {
+                return "\uFFFD";
+            }
+            return new String(Character.toChars(codePoint));
+        }
+        while (c != -1 && (isLetter(c) || (c >= '0' && c <= '9')) && read.length() <= MAX_NAME_CHARS) {
+            read.append((char) c);
+            c = read();
+        }
+        String entityName = read.substring(1);
+        boolean terminated = c == ';';
+        // The entities of HTML 4 are still read without their ';', except where an attribute value goes on
+        boolean decodes = terminated ? Entities.isNamedEntity(entityName)
+                : Entities.isBaseNamedEntity(entityName) && !(inAttribute && (c == '=' || c == '-' || c == '_'));
+        if (!decodes || !terminated) {
+            unread(c);
+        }
+        return decodes ? Entities.getByName(entityName) : read.toString();
+    }
+}
@@ -0,0 +1,102 @@
+package com.nesposi3;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * What is needed of a web page once it is extracted from its html: its title, its text and the links to follow.
+ * Only these are kept, so a page costs its text instead of the tree Jsoup would build of it.
+ */
+public class HtmlPage implements HtmlExtractor.Handler {
+    private final Pattern linkPattern;
+    private final int maxLinks;
+    private final StringBuilder text = new StringBuilder();
+    private final List<String> links = new ArrayList<>();
+    private String title = "";
+
+    /**
+     * @param linkPattern The links to keep, matched against their href, or null to keep every link
+     * @param maxLinks    The number of links to keep
+     */
+    public HtmlPage(Pattern linkPattern, int maxLinks) {
+        this.linkPattern = linkPattern;
+        this.maxLinks = maxLinks;
+    }
+
+    /**
+     * @param html        The html of the page
+     * @param linkPattern The links to keep, or null to keep every link
+     * @param maxLinks    The number of links to keep
+     * @return The page
+     */
+    public static HtmlPage fromHtml(String html, Pattern linkPattern, int maxLinks) {
+        HtmlPage page = new HtmlPage(linkPattern, maxLinks);
+        try (Reader reader = new StringReader(html)) {
+            HtmlExtractor.extract(reader, page);
+        } catch (IOException e) {
+            // A StringReader does not fail
+            throw new IllegalStateException(e);
+        }
+        return page;
+    }
+
+    /**
+     * Reads the page from a UTF-8 html file, never holding more than a buffer of the file in memory
+     *
+     * @param file        The html file
+     * @param linkPattern The links to keep, or null to keep every link
+     * @param maxLinks    The number of links to keep
+     * @return The page
+     * @throws IOException If the file could not be read
+     */
+    public static HtmlPage fromFile(File file, Pattern linkPattern, int maxLinks) throws IOException {
+        HtmlPage page = new HtmlPage(linkPattern, maxLinks);
+        try (Reader reader = new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8)) {
+            HtmlExtractor.extract(reader, page);
+        }
+        return page;
+    }
+
+    @Override
+    public void text(char[] chars, int from, int to) {
+        text.append(chars, from, to - from);
+    }
+
+    @Override
+    public void link(String href) {
+        if (links.size() < maxLinks && (linkPattern == null || linkPattern.matcher(href).matches())) {
+            links.add(href);
+        }
+    }
+
+    @Override
+    public void title(String title) {
+        this.title = title;
+    }
+
+    public String getTitle() {
+        return title;
+    }
+
+    /**
+     * @return The visible text of the page, as Jsoup's Document.text() gives it
+     */
+    public String getText() {
+        return text.toString();
+    }
+
+    /**
+     * @return The hrefs of the links kept, in the order they appear
+     */
+    public List<String> getLinks() {
+        return links;
+    }
+}
@@ -0,0 +1,112 @@
+package com.nesposi3;
+
+/**
+ * Settings for an IngestPipeline: the number of threads of every stage and the size of the queues between them.
+ * Fetching waits on the network and gets more threads than there are cores, parsing and tokenizing get a thread
+ * per core, and pages are persisted by a single thread since the document store appends to one segment at a time.
+ */
+public class IngestConfig {
+    private static final int CORES = Runtime.getRuntime().availableProcessors();
+
+    private int fetchThreads = 4 * CORES;
+    private int parseThreads = CORES;
+    private int tokenizeThreads = CORES;
+    private int aggregateThreads = Math.max(1, CORES / 2);
+    private int persistThreads = 1;
+    private int queueCapacity = 64;
+
+    /**
+     * @return A config with the default threads per stage and queue size
+     */
+    public static IngestConfig defaults() {
+        return new IngestConfig();
+    }
+
+    /**
+     * @param fetchThreads The number of pages downloaded or read from the html cache at once
+     * @return this
+     */
+    public IngestConfig fetchThreads(int fetchThreads) {
+        this.fetchThreads = checkThreads(fetchThreads);
+        return this;
+    }
+
+    /**
+     * @param parseThreads The number of pages parsed at once
+     * @return this
+     */
+    public IngestConfig parseThreads(int parseThreads) {
+        this.parseThreads = checkThreads(parseThreads);
+        return this;
+    }
+
+    /**
+     * @param tokenizeThreads The number of pages split into words and hashed at once
+     * @return this
+     */
+    public IngestConfig tokenizeThreads(int tokenizeThreads) {
+        this.tokenizeThreads = checkThreads(tokenizeThreads);
+        return this;
+    }
+
+    /**
+     * @param aggregateThreads The number of pages whose hashes are counted into term vectors at once
+     * @return this
+     */
+    public IngestConfig aggregateThreads(int aggregateThreads) {
+        this.aggregateThreads = checkThreads(aggregateThreads);
+        return this;
+    }
+
+    /**
+     * @param persistThreads The number of pages written to the document store at once
+     * @return this
+     */
+    public IngestConfig persistThreads(int persistThreads) {
+        this.persistThreads = checkThreads(persistThreads);
+        return this;
+    }
+
+    /**
+     * @param queueCapacity The number of pages waiting in front of each stage before the stage before it blocks
+     * @return this
+     */
+    public IngestConfig queueCapacity(int queueCapacity) {
+        if (queueCapacity < 1) {
+            throw new IllegalArgumentException("Queue capacity must be at least 1: " + queueCapacity);
+        }
+        this.queueCapacity = queueCapacity;
+        return this;
+    }
+
+    private static int checkThreads(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("A stage needs at least 1 thread: " + threads);
+        }
+        return threads;
+    }
+
+    public int getFetchThreads() {
+        return fetchThreads;
+    }
+
+    public int getParseThreads() {
+        return parseThreads;
+    }
+
+    public int getTokenizeThreads() {
+        return tokenizeThreads;
+    }
+
+    public int getAggregateThreads() {
+        return aggregateThreads;
+    }
+
+    public int getPersistThreads() {
+        return persistThreads;
+    }
+
+    public int getQueueCapacity() {
+        return queueCapacity;
+    }
+}
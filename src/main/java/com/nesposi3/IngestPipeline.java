@@ -0,0 +1,371 @@
+package com.nesposi3;
+
+import com.nesposi3.Utils.CacheUtils;
+import com.nesposi3.Utils.TokenizerUtils;
+import java.io.IOException;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Pattern;
+
+/**
+ * Ingests web pages into the document store in five stages, each with its own threads:
+ * fetch downloads a page or reads it from the html cache, parse extracts its text and collects its links,
+ * tokenize splits its text into words, hashes them and adds new ones to the term dictionary, aggregate counts the hashes into a term vector,
+ * and persist writes the vector to the store.
+ *
+ * Stages are connected by bounded queues. A stage whose queue is full blocks the stage before it,
+ * so a slow parser or disk holds back fetching instead of piling pages up in memory.
+ * Every stage counts the pages it handled and the time its threads spent working and blocked on the next stage.
+ * If any page fails, the pipeline stops taking new pages, drains what is in flight and throws the failure.
+ */
+public class IngestPipeline {
+    // Put in a queue once per thread of its stage when nothing more will come
+    private static final Page END = new Page(null, false);
+
+    private final IngestConfig config;
+    private final Pattern linkPattern;
+    private final int linksPerPage;
+    private final Fetcher fetcher;
+    private final SegmentStore store;
+    private final TermDictionary dictionary;
+    private final StageStats[] stats;
+    private long elapsedNanos;
+
+    /**
+     * A page on its way through the stages, each stage fills in what the next one needs and drops what it used
+     */
+    private static class Page {
+        final String url;
+        final boolean collectLinks;
+        String html;
+        String text;
+        long[] hashes;
+        SortedTerms terms;
+
+        Page(String url, boolean collectLinks) {
+            this.url = url;
+            this.collectLinks = collectLinks;
+        }
+    }
+
+    /**
+     * Where the fetch stage gets the html of a page
+     */
+    public interface Fetcher {
+        /**
+         * @param url The url of the page
+         * @return The html of the page
+         */
+        String fetch(String url) throws IOException, ParseException;
+    }
+
+    /**
+     * What one stage does to a page
+     */
+    private interface Work {
+        /**
+         * @param page The page
+         * @return The page to pass to the next stage, or null to drop it
+         */
+        Page apply(Page page) throws IOException, ParseException;
+    }
+
+    /**
+     * The counters of one stage, kept across runs
+     */
+    private static class StageStats {
+        final String name;
+        final int threads;
+        final LongAdder pages = new LongAdder();
+        final LongAdder busyNanos = new LongAdder();
+        final LongAdder blockedNanos = new LongAdder();
+
+        StageStats(String name, int threads) {
+            this.name = name;
+            this.threads = threads;
+        }
+    }
+
+    /**
+     * A pipeline that downloads pages through the html cache, into the shared document store and term dictionary
+     *
+     * @param config       The threads and queue sizes of the stages
+     * @param linkPattern  The links of a page to collect, matched against their href
+     * @param linksPerPage The number of links to collect from a page
+     * @throws IOException If the store or dictionary could not be opened
+     */
+    public IngestPipeline(IngestConfig config, Pattern linkPattern, int linksPerPage) throws IOException {
+        this(config, linkPattern, linksPerPage, CacheUtils::getWebsiteHtml, CacheUtils.documentStore(),
+                CacheUtils.termDictionary());
+    }
+
+    /**
+     * @param config       The threads and queue sizes of the stages
+     * @param linkPattern  The links of a page to collect, matched against their href
+     * @param linksPerPage The number of links to collect from a page
+     * @param fetcher      Where pages are fetched from
+     * @param store        The store the term vectors are written to
+     * @param dictionary   The dictionary new words are added to, its hash must be the store's
+     */
+    public IngestPipeline(IngestConfig config, Pattern linkPattern, int linksPerPage, Fetcher fetcher,
+                          SegmentStore store, TermDictionary dictionary) {
+        this.config = config;
+        this.linkPattern = linkPattern;
+        this.linksPerPage = linksPerPage;
+        this.fetcher = fetcher;
+        this.store = store;
+        this.dictionary = dictionary;
+        this.stats = new StageStats[]{
+                new StageStats("fetch", config.getFetchThreads()),
+                new StageStats("parse", config.getParseThreads()),
+                new StageStats("tokenize", config.getTokenizeThreads()),
+                new StageStats("aggregate", config.getAggregateThreads()),
+                new StageStats("persist", config.getPersistThreads())
+        };
+    }
+
+    /**
+     * Ingests the given pages, collecting their links, then every page they link to.
+     * A page linked from several others, or that is itself one of the given pages, is only ingested once
+     *
+     * @param roots The pages to start from
+     * @throws IOException    If a page could not be fetched or stored
+     * @throws ParseException If the modification date of a page could not be read
+     */
+    public void ingest(List<String> roots) throws IOException, ParseException {
+        List<String> links = run(roots, true);
+        LinkedHashSet<String> linked = new LinkedHashSet<>(links);
+        linked.removeAll(roots);
+        run(new ArrayList<>(linked), false);
+    }
+
+    /**
+     * Ingests every page, returning once all of them are in the store
+     *
+     * @param urls         The pages to ingest
+     * @param collectLinks True to collect the links of every page
+     * @return The links collected, pages in no particular order but each page's links in the order they appear
+     * @throws IOException    If a page could not be fetched or stored
+     * @throws ParseException If the modification date of a page could not be read
+     */
+    public List<String> run(List<String> urls, boolean collectLinks) throws IOException, ParseException {
+        long start = System.nanoTime();
+        Queue<List<String>> links = new ConcurrentLinkedQueue<>();
+        AtomicReference<Exception> failure = new AtomicReference<>();
+        // Words are hashed with the function the store's keys come from
+        TermHash termHash = store.getTermHash();
+        Work[] work = {
+                this::fetch,
+                page -> parse(page, links),
+                page -> tokenize(page, termHash, dictionary),
+                this::aggregate,
+                this::persist
+        };
+        // Built back to front, so every stage knows the one after it
+        Stage next = null;
+        Stage[] stages = new Stage[work.length];
+        for (int s = work.length - 1; s >= 0; s--) {
+            stages[s] = new Stage(stats[s], work[s], next, failure);
+            next = stages[s];
+        }
+        for (Stage stage : stages) {
+            stage.start();
+        }
+        try {
+            for (String url : urls) {
+                if (failure.get() != null) {
+                    break;
+                }
+                stages[0].put(new Page(url, collectLinks), null);
+            }
+            stages[0].finish();
+            for (Stage stage : stages) {
+                stage.join();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            failure.compareAndSet(null, new IOException("Interrupted while ingesting", e));
+            for (Stage stage : stages) {
+                stage.interrupt();
+            }
+        }
+        elapsedNanos += System.nanoTime() - start;
+        Exception e = failure.get();
+        if (e instanceof IOException) {
+            throw (IOException) e;
+        } else if (e instanceof ParseException) {
+            throw (ParseException) e;
+        } else if (e != null) {
+            throw (RuntimeException) e;
+        }
+        List<String> collected = new ArrayList<>();
+        for (List<String> pageLinks : links) {
+            collected.addAll(pageLinks);
+        }
+        return collected;
+    }
+
+    private Page fetch(Page page) throws IOException, ParseException {
+        page.html = fetcher.fetch(page.url);
+        return page;
+    }
+
+    private Page parse(Page page, Queue<List<String>> links) {
+        HtmlPage parsed = HtmlPage.fromHtml(page.html, linkPattern, page.collectLinks ? linksPerPage : 0);
+        page.html = null;
+        if (page.collectLinks) {
+            List<String> found = new ArrayList<>();
+            for (String link : parsed.getLinks()) {
+                found.add(CacheUtils.BASE_URI + link);
+            }
+            links.add(found);
+        }
+        page.text = parsed.getText();
+        return page;
+    }
+
+    private Page tokenize(Page page, TermHash termHash, TermDictionary dictionary) throws IOException {
+        page.hashes = TokenizerUtils.hashWords(page.text, termHash, dictionary);
+        page.text = null;
+        return page;
+    }
+
+    private Page aggregate(Page page) {
+        page.terms = CacheUtils.countHashes(page.hashes);
+        page.hashes = null;
+        return page;
+    }
+
+    private Page persist(Page page) throws IOException {
+        store.update(CacheUtils.generateFileName(page.url), page.terms);
+        return null;
+    }
+
+    /**
+     * @return One line per stage with the pages it handled, its throughput over the time spent in run,
+     * and the share of its threads' time spent working and blocked on the next stage
+     */
+    public String stats() {
+        StringBuilder builder = new StringBuilder();
+        double seconds = Math.max(elapsedNanos, 1) / 1e9;
+        for (StageStats stage : stats) {
+            double capacity = stage.threads * (double) Math.max(elapsedNanos, 1);
+            builder.append(String.format("%-9s %6d pages %8.1f pages/s %3d threads %5.1f%% busy %5.1f%% blocked%n",
+                    stage.name, stage.pages.sum(), stage.pages.sum() / seconds, stage.threads,
+                    100 * stage.busyNanos.sum() / capacity, 100 * stage.blockedNanos.sum() / capacity));
+        }
+        return builder.toString();
+    }
+
+    /**
+     * The threads of one stage and the queue in front of it
+     */
+    private class Stage {
+        private final StageStats stats;
+        private final Work work;
+        private final Stage next;
+        private final AtomicReference<Exception> failure;
+        private final BlockingQueue<Page> queue;
+        private final Thread[] threads;
+        private final AtomicInteger running;
+
+        Stage(StageStats stats, Work work, Stage next, AtomicReference<Exception> failure) {
+            this.stats = stats;
+            this.work = work;
+            this.next = next;
+            this.failure = failure;
+            this.queue = new ArrayBlockingQueue<>(config.getQueueCapacity());
+            this.threads = new Thread[stats.threads];
+            this.running = new AtomicInteger(threads.length);
+            for (int i = 0; i < threads.length; i++) {
+                threads[i] = new Thread(this::loop, "ingest-" + stats.name + "-" + i);
+                threads[i].setDaemon(true);
+            }
+        }
+
+        void start() {
+            for (Thread thread : threads) {
+                thread.start();
+            }
+        }
+
+        /**
+         * Queues a page, blocking while the queue is full
+         *
+         * @param page The page
+         * @param from The stats of the stage handing the page over, charged for the time spent blocked
+         */
+        void put(Page page, StageStats from) throws InterruptedException {
+            long start = System.nanoTime();
+            queue.put(page);
+            if (from != null) {
+                from.blockedNanos.add(System.nanoTime() - start);
+            }
+        }
+
+        /**
+         * Tells every thread of the stage that no more pages will come
+         */
+        void finish() throws InterruptedException {
+            for (int i = 0; i < threads.length; i++) {
+                queue.put(END);
+            }
+        }
+
+        void join() throws InterruptedException {
+            for (Thread thread : threads) {
+                thread.join();
+            }
+        }
+
+        void interrupt() {
+            for (Thread thread : threads) {
+                thread.interrupt();
+            }
+        }
+
+        private void loop() {
+            try {
+                while (true) {
+                    Page page = queue.take();
+                    if (page == END) {
+                        break;
+                    }
+                    // After a failure pages are only drained, so no stage blocks on a full queue
+                    if (failure.get() != null) {
+                        continue;
+                    }
+                    long start = System.nanoTime();
+                    Page out;
+                    try {
+                        out = work.apply(page);
+                    } catch (Exception e) {
+                        failure.compareAndSet(null, e);
+                        continue;
+                    } finally {
+                        stats.busyNanos.add(System.nanoTime() - start);
+                    }
+                    stats.pages.increment();
+                    if (out != null && next != null) {
+                        next.put(out, stats);
+                    }
+                }
+                // The last thread of a stage to finish passes the end on
+                if (running.decrementAndGet() == 0 && next != null) {
+                    next.finish();
+                }
+            } catch (InterruptedException e) {
+                failure.compareAndSet(null, new IOException("Interrupted while ingesting", e));
+            }
+        }
+    }
+}
@@ -0,0 +1,286 @@
+package com.nesposi3;
+
+import java.util.Arrays;
+
+/**
+ * A map from long keys to int values held in two primitive arrays, for counting term frequencies
+ * without boxing every key and count. Keys are placed by linear probing in a table that is kept at most
+ * three quarters full, so an entry costs 16 to 32 bytes instead of the 50 or more of a boxed HashMap entry.
+ *
+ * Every long is a valid key, so the empty slot marker 0 cannot be one. The entry of key 0 is kept outside the table.
+ * Looking up a missing key gives 0, as a term that is not in a document has a frequency of 0.
+ */
+public class LongIntHashMap {
+    private static final int MIN_CAPACITY = 16;
+
+    private long[] keys;
+    private int[] values;
+    private int size;
+    private int mask;
+    // Above this many entries in the table it is doubled
+    private int resizeAt;
+    private boolean hasZeroKey;
+    private int zeroValue;
+
+    /**
+     * What forEach does with each entry
+     */
+    public interface EntryConsumer {
+        void accept(long key, int value);
+    }
+
+    public LongIntHashMap() {
+        this(MIN_CAPACITY);
+    }
+
+    /**
+     * @param expectedSize The number of entries the map should hold before it grows
+     */
+    public LongIntHashMap(int expectedSize) {
+        int capacity = MIN_CAPACITY;
+        while (capacity * 3L / 4 < expectedSize) {
+            capacity *= 2;
+        }
+        allocate(capacity);
+    }
+
+    private void allocate(int capacity) {
+        this.keys = new long[capacity];
+        this.values = new int[capacity];
+        this.mask = capacity - 1;
+        this.resizeAt = capacity * 3 / 4;
+    }
+
+    /**
+     * @return The slot a key probes from
+     */
+    private int home(long key) {
+        // Fibonacci hashing, the top bits of the product depend on every bit of the key
+        return (int) ((key * 0x9E3779B97F4A7C15L) >>> 32) & mask;
+    }
+
+    /**
+     * @return The slot holding the key, or the empty slot where it would go
+     */
+    private int slot(long key) {
+        int slot = home(key);
+        while (keys[slot] != 0 && keys[slot] != key) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    /**
+     * @param key The key
+     * @return The value of the key, or 0 if it is not in the map
+     */
+    public int get(long key) {
+        return getOrDefault(key, 0);
+    }
+
+    /**
+     * @param key          The key
+     * @param defaultValue The value to return if the key is not in the map
+     * @return The value of the key, or the default if it is not in the map
+     */
+    public int getOrDefault(long key, int defaultValue) {
+        if (key == 0) {
+            return hasZeroKey ? zeroValue : defaultValue;
+        }
+        int slot = slot(key);
+        return keys[slot] != 0 ? values[slot] : defaultValue;
+    }
+
+    /**
+     * @param key The key
+     * @return True if the map holds the key
+     */
+    public boolean containsKey(long key) {
+        return key == 0 ? hasZeroKey : keys[slot(key)] != 0;
+    }
+
+    /**
+     * @param key   The key
+     * @param value The value to give it
+     * @return The value the key had, or 0 if it was not in the map
+     */
+    public int put(long key, int value) {
+        if (key == 0) {
+            int old = hasZeroKey ? zeroValue : 0;
+            if (!hasZeroKey) {
+                hasZeroKey = true;
+                size++;
+            }
+            zeroValue = value;
+            return old;
+        }
+        int slot = slot(key);
+        if (keys[slot] != 0) {
+            int old = values[slot];
+            values[slot] = value;
+            return old;
+        }
+        insert(slot, key, value);
+        return 0;
+    }
+
+    /**
+     * Adds to the value of a key, putting the key in the map with that value if it is not there
+     *
+     * @param key   The key
+     * @param delta The amount to add
+     * @return The new value of the key
+     */
+    public int merge(long key, int delta) {
+        if (key == 0) {
+            if (!hasZeroKey) {
+                hasZeroKey = true;
+                zeroValue = 0;
+                size++;
+            }
+            return zeroValue += delta;
+        }
+        int slot = slot(key);
+        if (keys[slot] != 0) {
+            return values[slot] += delta;
+        }
+        insert(slot, key, delta);
+        return delta;
+    }
+
+    /**
+     * @param key The key to count once more
+     * @return The new count of the key
+     */
+    public int increment(long key) {
+        return merge(key, 1);
+    }
+
+    /**
+     * Adds every value of another map to the value of its key in this one
+     *
+     * @param other The map to merge in
+     */
+    public void mergeAll(LongIntHashMap other) {
+        other.forEach(this::merge);
+    }
+
+    private void insert(int slot, long key, int value) {
+        keys[slot] = key;
+        values[slot] = value;
+        size++;
+        if (size - (hasZeroKey ? 1 : 0) > resizeAt) {
+            long[] oldKeys = keys;
+            int[] oldValues = values;
+            allocate(oldKeys.length * 2);
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] != 0) {
+                    int to = slot(oldKeys[i]);
+                    keys[to] = oldKeys[i];
+                    values[to] = oldValues[i];
+                }
+            }
+        }
+    }
+
+    /**
+     * @param key The key
+     * @return The value the key had, or 0 if it was not in the map
+     */
+    public int remove(long key) {
+        if (key == 0) {
+            if (!hasZeroKey) {
+                return 0;
+            }
+            hasZeroKey = false;
+            size--;
+            return zeroValue;
+        }
+        int slot = slot(key);
+        if (keys[slot] == 0) {
+            return 0;
+        }
+        int old = values[slot];
+        // Entries after the removed one that probed past its slot are shifted back, so no probe chain is broken
+        int hole = slot;
+        int next = (hole + 1) & mask;
+        while (keys[next] != 0) {
+            int home = home(keys[next]);
+            if (((next - home) & mask) >= ((next - hole) & mask)) {
+                keys[hole] = keys[next];
+                values[hole] = values[next];
+                hole = next;
+            }
+            next = (next + 1) & mask;
+        }
+        keys[hole] = 0;
+        size--;
+        return old;
+    }
+
+    /**
+     * Calls the consumer with every entry, in no particular order
+     *
+     * @param consumer The consumer
+     */
+    public void forEach(EntryConsumer consumer) {
+        if (hasZeroKey) {
+            consumer.accept(0, zeroValue);
+        }
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != 0) {
+                consumer.accept(keys[i], values[i]);
+            }
+        }
+    }
+
+    /**
+     * @return Every key of the map in ascending order
+     */
+    public long[] sortedKeys() {
+        long[] sorted = new long[size];
+        int count = 0;
+        if (hasZeroKey) {
+            sorted[count++] = 0;
+        }
+        for (long key : keys) {
+            if (key != 0) {
+                sorted[count++] = key;
+            }
+        }
+        Arrays.sort(sorted);
+        return sorted;
+    }
+
+    /**
+     * @return The entries of the map as a document vector, for maps of term frequencies
+     */
+    public SortedTerms toSortedTerms() {
+        long[] sorted = sortedKeys();
+        int[] frequencies = new int[sorted.length];
+        for (int i = 0; i < sorted.length; i++) {
+            frequencies[i] = get(sorted[i]);
+        }
+        return new SortedTerms(sorted, frequencies, sorted.length);
+    }
+
+    /**
+     * @return The number of entries
+     */
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Removes every entry, keeping the table at its size
+     */
+    public void clear() {
+        Arrays.fill(keys, 0);
+        size = 0;
+        hasZeroKey = false;
+    }
+}
@@ -1,8 +1,5 @@
 package com.nesposi3;
 
-import com.nesposi3.Utils.BTreeUtils;
-
-import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.Objects;
 
@@ -12,108 +9,35 @@ import static com.nesposi3.Utils.BTreeUtils.*;
  * Node objects are the Nodes of the Persistent B-Tree.
  * In this case, Nodes represent websites and store word information
  *
- * Nodes have a maximum size of 4096 bytes, so addresses must be at least 4096 apart
- *
- * Block Format in bytes:
- *          8       8           8*2T          8 * (2T-1)    4*(2T-1)
- *    | address | parent |   children    |     keys      |  frequencies
+ * A Node of order T holds up to 2T-1 keys and 2T children, each Node fills one page of the file.
+ * See NodeFormat for how Nodes are laid out on disk.
  */
 public class Node {
     public long address;
-    public long parent;
     public long[] children;
     public long[] keys;
     public int[] frequencies;
     /**
      * This constructor is used for debugging reasons
      * @param address
-     * @param parent
      * @param children
      * @param keys
      */
-    public Node(long address, long parent, long[] children, long[] keys ) {
+    public Node(long address, long[] children, long[] keys ) {
         this.address = address;
-        this.parent = parent;
         this.children = children;
         this.keys=keys;
     }
 
     /**
-     * This constructor is used to initialize root Node
-     *
+     * This constructor creates an empty Node of the given order
+     * @param t The order of the tree the Node belongs to
      */
-    public Node(){
-        this.children = Arrays.copyOf(getNullLongArray(NUM_CHILDREN),NUM_CHILDREN);
-        this.keys = Arrays.copyOf(getNullLongArray(K),K);
-        this.frequencies = Arrays.copyOf(getNullIntArray(K),K);
+    public Node(int t){
+        this.children = getNullLongArray(2*t);
+        this.keys = getNullLongArray(2*t-1);
+        this.frequencies = getNullIntArray(2*t-1);
         this.address = 0;
-        this.parent = NULL;
-    }
-
-    /**
-     * Create a Node object from a Byte object array
-     * @param objectArr Byte object array representing a Node
-     */
-    public Node(Byte[] objectArr){
-        byte[] arr = BTreeUtils.toPrimitiveBytes(objectArr);
-        this.children = new long[NUM_CHILDREN];
-        this.keys = new long[K];
-        this.frequencies = new int[K];
-        ByteBuffer buffer = ByteBuffer.wrap(arr);
-        this.address = buffer.getLong();
-        this.parent = buffer.getLong();
-        for (int i = 0; i <NUM_CHILDREN; i++) {
-            this.children[i] = buffer.getLong();
-        }
-        for (int i = 0; i < K; i++) {
-            this.keys[i] = buffer.getLong();
-        }
-        for (int i = 0; i <K ; i++) {
-            this.frequencies[i] = buffer.getInt();
-        }
-    }
-
-    /**
-     * Create a Node object from a byte array
-     * @param arr byte primitive array representing a node
-     */
-    public Node(byte[] arr){
-        this.children = new long[NUM_CHILDREN];
-        this.keys = new long[K];
-        this.frequencies = new int[K];
-        ByteBuffer buffer = ByteBuffer.wrap(arr);
-        this.address = buffer.getLong();
-        this.parent = buffer.getLong();
-        for (int i = 0; i <NUM_CHILDREN; i++) {
-            this.children[i] = buffer.getLong();
-        }
-        for (int i = 0; i < K; i++) {
-            this.keys[i] = buffer.getLong();
-        }
-        for (int i = 0; i <K ; i++) {
-            this.frequencies[i] = buffer.getInt();
-        }
-
-    }
-
-    /**
-     * Serializes this Node object into a byte representation
-     * @return a byte[] representing the node
-     */
-    public byte[] toBytes(){
-        ByteBuffer buffer = ByteBuffer.allocate(BLOCK_SIZE);
-        buffer.putLong(this.address);
-        buffer.putLong(this.parent);
-        for (int i = 0; i <NUM_CHILDREN ; i++) {
-            buffer.putLong(this.children[i]);
-        }
-        for (int i = 0; i < K ; i++) {
-            buffer.putLong(keys[i]);
-        }
-        for (int i = 0; i <K ; i++) {
-            buffer.putInt(frequencies[i]);
-        }
-        return buffer.array();
     }
 
     @Override
@@ -123,30 +47,24 @@ public class Node {
         }else{
             Node other = (Node) obj;
             boolean address = other.address == this.address;
-            boolean parent = other.parent == this.parent;
-            boolean children = true;
-            for (int i = 0; i < NUM_CHILDREN ; i++) {
-                if(this.children[i]!=other.children[i]){
-                    children = false;
-                }
-            }
-            boolean keys = true;
-            for (int i = 0; i < K ; i++) {
+            boolean children = Arrays.equals(this.children, other.children);
+            boolean keys = this.keys.length == other.keys.length;
+            for (int i = 0; keys && i < this.keys.length ; i++) {
                 if(this.keys[i]!=other.keys[i] || frequencies[i] != other.frequencies[i]){
                     keys = false;
                 }
             }
-            return (address && parent && children && keys);
+            return (address && children && keys);
         }
     }
     @Override
     public String toString() {
         StringBuilder s = new StringBuilder();
-        s.append("\nAddress: " + this.address+ "\nParent " + this.parent);
-        for (int i = 0; i < NUM_CHILDREN; i++) {
+        s.append("\nAddress: " + this.address);
+        for (int i = 0; i < children.length; i++) {
             s.append("\nChild " + i +": " + this.children[i] );
         }
-        for (int i = 0; i < K; i++) {
+        for (int i = 0; i < keys.length; i++) {
             s.append("\nKey " + i +": " + this.keys[i] + ". Freq:" + this.frequencies[i]);
         }
         return s.toString();
@@ -154,11 +72,11 @@ public class Node {
 
     @Override
     public int hashCode() {
-        return Objects.hash(parent,address,children,frequencies);
+        return Objects.hash(address,children,frequencies);
     }
     public boolean leafStatus(){
         boolean isLeaf = true;
-        for (int i = 0; i <NUM_CHILDREN ; i++) {
+        for (int i = 0; i <children.length ; i++) {
             if(children[i]!=-1){
                 isLeaf = false;
             }
@@ -167,22 +85,40 @@ public class Node {
     }
     public int numKeys(){
         int i = 0;
-        for (int j = 0; j < K ; j++) {
+        for (int j = 0; j < keys.length ; j++) {
             if(keys[j] !=-1){
                 i++;
             }
         }
         return i;
     }
+    /**
+     * @param key The key to look for
+     * @param n   The number of keys in this Node
+     * @return The index of the first key at least as large as the given one, or n if there is none
+     */
+    public int lowerBound(long key, int n){
+        int low = 0;
+        int high = n;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (keys[mid] < key) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
     public boolean isFull(){
-        return numKeys() == K;
+        return numKeys() == keys.length;
     }
 
     public void setNumKeys(int n){
         int x =0;
-        for (int i = 0; i <K ; i++) {
+        for (int i = 0; i <keys.length ; i++) {
             if(x==n){
-                for (int j = i; j <K ; j++) {
+                for (int j = i; j <keys.length ; j++) {
                     keys[j] = NULL;
                     frequencies[j]= -1;
                 }
@@ -208,7 +144,7 @@ public class Node {
         return out;
     }
     public void addChild(long addr){
-        for (int i = 0; i <NUM_CHILDREN ; i++) {
+        for (int i = 0; i <children.length ; i++) {
             // If the key has found something bigger than it, shift up and add
             if(children[i]==NULL){
                 children[i] = addr;
@@ -217,8 +153,8 @@ public class Node {
         }
     }
     public void addKey(long key){
-        long[] oldKeys = Arrays.copyOf(this.keys,K);
-        for (int i = 0; i <K ; i++) {
+        long[] oldKeys = Arrays.copyOf(this.keys,keys.length);
+        for (int i = 0; i <keys.length ; i++) {
             if(keys[i]==NULL){
                 // No more to compare with, set key and break;
                 keys[i] = key;
@@ -226,7 +162,7 @@ public class Node {
             }
             // If the key has found something bigger than it, shift up and add
             if(key <= keys[i]){
-                for (int j = i; j <K-1 ; j++) {
+                for (int j = i; j <keys.length-1 ; j++) {
                     this.keys[j+1] = oldKeys[j];
                 }
                 this.keys[i] = key;
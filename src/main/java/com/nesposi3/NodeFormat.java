@@ -0,0 +1,307 @@
+package com.nesposi3;
+
+import java.nio.ByteBuffer;
+
+import static com.nesposi3.Utils.BTreeUtils.*;
+import static com.nesposi3.Utils.ChecksumUtils.CHECKSUM_SIZE;
+
+/**
+ * Serializes Nodes into fixed size pages, for the order, page size and encoding recorded in a BTree header.
+ *
+ * RAW page format in bytes, every slot is written whether used or not:
+ *          8           8*2T          8 * (2T-1)    4*(2T-1)
+ *    | address |   children    |     keys      |  frequencies
+ *
+ * PACKED page format in bytes, only used slots are written:
+ *      1      1      2          8          v           v * (n-1)        v * n          v * (n+1)
+ *    | tag | leaf | n keys | address | first key | key deltas | frequencies | child page numbers
+ * The first key is zigzag encoded, every other key is stored as the difference from the key before it.
+ * All v fields are variable length integers, children are only present in internal nodes.
+ * A PACKED node is full once one more entry, and a key replaced by a longer one, might not fit in the page,
+ * which can be before it holds 2T-1 keys.
+ *
+ * In files with page checksums the last 4 bytes of every page hold the checksum, nodes must fit in the rest.
+ */
+public class NodeFormat {
+    public enum Encoding {RAW, PACKED}
+
+    private static final byte PACKED_TAG = 1;
+    private static final int PACKED_HEADER_SIZE = 12;
+    // A key delta, frequency and child page number at their longest
+    private static final int PACKED_MAX_ENTRY_SIZE = 10 + 5 + 10;
+    // How much longer a node gets when a delete puts another key and frequency in place of one of its keys
+    private static final int PACKED_MAX_REPLACE_GROWTH = 10 + 4;
+
+    private final int t;
+    private final int pageSize;
+    private final Encoding encoding;
+    // The bytes of a page a node may take
+    private final int capacity;
+
+    public NodeFormat(int t, int pageSize) {
+        this(t, pageSize, Encoding.RAW);
+    }
+
+    public NodeFormat(int t, int pageSize, Encoding encoding) {
+        this(t, pageSize, encoding, false);
+    }
+
+    /**
+     * @param t           The order of the tree
+     * @param pageSize    The size of a page
+     * @param encoding    The encoding of the pages
+     * @param checksummed True for files whose pages end in a checksum
+     */
+    public NodeFormat(int t, int pageSize, Encoding encoding, boolean checksummed) {
+        if (t < 2) {
+            throw new IllegalArgumentException("Order must be at least 2: " + t);
+        }
+        int capacity = pageSize - (checksummed ? CHECKSUM_SIZE : 0);
+        if (encoding == Encoding.RAW && rawNodeSize(t) > capacity) {
+            throw new IllegalArgumentException("A node of order " + t + " does not fit in a " + pageSize + " byte page");
+        }
+        if (encoding == Encoding.PACKED
+                && PACKED_HEADER_SIZE + 3 * PACKED_MAX_ENTRY_SIZE + PACKED_MAX_REPLACE_GROWTH > capacity) {
+            throw new IllegalArgumentException("A " + pageSize + " byte page is too small for packed nodes");
+        }
+        this.t = t;
+        this.pageSize = pageSize;
+        this.encoding = encoding;
+        this.capacity = capacity;
+    }
+
+    /**
+     * @param t The order of a node
+     * @return The number of bytes a RAW node of that order takes
+     */
+    public static int rawNodeSize(int t) {
+        return 8 + (8 * 2 * t) + (12 * (2 * t - 1));
+    }
+
+    /**
+     * @param pageSize The size of a page
+     * @param encoding The encoding of the pages
+     * @return The default order for that page size, for RAW the highest order whose nodes fit in one page
+     */
+    public static int maxOrder(int pageSize, Encoding encoding) {
+        if (encoding == Encoding.PACKED) {
+            // Hashed keys take around 9 bytes packed, so allow about twice as many keys as RAW
+            return pageSize / 20;
+        }
+        // A node of order T takes 40T - 4 bytes, this leaves room for a page checksum
+        return pageSize / 40;
+    }
+
+    /**
+     * @return A new empty node of this format's order
+     */
+    public Node newNode() {
+        return new Node(t);
+    }
+
+    /**
+     * @return A new view for reading pages of this format without decoding them
+     */
+    public NodeView newView() {
+        return new NodeView(t, pageSize, encoding);
+    }
+
+    /**
+     * Reads a node from the position of the buffer
+     *
+     * @param buffer The buffer holding the page
+     * @return The decoded node
+     */
+    public Node decode(ByteBuffer buffer) {
+        if (encoding == Encoding.PACKED) {
+            return decodePacked(buffer);
+        }
+        Node n = new Node(t);
+        n.address = buffer.getLong();
+        for (int i = 0; i < n.children.length; i++) {
+            n.children[i] = buffer.getLong();
+        }
+        for (int i = 0; i < n.keys.length; i++) {
+            n.keys[i] = buffer.getLong();
+        }
+        for (int i = 0; i < n.keys.length; i++) {
+            n.frequencies[i] = buffer.getInt();
+        }
+        return n;
+    }
+
+    /**
+     * Writes a node at the position of the buffer, padded to a full page
+     *
+     * @param n      The node to write
+     * @param buffer The buffer to write into
+     */
+    public void encode(Node n, ByteBuffer buffer) {
+        int start = buffer.position();
+        if (encoding == Encoding.PACKED) {
+            encodePacked(n, buffer);
+        } else {
+            buffer.putLong(n.address);
+            for (int i = 0; i < n.children.length; i++) {
+                buffer.putLong(n.children[i]);
+            }
+            for (int i = 0; i < n.keys.length; i++) {
+                buffer.putLong(n.keys[i]);
+            }
+            for (int i = 0; i < n.keys.length; i++) {
+                buffer.putInt(n.frequencies[i]);
+            }
+        }
+        while (buffer.position() < start + pageSize) {
+            buffer.put((byte) 0);
+        }
+    }
+
+    private Node decodePacked(ByteBuffer buffer) {
+        Node n = new Node(t);
+        if (buffer.get() != PACKED_TAG) {
+            throw new IllegalStateException("Page is not a packed node");
+        }
+        boolean leaf = buffer.get() == 1;
+        int numKeys = buffer.getShort() & 0xFFFF;
+        n.address = buffer.getLong();
+        long key = 0;
+        for (int i = 0; i < numKeys; i++) {
+            key = (i == 0) ? unZigZag(getVarLong(buffer)) : key + getVarLong(buffer);
+            n.keys[i] = key;
+        }
+        for (int i = 0; i < numKeys; i++) {
+            n.frequencies[i] = (int) getVarLong(buffer);
+        }
+        if (!leaf) {
+            for (int i = 0; i <= numKeys; i++) {
+                n.children[i] = getVarLong(buffer) * pageSize;
+            }
+        }
+        return n;
+    }
+
+    private void encodePacked(Node n, ByteBuffer buffer) {
+        int numKeys = n.numKeys();
+        boolean leaf = n.leafStatus();
+        buffer.put(PACKED_TAG);
+        buffer.put((byte) (leaf ? 1 : 0));
+        buffer.putShort((short) numKeys);
+        buffer.putLong(n.address);
+        for (int i = 0; i < numKeys; i++) {
+            putVarLong(buffer, i == 0 ? zigZag(n.keys[0]) : n.keys[i] - n.keys[i - 1]);
+        }
+        for (int i = 0; i < numKeys; i++) {
+            putVarLong(buffer, n.frequencies[i] & 0xFFFFFFFFL);
+        }
+        if (!leaf) {
+            for (int i = 0; i <= numKeys; i++) {
+                putVarLong(buffer, n.children[i] / pageSize);
+            }
+        }
+    }
+
+    /**
+     * @param n A node
+     * @return The number of bytes the node takes in this format
+     */
+    public int encodedSize(Node n) {
+        if (encoding == Encoding.RAW) {
+            return rawNodeSize(t);
+        }
+        int numKeys = n.numKeys();
+        int size = PACKED_HEADER_SIZE;
+        for (int i = 0; i < numKeys; i++) {
+            size += varLongSize(i == 0 ? zigZag(n.keys[0]) : n.keys[i] - n.keys[i - 1]);
+            size += varLongSize(n.frequencies[i] & 0xFFFFFFFFL);
+        }
+        if (!n.leafStatus()) {
+            for (int i = 0; i <= numKeys; i++) {
+                size += varLongSize(n.children[i] / pageSize);
+            }
+        }
+        return size;
+    }
+
+    /**
+     * @param n A node
+     * @return True if the node can be written to one page
+     */
+    public boolean fits(Node n) {
+        return n.numKeys() <= maxKeys() && encodedSize(n) <= capacity;
+    }
+
+    /**
+     * @param n A node
+     * @return True if the node might not have room for one more key and child
+     */
+    public boolean isFull(Node n) {
+        if (n.numKeys() == maxKeys()) {
+            return true;
+        }
+        return encoding == Encoding.PACKED
+                && encodedSize(n) + PACKED_MAX_ENTRY_SIZE + PACKED_MAX_REPLACE_GROWTH > capacity;
+    }
+
+    /**
+     * Deletes never add keys to a RAW node, but a PACKED node grows when one of its keys is replaced,
+     * so deletes split full PACKED nodes on the way down as inserts do
+     *
+     * @param n A node
+     * @return True if a delete passing through the node has to split it first
+     */
+    public boolean needsSplitBeforeDelete(Node n) {
+        return encoding == Encoding.PACKED && isFull(n);
+    }
+
+    /**
+     * @param n A node other than the root
+     * @return True if the node holds too little and should take a key from a sibling or be merged with one.
+     * RAW nodes need T-1 keys, PACKED nodes need T-1 keys or a quarter of the page
+     */
+    public boolean isUnderfull(Node n) {
+        int numKeys = n.numKeys();
+        if (numKeys == 0 || encoding == Encoding.RAW) {
+            return numKeys < t - 1;
+        }
+        return numKeys < t - 1 && encodedSize(n) < capacity / 4;
+    }
+
+    /**
+     * @param n A node other than the root
+     * @return True if the node can lose any one key and child without becoming underfull
+     */
+    public boolean canLend(Node n) {
+        int numKeys = n.numKeys();
+        if (numKeys < 2) {
+            return false;
+        }
+        if (numKeys >= t) {
+            return true;
+        }
+        return encoding == Encoding.PACKED && encodedSize(n) - PACKED_MAX_ENTRY_SIZE >= capacity / 4;
+    }
+
+    /**
+     * @return The bytes of a page a node may take
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public int maxKeys() {
+        return 2 * t - 1;
+    }
+
+    public int getOrder() {
+        return t;
+    }
+
+    public int getPageSize() {
+        return pageSize;
+    }
+
+    public Encoding getEncoding() {
+        return encoding;
+    }
+}
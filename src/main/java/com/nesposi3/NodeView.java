@@ -0,0 +1,193 @@
+package com.nesposi3;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+
+import static com.nesposi3.Utils.BTreeUtils.*;
+
+/**
+ * A reusable, read only view of a node page, for the read paths of a BTree.
+ * Unlike decoding a Node it allocates nothing per page: a RAW page is read in place by offset,
+ * and a PACKED page, whose keys can only be read in order, is unpacked into arrays the view keeps between pages.
+ *
+ * A view of a cached frame is only valid while the frame is pinned, and while it is latched
+ * or validated afterwards. A view that copies the page stays valid after the frame is released.
+ */
+public class NodeView {
+    private static final VarHandle LONGS = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+    private static final VarHandle INTS = MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.BIG_ENDIAN);
+
+    private final NodeFormat.Encoding encoding;
+    private final int pageSize;
+    private final int maxKeys;
+    // Where the entries start, after the header. RAW children start here
+    private final int bodyOffset;
+    // Offsets of the other RAW sections
+    private final int keysOffset;
+    private final int frequenciesOffset;
+    // The bytes of the current page, and the view's own page for copies
+    private byte[] page;
+    private byte[] copy;
+    private int numKeys;
+    private boolean leaf;
+    // The unpacked entries of the current page, for PACKED pages
+    private final long[] keys;
+    private final int[] frequencies;
+    private final long[] children;
+    private int position;
+
+    /**
+     * @param t           The order of the tree
+     * @param pageSize    The size of a page
+     * @param encoding    The encoding of the pages
+     */
+    NodeView(int t, int pageSize, NodeFormat.Encoding encoding) {
+        this.encoding = encoding;
+        this.pageSize = pageSize;
+        this.maxKeys = 2 * t - 1;
+        this.bodyOffset = encoding == NodeFormat.Encoding.PACKED ? 12 : 8;
+        this.keysOffset = bodyOffset + 8 * 2 * t;
+        this.frequenciesOffset = keysOffset + 8 * maxKeys;
+        boolean packed = encoding == NodeFormat.Encoding.PACKED;
+        this.keys = packed ? new long[maxKeys] : null;
+        this.frequencies = packed ? new int[maxKeys] : null;
+        this.children = packed ? new long[maxKeys + 1] : null;
+    }
+
+    /**
+     * Points the view at a page, reading it in place
+     *
+     * @param frame The bytes of the page
+     * @return This view
+     * @throws IllegalStateException If the page does not hold a node of this format
+     */
+    public NodeView wrap(byte[] frame) {
+        page = frame;
+        if (encoding == NodeFormat.Encoding.PACKED) {
+            unpack();
+        } else {
+            // Used slots come first, an empty slot holds NULL
+            int n = 0;
+            while (n < maxKeys && rawKey(n) != NULL) {
+                n++;
+            }
+            numKeys = n;
+            leaf = rawChild(0) == NULL;
+        }
+        return this;
+    }
+
+    /**
+     * Points the view at a copy of a page, so it stays valid once the frame is released
+     *
+     * @param frame The bytes of the page
+     * @return This view
+     */
+    public NodeView copyOf(byte[] frame) {
+        if (encoding == NodeFormat.Encoding.PACKED) {
+            // Unpacking already copies everything the view reads
+            return wrap(frame);
+        }
+        if (copy == null) {
+            copy = new byte[pageSize];
+        }
+        System.arraycopy(frame, 0, copy, 0, pageSize);
+        return wrap(copy);
+    }
+
+    private void unpack() {
+        if (page[0] != 1) {
+            throw new IllegalStateException("Page is not a packed node");
+        }
+        leaf = page[1] == 1;
+        int n = ((page[2] & 0xFF) << 8) | (page[3] & 0xFF);
+        if (n > maxKeys) {
+            throw new IllegalStateException("Packed node holds " + n + " keys, more than " + maxKeys);
+        }
+        numKeys = n;
+        position = bodyOffset;
+        long key = 0;
+        for (int i = 0; i < n; i++) {
+            key = (i == 0) ? unZigZag(nextVarLong()) : key + nextVarLong();
+            keys[i] = key;
+        }
+        for (int i = 0; i < n; i++) {
+            frequencies[i] = (int) nextVarLong();
+        }
+        if (!leaf) {
+            for (int i = 0; i <= n; i++) {
+                children[i] = nextVarLong() * pageSize;
+            }
+        }
+    }
+
+    private long nextVarLong() {
+        long value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = page[position++];
+            value |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        } while (b < 0);
+        return value;
+    }
+
+    private long rawKey(int i) {
+        return (long) LONGS.get(page, keysOffset + 8 * i);
+    }
+
+    private long rawChild(int i) {
+        return (long) LONGS.get(page, bodyOffset + 8 * i);
+    }
+
+    /**
+     * @return The address the page records for its node
+     */
+    public long address() {
+        return (long) LONGS.get(page, encoding == NodeFormat.Encoding.PACKED ? 4 : 0);
+    }
+
+    public int numKeys() {
+        return numKeys;
+    }
+
+    public boolean leafStatus() {
+        return leaf;
+    }
+
+    public long key(int i) {
+        return keys != null ? keys[i] : rawKey(i);
+    }
+
+    public int frequency(int i) {
+        return frequencies != null ? frequencies[i] : (int) INTS.get(page, frequenciesOffset + 4 * i);
+    }
+
+    /**
+     * @param i The index of the child
+     * @return The address of the child, only meaningful for internal nodes
+     */
+    public long child(int i) {
+        return children != null ? children[i] : rawChild(i);
+    }
+
+    /**
+     * @param key The key to look for
+     * @return The index of the first key at least as large as the given one, or numKeys if there is none
+     */
+    public int lowerBound(long key) {
+        int low = 0;
+        int high = numKeys;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (key(mid) < key) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+}
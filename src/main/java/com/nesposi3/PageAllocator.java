@@ -0,0 +1,148 @@
+package com.nesposi3;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static com.nesposi3.Utils.BTreeUtils.ADDRESS_SIZE;
+import static com.nesposi3.Utils.BTreeUtils.NULL;
+import static com.nesposi3.Utils.ChecksumUtils.CHECKSUM_SIZE;
+
+/**
+ * Hands out page addresses for a BTree file without touching the disk.
+ * New pages come from a list of released pages first, then from the end of the file.
+ *
+ * The free list lives in memory while the tree is open. When stored, it is written into a chain of the
+ * free pages themselves, and the header records the first page of the chain along with the end of the file.
+ * Pages may be allocated and released from several threads at once.
+ *
+ * Free list page format in bytes:
+ *       8          4             8*n           4
+ *    | next | n addresses |  addresses  | checksum |
+ * The last 4 bytes are always left for the page checksum, whether or not the file has them.
+ */
+public class PageAllocator {
+    // The next page of the chain and the number of addresses on this one
+    private static final int LINK_SIZE = ADDRESS_SIZE + 4;
+    private final int pageSize;
+    // The addresses that fit on one chain page
+    private final int perPage;
+    private volatile long nextPage;
+    private long[] free;
+    private int freeCount;
+
+    /**
+     * @param pageSize The size of a page
+     * @param nextPage The address of the first page past the end of the file
+     */
+    public PageAllocator(int pageSize, long nextPage) {
+        this.pageSize = pageSize;
+        this.perPage = addressesPerPage(pageSize);
+        this.nextPage = nextPage;
+        this.free = new long[16];
+    }
+
+    /**
+     * @param pageSize The size of a page
+     * @return The number of free addresses one page of the chain holds
+     */
+    public static int addressesPerPage(int pageSize) {
+        return (pageSize - LINK_SIZE - CHECKSUM_SIZE) / ADDRESS_SIZE;
+    }
+
+    /**
+     * @return The address of a page that is not in use
+     */
+    public synchronized long allocate() {
+        if (freeCount > 0) {
+            return free[--freeCount];
+        }
+        long address = nextPage;
+        nextPage += pageSize;
+        return address;
+    }
+
+    /**
+     * Returns a page to the allocator so it can be handed out again
+     *
+     * @param address The address of a page no longer in use
+     */
+    public synchronized void release(long address) {
+        if (freeCount == free.length) {
+            free = Arrays.copyOf(free, freeCount * 2);
+        }
+        free[freeCount++] = address;
+    }
+
+    /**
+     * Forgets every free page and moves the end of the file, used after the file is rewritten
+     *
+     * @param nextPage The address of the first page past the end of the file
+     */
+    public synchronized void reset(long nextPage) {
+        this.nextPage = nextPage;
+        this.freeCount = 0;
+    }
+
+    /**
+     * Reads a free list chain written by store
+     *
+     * @param cache The cache of the file
+     * @param head  The first page of the chain, or NULL if there is none
+     * @throws IOException On a failed read
+     */
+    public synchronized void load(PageCache cache, long head) throws IOException {
+        long address = head;
+        while (address != NULL) {
+            ByteBuffer page = ByteBuffer.wrap(cache.pin(address));
+            long next = page.getLong();
+            int count = page.getInt();
+            for (int i = 0; i < count; i++) {
+                release(page.getLong());
+            }
+            cache.unpin(address, false);
+            // The chain page itself is free as well
+            release(address);
+            address = next;
+        }
+    }
+
+    /**
+     * Writes the free list into a chain of free pages
+     *
+     * @param cache The cache of the file
+     * @return The first page of the chain, or NULL if there are no free pages
+     * @throws IOException On a failed write
+     */
+    public synchronized long store(PageCache cache) throws IOException {
+        // The chain pages are taken from the end of the list and are not listed themselves
+        int chainPages = (freeCount + perPage) / (perPage + 1);
+        int listed = freeCount - chainPages;
+        long next = NULL;
+        int item = 0;
+        for (int c = 0; c < chainPages; c++) {
+            long address = free[listed + c];
+            ByteBuffer page = ByteBuffer.wrap(cache.pinForOverwrite(address));
+            int count = Math.min(perPage, listed - item);
+            page.putLong(next);
+            page.putInt(count);
+            for (int i = 0; i < count; i++) {
+                page.putLong(free[item++]);
+            }
+            cache.unpin(address, true);
+            next = address;
+        }
+        return next;
+    }
+
+    /**
+     * @return The address of the first page past the end of the file
+     */
+    public long getNextPage() {
+        return nextPage;
+    }
+
+    public synchronized int getFreeCount() {
+        return freeCount;
+    }
+}
@@ -0,0 +1,573 @@
+package com.nesposi3;
+
+import com.nesposi3.Utils.ChecksumUtils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * A buffer pool of pages from a PageFile.
+ * Frames are primitive byte arrays keyed by page address, kept in access order so the least recently
+ * used unpinned page is evicted first. Dirty pages are written back to the file when evicted or flushed.
+ *
+ * Callers pin a page while they use its frame, and unpin it afterwards, marking it dirty if it was changed.
+ * Pinned pages are never evicted, so the pool may briefly grow beyond its capacity if everything is pinned.
+ * When dirty pages are retained, for a write-ahead log, they are not evicted either until they have been flushed.
+ *
+ * The pool is safe to share between threads. Pages are spread over stripes by address, each with its own lock,
+ * share of the capacity and eviction order, so threads using different pages rarely wait for each other.
+ * Pages are read on a miss and written back on eviction without holding the lock of their stripe, threads
+ * pinning a page while it is being read or written wait for that alone. Every frame also carries a latch,
+ * which callers take while they read or change the page, and which is only valid while they hold a pin on it.
+ *
+ * For files with page checksums, a page is stamped with its checksum whenever it leaves the pool for the file
+ * or the log, and optionally checked whenever it is read from the file.
+ */
+public class PageCache {
+    private static final int MAX_STRIPES = 16;
+
+    private final PageFile file;
+    private final int pageSize;
+    private final int capacity;
+    private final Stripe[] stripes;
+    private volatile boolean retainDirty;
+    private volatile boolean stampChecksums;
+    private volatile boolean verifyChecksums;
+    // Pins held across all frames, and pages being written back, either of which keeps the file from being replaced
+    private final AtomicInteger pinned = new AtomicInteger();
+    private final Object idle = new Object();
+
+    /**
+     * Receives the dirty pages of the cache
+     */
+    public interface PageSink {
+        void accept(long address, byte[] page) throws IOException;
+    }
+
+    private static class Frame {
+        final long address;
+        final byte[] data;
+        final StampedLock latch = new StampedLock();
+        int pinCount;
+        boolean dirty;
+        // True while the page is read from or written to the file, outside the lock of its stripe
+        boolean busy;
+
+        Frame(long address, int pageSize) {
+            this.address = address;
+            this.data = new byte[pageSize];
+        }
+    }
+
+    private static class Stripe {
+        final ReentrantLock lock = new ReentrantLock();
+        // Signalled whenever a frame of the stripe stops being busy
+        final Condition ioDone = lock.newCondition();
+        final LinkedHashMap<Long, Frame> frames = new LinkedHashMap<>(16, 0.75f, true);
+        final int capacity;
+        int dirtyCount;
+        long hits;
+        long misses;
+
+        Stripe(int capacity) {
+            this.capacity = capacity;
+        }
+    }
+
+    /**
+     * @param file     The file to cache pages of
+     * @param pageSize The size of a page
+     * @param capacity The number of pages to hold in memory
+     */
+    public PageCache(PageFile file, int pageSize, int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Cache capacity must be at least one page");
+        }
+        this.file = file;
+        this.pageSize = pageSize;
+        this.capacity = capacity;
+        // A power of two, so a stripe is picked with a mask, and no more than there are pages to share out
+        int count = Integer.highestOneBit(Math.min(MAX_STRIPES, capacity));
+        this.stripes = new Stripe[count];
+        for (int i = 0; i < count; i++) {
+            stripes[i] = new Stripe(capacity / count + (i < capacity % count ? 1 : 0));
+        }
+    }
+
+    private Stripe stripe(long address) {
+        // Consecutive pages go to consecutive stripes
+        return stripes[(int) (address / pageSize) & (stripes.length - 1)];
+    }
+
+    /**
+     * Pins the page at the given address, reading it from disk if it is not cached
+     *
+     * @param address The address of the page
+     * @return The frame holding the page, valid until the page is unpinned
+     * @throws IOException On a failed read or write back
+     */
+    public byte[] pin(long address) throws IOException {
+        Stripe stripe = stripe(address);
+        Frame frame;
+        boolean miss;
+        stripe.lock.lock();
+        try {
+            frame = awaitFrame(stripe, address);
+            miss = frame == null;
+            if (!miss) {
+                stripe.hits++;
+                frame.pinCount++;
+                pinned.incrementAndGet();
+            } else {
+                stripe.misses++;
+                frame = new Frame(address, pageSize);
+                frame.busy = true;
+                frame.pinCount++;
+                pinned.incrementAndGet();
+                stripe.frames.put(address, frame);
+            }
+        } finally {
+            stripe.lock.unlock();
+        }
+        if (miss) {
+            load(stripe, frame);
+        }
+        evictOrUnpin(stripe, frame);
+        return frame.data;
+    }
+
+    /**
+     * Pins the page at the given address without reading it, for callers about to overwrite the whole page
+     *
+     * @param address The address of the page
+     * @return The frame holding the page, valid until the page is unpinned
+     * @throws IOException On a failed write back
+     */
+    public byte[] pinForOverwrite(long address) throws IOException {
+        Stripe stripe = stripe(address);
+        Frame frame;
+        stripe.lock.lock();
+        try {
+            frame = awaitFrame(stripe, address);
+            if (frame == null) {
+                frame = new Frame(address, pageSize);
+                stripe.frames.put(address, frame);
+            }
+            frame.pinCount++;
+            pinned.incrementAndGet();
+        } finally {
+            stripe.lock.unlock();
+        }
+        evictOrUnpin(stripe, frame);
+        return frame.data;
+    }
+
+    /**
+     * Waits until the page at the given address is neither being read nor written back,
+     * the caller holds the lock of the stripe
+     *
+     * @return The frame of the page, or null if it is not cached
+     */
+    private Frame awaitFrame(Stripe stripe, long address) {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                Frame frame = stripe.frames.get(address);
+                if (frame == null || !frame.busy) {
+                    return frame;
+                }
+                try {
+                    stripe.ioDone.await();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Reads a newly pinned page outside the lock of its stripe, then publishes it to the threads waiting for it.
+     * If the read fails the frame is dropped, so the next pin reads the page again
+     */
+    private void load(Stripe stripe, Frame frame) throws IOException {
+        IOException failure = null;
+        try {
+            file.read(frame.address, ByteBuffer.wrap(frame.data));
+            if (verifyChecksums && !ChecksumUtils.verifyPage(frame.data, 0, pageSize)) {
+                failure = new IOException("Page " + frame.address + " of " + file.getFileName()
+                        + " failed its checksum");
+            }
+        } catch (IOException e) {
+            failure = e;
+        }
+        stripe.lock.lock();
+        try {
+            frame.busy = false;
+            if (failure != null) {
+                frame.pinCount--;
+                stripe.frames.remove(frame.address);
+            }
+            stripe.ioDone.signalAll();
+        } finally {
+            stripe.lock.unlock();
+        }
+        if (failure != null) {
+            release();
+            throw failure;
+        }
+    }
+
+    /**
+     * Evicts to make room for a newly pinned frame, releasing the pin again if a write back fails
+     */
+    private void evictOrUnpin(Stripe stripe, Frame frame) throws IOException {
+        try {
+            evict(stripe);
+        } catch (IOException e) {
+            unpin(frame.address, false);
+            throw e;
+        }
+    }
+
+    /**
+     * Releases a pin on a page
+     *
+     * @param address The address of the page
+     * @param dirty   True if the frame was modified and must be written back
+     */
+    public void unpin(long address, boolean dirty) {
+        Stripe stripe = stripe(address);
+        stripe.lock.lock();
+        try {
+            Frame frame = stripe.frames.get(address);
+            if (frame == null || frame.pinCount == 0) {
+                throw new IllegalStateException("Page " + address + " is not pinned");
+            }
+            frame.pinCount--;
+            if (dirty && !frame.dirty) {
+                frame.dirty = true;
+                stripe.dirtyCount++;
+            }
+        } finally {
+            stripe.lock.unlock();
+        }
+        release();
+    }
+
+    /**
+     * Counts off a pin or a finished write back, waking a thread waiting to replace the file when none are left
+     */
+    private void release() {
+        if (pinned.decrementAndGet() == 0) {
+            synchronized (idle) {
+                idle.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Returns the latch of a pinned page
+     *
+     * @param address The address of the page
+     * @return The latch guarding the contents of the page
+     */
+    public StampedLock latch(long address) {
+        Stripe stripe = stripe(address);
+        stripe.lock.lock();
+        try {
+            Frame frame = stripe.frames.get(address);
+            if (frame == null || frame.pinCount == 0) {
+                throw new IllegalStateException("Page " + address + " is not pinned");
+            }
+            return frame.latch;
+        } finally {
+            stripe.lock.unlock();
+        }
+    }
+
+    /**
+     * Passes every dirty page to the sink, in no particular order, stamped with its checksum if pages carry one
+     *
+     * @param sink The receiver of the pages
+     * @throws IOException If the sink fails
+     */
+    public void forEachDirty(PageSink sink) throws IOException {
+        for (Stripe stripe : stripes) {
+            stripe.lock.lock();
+            try {
+                for (Frame frame : settledFrames(stripe)) {
+                    if (frame.dirty) {
+                        stamp(frame);
+                        sink.accept(frame.address, frame.data);
+                    }
+                }
+            } finally {
+                stripe.lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * @param retainDirty True to keep dirty pages in memory until they are flushed, rather than writing them back
+     *                    when they are evicted
+     */
+    public void setRetainDirty(boolean retainDirty) {
+        this.retainDirty = retainDirty;
+    }
+
+    /**
+     * @param stamp  True if pages end in a checksum, which is written whenever a page leaves the pool
+     * @param verify True to check the checksum of every page read from the file
+     */
+    public void setChecksums(boolean stamp, boolean verify) {
+        this.stampChecksums = stamp;
+        this.verifyChecksums = stamp && verify;
+    }
+
+    public int getDirtyCount() {
+        int count = 0;
+        for (Stripe stripe : stripes) {
+            stripe.lock.lock();
+            try {
+                count += stripe.dirtyCount;
+            } finally {
+                stripe.lock.unlock();
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Writes every dirty page back to the file
+     *
+     * @throws IOException On a failed write
+     */
+    public void flush() throws IOException {
+        for (Stripe stripe : stripes) {
+            stripe.lock.lock();
+            try {
+                for (Frame frame : settledFrames(stripe)) {
+                    writeBack(stripe, frame);
+                }
+            } finally {
+                stripe.lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Drops every cached page, writing back dirty ones first
+     *
+     * @throws IOException On a failed write
+     */
+    public void clear() throws IOException {
+        for (Stripe stripe : stripes) {
+            stripe.lock.lock();
+            try {
+                for (Frame frame : settledFrames(stripe)) {
+                    writeBack(stripe, frame);
+                }
+                stripe.frames.clear();
+            } finally {
+                stripe.lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Waits for every read and write back of a stripe to finish, the caller holds the lock of the stripe
+     *
+     * @return The frames of the stripe, none of them busy as long as the lock is held
+     */
+    private List<Frame> settledFrames(Stripe stripe) {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                boolean busy = false;
+                for (Frame frame : stripe.frames.values()) {
+                    busy |= frame.busy;
+                }
+                if (!busy) {
+                    return new ArrayList<>(stripe.frames.values());
+                }
+                try {
+                    stripe.ioDone.await();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Swaps a rebuilt file in for the cached one and drops every cached page without writing anything back.
+     * Waits for pages still pinned by readers that started before the swap to be unpinned first,
+     * and no page can be read in between dropping the pages and swapping the file
+     *
+     * @param source The rebuilt file
+     * @throws IOException If the file could not be swapped in
+     */
+    public synchronized void replaceFile(String source) throws IOException {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                synchronized (idle) {
+                    while (pinned.get() > 0) {
+                        try {
+                            idle.wait();
+                        } catch (InterruptedException e) {
+                            interrupted = true;
+                        }
+                    }
+                }
+                // Pins are only taken under the lock of a stripe, so with every lock held none can start
+                int locked = 0;
+                try {
+                    for (Stripe stripe : stripes) {
+                        stripe.lock.lock();
+                        locked++;
+                    }
+                    if (pinned.get() == 0) {
+                        for (Stripe stripe : stripes) {
+                            stripe.frames.clear();
+                            stripe.dirtyCount = 0;
+                        }
+                        file.replaceWith(source);
+                        return;
+                    }
+                } finally {
+                    for (int i = 0; i < locked; i++) {
+                        stripes[i].lock.unlock();
+                    }
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public long getHits() {
+        long hits = 0;
+        for (Stripe stripe : stripes) {
+            stripe.lock.lock();
+            try {
+                hits += stripe.hits;
+            } finally {
+                stripe.lock.unlock();
+            }
+        }
+        return hits;
+    }
+
+    public long getMisses() {
+        long misses = 0;
+        for (Stripe stripe : stripes) {
+            stripe.lock.lock();
+            try {
+                misses += stripe.misses;
+            } finally {
+                stripe.lock.unlock();
+            }
+        }
+        return misses;
+    }
+
+    /**
+     * Evicts least recently used unpinned pages until the stripe is within its capacity.
+     * Clean pages are dropped at once, dirty ones are written back without holding the lock of the stripe,
+     * and are only dropped afterwards if nobody pinned them meanwhile
+     */
+    private void evict(Stripe stripe) throws IOException {
+        while (true) {
+            Frame victim = null;
+            stripe.lock.lock();
+            try {
+                Iterator<Frame> it = stripe.frames.values().iterator();
+                while (stripe.frames.size() > stripe.capacity && it.hasNext()) {
+                    Frame frame = it.next();
+                    if (frame.pinCount > 0 || frame.busy || (retainDirty && frame.dirty)) {
+                        continue;
+                    }
+                    if (!frame.dirty) {
+                        it.remove();
+                        continue;
+                    }
+                    victim = frame;
+                    victim.busy = true;
+                    pinned.incrementAndGet();
+                    break;
+                }
+            } finally {
+                stripe.lock.unlock();
+            }
+            if (victim == null) {
+                return;
+            }
+            IOException failure = null;
+            try {
+                stamp(victim);
+                file.write(victim.address, ByteBuffer.wrap(victim.data));
+            } catch (IOException e) {
+                failure = e;
+            }
+            stripe.lock.lock();
+            try {
+                victim.busy = false;
+                if (failure == null) {
+                    victim.dirty = false;
+                    stripe.dirtyCount--;
+                    if (victim.pinCount == 0) {
+                        stripe.frames.remove(victim.address);
+                    }
+                }
+                stripe.ioDone.signalAll();
+            } finally {
+                stripe.lock.unlock();
+            }
+            release();
+            if (failure != null) {
+                throw failure;
+            }
+        }
+    }
+
+    private void stamp(Frame frame) {
+        if (stampChecksums) {
+            ChecksumUtils.stampPage(frame.data, 0, pageSize);
+        }
+    }
+
+    /**
+     * Writes a dirty page back, the caller holds the lock of its stripe
+     */
+    private void writeBack(Stripe stripe, Frame frame) throws IOException {
+        if (frame.dirty) {
+            stamp(frame);
+            file.write(frame.address, ByteBuffer.wrap(frame.data));
+            frame.dirty = false;
+            stripe.dirtyCount--;
+        }
+    }
+}
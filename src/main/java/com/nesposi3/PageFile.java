@@ -0,0 +1,127 @@
+package com.nesposi3;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A file of pages, backed by one long-lived FileChannel.
+ * All I/O is positional, so there is no shared seek state and no open/close per access.
+ * The length of the file is tracked in memory.
+ *
+ * Pages may be read and written from several threads at once, but the file must not be replaced while they are.
+ */
+public class PageFile implements AutoCloseable {
+    private volatile FileChannel channel;
+    private final String fileName;
+    private final AtomicLong length = new AtomicLong();
+
+    /**
+     * Opens the page file, creating it if it does not exist
+     *
+     * @param fileName The path of the file
+     * @throws IOException If the file cannot be opened
+     */
+    public PageFile(String fileName) throws IOException {
+        this.fileName = fileName;
+        open();
+    }
+
+    private void open() throws IOException {
+        this.channel = FileChannel.open(new File(fileName).toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.length.set(channel.size());
+    }
+
+    /**
+     * Atomically replaces this file with another one, and reopens it
+     *
+     * @param source The path of the file to move over this one
+     * @throws IOException If the file could not be moved or reopened
+     */
+    public void replaceWith(String source) throws IOException {
+        channel.close();
+        Files.move(new File(source).toPath(), new File(fileName).toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        open();
+    }
+
+    /**
+     * Reads the page at the given address into dst, starting at its current position.
+     * Bytes past the end of the file are read as zeroes.
+     *
+     * @param address The byte offset of the page
+     * @param dst     The buffer to fill, its remaining bytes are filled
+     * @throws IOException On a failed read
+     */
+    public void read(long address, ByteBuffer dst) throws IOException {
+        long pos = address;
+        while (dst.hasRemaining()) {
+            int n = channel.read(dst, pos);
+            if (n < 0) {
+                while (dst.hasRemaining()) {
+                    dst.put((byte) 0);
+                }
+                break;
+            }
+            pos += n;
+        }
+    }
+
+    /**
+     * Writes the remaining bytes of src at the given address
+     *
+     * @param address The byte offset to write to
+     * @param src     The bytes to write
+     * @throws IOException On a failed write
+     */
+    public void write(long address, ByteBuffer src) throws IOException {
+        long pos = address;
+        while (src.hasRemaining()) {
+            pos += channel.write(src, pos);
+        }
+        length.accumulateAndGet(pos, Math::max);
+    }
+
+    /**
+     * Cuts the file down to the given length
+     *
+     * @param newLength The new length of the file in bytes
+     * @throws IOException On a failed truncate
+     */
+    public void truncate(long newLength) throws IOException {
+        channel.truncate(newLength);
+        length.set(newLength);
+    }
+
+    /**
+     * Forces all written pages to the storage device
+     *
+     * @throws IOException On a failed sync
+     */
+    public void force() throws IOException {
+        channel.force(false);
+    }
+
+    public long length() {
+        return length.get();
+    }
+
+    public boolean isEmpty() {
+        return length.get() == 0;
+    }
+
+    public String getFileName() {
+        return fileName;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
@@ -0,0 +1,585 @@
+package com.nesposi3;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.function.BiConsumer;
+
+import static com.nesposi3.Utils.BTreeUtils.*;
+import static com.nesposi3.Utils.ChecksumUtils.CHECKSUM_SIZE;
+import static com.nesposi3.Utils.ChecksumUtils.crc32c;
+
+/**
+ * Stores the term vectors of many documents in a few large append-only segment files, instead of one BTree file each.
+ * A document is written as one record at the end of the newest segment, and a new segment is started once it is full.
+ * An index file maps each document name to its record. Writing a document again appends a new record,
+ * and the index then points at that one. A document that only changed a little can instead be patched,
+ * appending a record of just the changed frequencies that points back at the record it changes.
+ *
+ * Segment record format in bytes, the keys are delta encoded as in PACKED pages:
+ *       4            2          n         4           v           v * (k-1)       v * k           4
+ *    | length | name length | name | key count | first key | key deltas | frequencies | checksum |
+ * The length counts the bytes between the length field and the checksum, the checksum is the CRC32C of those bytes.
+ *
+ * Patch record format in bytes, the top bit of the key count marks a patch and the changes are zig-zag encoded:
+ *       4            2          n         4        4         4             8               4
+ *    | length | name length | name | key count | depth | prev segment | prev offset | prev length |
+ *         v           v * (k-1)       v * k               4
+ *    | first key | key deltas | frequency changes | checksum |
+ * The depth counts the patches below this one, after MAX_PATCH_DEPTH of them the document is written in full again.
+ *
+ * Index entry format in bytes, the checksum is the CRC32C of the bytes before it:
+ *         2          n        4         8         4         4
+ *    | name length | name | segment | offset | length | checksum |
+ * New entries are only written to the index when the store is flushed, after the segment holding their records
+ * has been forced to disk, so an entry on disk never points at a record that is not.
+ * Entries that fail their checksum or point past the end of their segment, and records at the end of the last
+ * segment that never made it into the index, which a crash can leave, are dropped when the store is opened.
+ *
+ * The store only grows. A record replaced by a later one, or patched over, stays where it is in its segment,
+ * nothing reclaims the space, and the index keeps every entry ever written for a name. Writing the live documents
+ * into a new store, one put each, is the way to get the space back.
+ *
+ * A record failing its checksum is reported by get and scan rather than decoded, and Fsck checks every record.
+ *
+ * Meta file format in bytes, recording the TermHash the keys of every document come from:
+ *      4          4
+ *    | magic | term hash |
+ * Stores from before the meta file hold MD5 keys.
+ */
+public class SegmentStore implements AutoCloseable {
+    public static final long DEFAULT_SEGMENT_BYTES = 64L * 1024 * 1024;
+    static final String INDEX_NAME = "index";
+    // Past this many bytes of unwritten index entries the store is flushed
+    private static final int MAX_PENDING_INDEX_BYTES = 1 << 20;
+    static final String META_NAME = "meta";
+    static final int META_MAGIC = 0x5345474D;
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final int SCAN_BUFFER_SIZE = 1 << 20;
+    static final int PATCH_FLAG = 0x80000000;
+    // The bytes of a patch record between its key count and its first key
+    static final int PATCH_HEADER_SIZE = 4 + 4 + 8 + 4;
+    // Bounds the number of records a read has to follow back
+    public static final int MAX_PATCH_DEPTH = 8;
+
+    private final File directory;
+    private final long segmentBytes;
+    private final ArrayList<FileChannel> segments = new ArrayList<>();
+    private final LinkedHashMap<String, Location> index = new LinkedHashMap<>();
+    private FileChannel indexChannel;
+    private long indexLength;
+    // Index entries of records appended since the last flush
+    private final ByteArrayOutputStream pendingIndex = new ByteArrayOutputStream();
+    private long segmentLength;
+    private final TermHash termHash;
+
+    /**
+     * Where the live record of a document is
+     */
+    private static class Location {
+        final int segment;
+        final long offset;
+        final int length;
+
+        Location(int segment, long offset, int length) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    public SegmentStore(String directory) throws IOException {
+        this(directory, DEFAULT_SEGMENT_BYTES);
+    }
+
+    /**
+     * Opens the store in the given directory, creating it if it does not exist
+     *
+     * @param directory    The directory holding the segments and index
+     * @param segmentBytes The size after which a new segment is started
+     * @throws IOException If the files cannot be opened
+     */
+    public SegmentStore(String directory, long segmentBytes) throws IOException {
+        this(directory, segmentBytes, TermHash.DEFAULT);
+    }
+
+    /**
+     * Opens the store in the given directory, creating it if it does not exist
+     *
+     * @param directory    The directory holding the segments and index
+     * @param segmentBytes The size after which a new segment is started
+     * @param termHash     The function the keys of a new store come from, an existing store keeps its own
+     * @throws IOException If the files cannot be opened
+     */
+    public SegmentStore(String directory, long segmentBytes, TermHash termHash) throws IOException {
+        this.directory = new File(directory);
+        this.segmentBytes = segmentBytes;
+        this.directory.mkdirs();
+        for (int i = 0; segmentFile(i).exists(); i++) {
+            segments.add(FileChannel.open(segmentFile(i).toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE));
+        }
+        if (segments.isEmpty()) {
+            segments.add(FileChannel.open(segmentFile(0).toPath(),
+                    StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE));
+        }
+        this.indexChannel = FileChannel.open(new File(this.directory, INDEX_NAME).toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        loadIndex();
+        this.termHash = loadMeta(termHash);
+    }
+
+    /**
+     * Reads the meta file, writing it first if the store does not have one yet
+     *
+     * @return The function the keys of the store come from
+     */
+    private TermHash loadMeta(TermHash forNewStore) throws IOException {
+        File meta = new File(directory, META_NAME);
+        if (meta.exists()) {
+            ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(meta.toPath()));
+            if (buffer.remaining() < 8 || buffer.getInt() != META_MAGIC) {
+                throw new IOException(meta + " is not the meta file of a store");
+            }
+            return TermHash.fromOrdinal(buffer.getInt());
+        }
+        TermHash termHash = index.isEmpty() ? forNewStore : TermHash.MD5;
+        ByteBuffer buffer = ByteBuffer.allocate(8);
+        buffer.putInt(META_MAGIC);
+        buffer.putInt(termHash.ordinal());
+        Files.write(meta.toPath(), buffer.array());
+        return termHash;
+    }
+
+    /**
+     * @return The function the keys of every document in the store come from
+     */
+    public TermHash getTermHash() {
+        return termHash;
+    }
+
+    private File segmentFile(int number) {
+        return segmentFile(directory, number);
+    }
+
+    /**
+     * @param directory The directory of a store
+     * @param number    The number of a segment
+     * @return The file of the segment, which exists if the store has that many segments
+     */
+    static File segmentFile(File directory, int number) {
+        return new File(directory, String.format("%s%05d%s", SEGMENT_PREFIX, number, SEGMENT_SUFFIX));
+    }
+
+    /**
+     * @param length The length field of a record
+     * @return The bytes the record takes in its segment
+     */
+    static long recordSize(int length) {
+        return 4L + length + CHECKSUM_SIZE;
+    }
+
+    private void loadIndex() throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate((int) indexChannel.size());
+        while (buffer.hasRemaining()) {
+            if (indexChannel.read(buffer, buffer.position()) < 0) {
+                break;
+            }
+        }
+        buffer.flip();
+        int valid = 0;
+        try {
+            while (buffer.hasRemaining()) {
+                byte[] name = new byte[buffer.getShort() & 0xFFFF];
+                buffer.get(name);
+                Location location = new Location(buffer.getInt(), buffer.getLong(), buffer.getInt());
+                if (buffer.getInt() != crc32c(buffer.array(), valid, buffer.position() - CHECKSUM_SIZE - valid)) {
+                    break;
+                }
+                if (location.segment >= segments.size()
+                        || location.offset + recordSize(location.length) > segments.get(location.segment).size()) {
+                    break;
+                }
+                index.put(new String(name, StandardCharsets.UTF_8), location);
+                valid = buffer.position();
+            }
+        } catch (RuntimeException e) {
+            // A torn entry at the end of the index
+        }
+        indexChannel.truncate(valid);
+        this.indexLength = valid;
+        // The newest record of the last segment is always live, so the segment ends where it does
+        int last = segments.size() - 1;
+        long end = 0;
+        for (Location location : index.values()) {
+            if (location.segment == last) {
+                end = Math.max(end, location.offset + recordSize(location.length));
+            }
+        }
+        segments.get(last).truncate(end);
+        this.segmentLength = end;
+    }
+
+    /**
+     * Writes an index entry followed by its checksum
+     */
+    private static void writeEntry(ByteArrayOutputStream out, byte[] nameBytes, Location location) {
+        ByteBuffer entry = ByteBuffer.allocate(2 + nameBytes.length + 16 + CHECKSUM_SIZE);
+        entry.putShort((short) nameBytes.length);
+        entry.put(nameBytes);
+        entry.putInt(location.segment);
+        entry.putLong(location.offset);
+        entry.putInt(location.length);
+        entry.putInt(crc32c(entry.array(), 0, entry.position()));
+        out.write(entry.array(), 0, entry.capacity());
+    }
+
+    /**
+     * Appends a document, replacing any earlier record with the same name
+     *
+     * @param name  The name of the document
+     * @param terms The term vector of the document
+     * @throws IOException If the record could not be written
+     */
+    public synchronized void put(String name, TermVector terms) throws IOException {
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        int bodySize = 2 + nameBytes.length + 4;
+        int count = 0;
+        long previous = 0;
+        TermCursor cursor = terms.cursor();
+        while (cursor.next()) {
+            bodySize += varLongSize(count == 0 ? zigZag(cursor.key()) : cursor.key() - previous);
+            bodySize += varLongSize(cursor.frequency() & 0xFFFFFFFFL);
+            previous = cursor.key();
+            count++;
+        }
+        ByteBuffer record = ByteBuffer.allocate((int) recordSize(bodySize));
+        record.putInt(bodySize);
+        record.putShort((short) nameBytes.length);
+        record.put(nameBytes);
+        record.putInt(count);
+        cursor = terms.cursor();
+        for (int i = 0; cursor.next(); i++) {
+            putVarLong(record, i == 0 ? zigZag(cursor.key()) : cursor.key() - previous);
+            previous = cursor.key();
+        }
+        cursor = terms.cursor();
+        while (cursor.next()) {
+            putVarLong(record, cursor.frequency() & 0xFFFFFFFFL);
+        }
+        seal(record, bodySize);
+
+        append(name, nameBytes, record, bodySize);
+    }
+
+    /**
+     * Ends a filled record with the checksum of its body and flips it for writing
+     */
+    private static void seal(ByteBuffer record, int bodySize) {
+        record.putInt(crc32c(record.array(), 4, bodySize));
+        record.flip();
+    }
+
+    /**
+     * Appends a record and points the index at it
+     */
+    private void append(String name, byte[] nameBytes, ByteBuffer record, int bodySize) throws IOException {
+        if (segmentLength > 0 && segmentLength + record.remaining() > segmentBytes) {
+            segments.get(segments.size() - 1).force(false);
+            segments.add(FileChannel.open(segmentFile(segments.size()).toPath(),
+                    StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE));
+            segmentLength = 0;
+        }
+        int segment = segments.size() - 1;
+        long offset = segmentLength;
+        FileChannel channel = segments.get(segment);
+        while (record.hasRemaining()) {
+            segmentLength += channel.write(record, segmentLength);
+        }
+
+        Location location = new Location(segment, offset, bodySize);
+        writeEntry(pendingIndex, nameBytes, location);
+        index.put(name, location);
+        if (pendingIndex.size() >= MAX_PENDING_INDEX_BYTES) {
+            flush();
+        }
+    }
+
+    /**
+     * Changes the frequencies of some keys of a stored document, appending only the changes.
+     * Once the document has MAX_PATCH_DEPTH patches it is written in full instead
+     *
+     * @param name  The name of the document
+     * @param delta The changes
+     * @throws IOException If the record could not be written
+     */
+    public synchronized void patch(String name, TermDelta delta) throws IOException {
+        Location previous = index.get(name);
+        if (previous == null) {
+            throw new IllegalArgumentException("No document named " + name);
+        }
+        if (delta.isEmpty()) {
+            return;
+        }
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        int depth = depthOf(previous, nameBytes.length) + 1;
+        if (depth > MAX_PATCH_DEPTH) {
+            put(name, delta.applyTo(get(name)));
+            return;
+        }
+        int bodySize = 2 + nameBytes.length + 4 + PATCH_HEADER_SIZE;
+        for (int i = 0; i < delta.size; i++) {
+            bodySize += varLongSize(i == 0 ? zigZag(delta.keys[i]) : delta.keys[i] - delta.keys[i - 1]);
+            bodySize += varLongSize(zigZag(delta.deltas[i]));
+        }
+        ByteBuffer record = ByteBuffer.allocate((int) recordSize(bodySize));
+        record.putInt(bodySize);
+        record.putShort((short) nameBytes.length);
+        record.put(nameBytes);
+        record.putInt(delta.size | PATCH_FLAG);
+        record.putInt(depth);
+        record.putInt(previous.segment);
+        record.putLong(previous.offset);
+        record.putInt(previous.length);
+        for (int i = 0; i < delta.size; i++) {
+            putVarLong(record, i == 0 ? zigZag(delta.keys[i]) : delta.keys[i] - delta.keys[i - 1]);
+        }
+        for (int i = 0; i < delta.size; i++) {
+            putVarLong(record, zigZag(delta.deltas[i]));
+        }
+        seal(record, bodySize);
+        append(name, nameBytes, record, bodySize);
+    }
+
+    /**
+     * Writes a new version of a document. If the store holds an older version and few of its terms changed,
+     * only the changes are patched in, otherwise the whole vector is written.
+     * The old version is read and the new one written under the store's lock, so updates of the same document
+     * from several threads never patch a version another one replaced meanwhile
+     *
+     * @param name  The name of the document
+     * @param terms The term vector of the new version
+     * @throws IOException If the old version could not be read or the new one written
+     */
+    public synchronized void update(String name, SortedTerms terms) throws IOException {
+        Location location = index.get(name);
+        if (location == null) {
+            put(name, terms);
+            return;
+        }
+        TermDelta delta = TermDelta.between(read(location), terms);
+        // Past half the keys a patch is no smaller than the whole vector
+        if (delta.size * 2 < terms.totalNumKeys()) {
+            patch(name, delta);
+        } else {
+            put(name, terms);
+        }
+    }
+
+    /**
+     * Reads only the start of a record to find how many patches it sits on
+     *
+     * @return 0 for a full record, or the depth of a patch
+     */
+    private int depthOf(Location location, int nameLength) throws IOException {
+        ByteBuffer start = ByteBuffer.allocate(2 + nameLength + 8);
+        readFully(segments.get(location.segment), start, location.offset + 4);
+        int count = start.getInt(2 + nameLength);
+        return (count & PATCH_FLAG) != 0 ? start.getInt(2 + nameLength + 4) : 0;
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Record runs past the end of its segment");
+            }
+        }
+        buffer.flip();
+    }
+
+    /**
+     * @param name The name of a document
+     * @return The term vector of the document, or null if it is not in the store
+     * @throws IOException If the record could not be read
+     */
+    public SortedTerms get(String name) throws IOException {
+        Location location;
+        synchronized (this) {
+            location = index.get(name);
+            if (location == null) {
+                return null;
+            }
+        }
+        return read(location);
+    }
+
+    /**
+     * Reads the record at a location, and every record below it if it is a patch
+     */
+    private SortedTerms read(Location location) throws IOException {
+        FileChannel channel;
+        synchronized (this) {
+            channel = segments.get(location.segment);
+        }
+        ByteBuffer body = ByteBuffer.allocate(location.length + CHECKSUM_SIZE);
+        readFully(channel, body, location.offset + 4);
+        verify(body.array(), location.length, location.segment, location.offset);
+        body.limit(location.length);
+        body.position(2 + (body.getShort(0) & 0xFFFF));
+        return decodeRecord(body);
+    }
+
+    /**
+     * @param body   The body of a record followed by its checksum
+     * @param length The length of the body
+     * @throws IOException If the checksum does not match the body
+     */
+    private static void verify(byte[] body, int length, int segment, long offset) throws IOException {
+        if (ByteBuffer.wrap(body).getInt(length) != crc32c(body, 0, length)) {
+            throw new IOException("Record at " + offset + " of segment " + segment + " fails its checksum");
+        }
+    }
+
+    /**
+     * Decodes a record body positioned after the name
+     */
+    private SortedTerms decodeRecord(ByteBuffer body) throws IOException {
+        if ((body.getInt(body.position()) & PATCH_FLAG) == 0) {
+            return decodeTerms(body);
+        }
+        int count = body.getInt() & ~PATCH_FLAG;
+        body.getInt();
+        Location previous = new Location(body.getInt(), body.getLong(), body.getInt());
+        long[] keys = new long[count];
+        int[] deltas = new int[count];
+        long key = 0;
+        for (int i = 0; i < count; i++) {
+            key = (i == 0) ? unZigZag(getVarLong(body)) : key + getVarLong(body);
+            keys[i] = key;
+        }
+        for (int i = 0; i < count; i++) {
+            deltas[i] = (int) unZigZag(getVarLong(body));
+        }
+        return new TermDelta(keys, deltas, count).applyTo(read(previous));
+    }
+
+    private static SortedTerms decodeTerms(ByteBuffer body) {
+        int count = body.getInt();
+        long[] keys = new long[count];
+        int[] frequencies = new int[count];
+        long key = 0;
+        for (int i = 0; i < count; i++) {
+            key = (i == 0) ? unZigZag(getVarLong(body)) : key + getVarLong(body);
+            keys[i] = key;
+        }
+        for (int i = 0; i < count; i++) {
+            frequencies[i] = (int) getVarLong(body);
+        }
+        return new SortedTerms(keys, frequencies, count);
+    }
+
+    /**
+     * Reads every document in the store, one segment after another from start to end.
+     * Records that were replaced by a later one are skipped. The length of each segment is taken when the scan starts,
+     * so records appended while it runs, which may still be half written, are never read
+     *
+     * @param consumer Receives the name and term vector of each document
+     * @throws IOException If a segment could not be read
+     */
+    public void scan(BiConsumer<String, SortedTerms> consumer) throws IOException {
+        long[] ends;
+        synchronized (this) {
+            ends = new long[segments.size()];
+            // Earlier segments are full and no longer written
+            for (int segment = 0; segment < ends.length - 1; segment++) {
+                ends[segment] = segments.get(segment).size();
+            }
+            ends[ends.length - 1] = segmentLength;
+        }
+        for (int segment = 0; segment < ends.length; segment++) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                    new FileInputStream(segmentFile(segment)), SCAN_BUFFER_SIZE))) {
+                long offset = 0;
+                byte[] body = new byte[0];
+                while (offset < ends[segment]) {
+                    int length = in.readInt();
+                    if (body.length < length + CHECKSUM_SIZE) {
+                        body = new byte[Math.max(length + CHECKSUM_SIZE, body.length * 2)];
+                    }
+                    in.readFully(body, 0, length + CHECKSUM_SIZE);
+                    ByteBuffer buffer = ByteBuffer.wrap(body, 0, length);
+                    int nameLength = buffer.getShort() & 0xFFFF;
+                    String name = new String(body, 2, nameLength, StandardCharsets.UTF_8);
+                    Location location;
+                    synchronized (this) {
+                        location = index.get(name);
+                    }
+                    if (location != null && location.segment == segment && location.offset == offset) {
+                        verify(body, length, segment, offset);
+                        buffer.position(2 + nameLength);
+                        consumer.accept(name, decodeRecord(buffer));
+                    }
+                    offset += recordSize(length);
+                }
+            }
+        }
+    }
+
+    /**
+     * @param name The name of a document
+     * @return True if the store holds the document
+     */
+    public synchronized boolean contains(String name) {
+        return index.containsKey(name);
+    }
+
+    /**
+     * @return The name of every document, in the order they were first written
+     */
+    public synchronized List<String> names() {
+        return new ArrayList<>(index.keySet());
+    }
+
+    public synchronized int size() {
+        return index.size();
+    }
+
+    /**
+     * Syncs the segments to disk, then writes the index entries of the records appended since the last flush
+     * and syncs the index. Documents written since the last flush are lost if the program stops before the next
+     *
+     * @throws IOException On a failed write or sync
+     */
+    public synchronized void flush() throws IOException {
+        // Earlier segments were forced when the next one was started
+        segments.get(segments.size() - 1).force(false);
+        ByteBuffer entries = ByteBuffer.wrap(pendingIndex.toByteArray());
+        // A failed write is retried over the same bytes, so it cannot leave a torn entry before later ones
+        while (entries.hasRemaining()) {
+            indexChannel.write(entries, indexLength + entries.position());
+        }
+        indexLength += entries.limit();
+        pendingIndex.reset();
+        indexChannel.force(false);
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        flush();
+        for (FileChannel segment : segments) {
+            segment.close();
+        }
+        indexChannel.close();
+    }
+}
@@ -0,0 +1,113 @@
+package com.nesposi3;
+
+import java.util.Arrays;
+
+/**
+ * A document vector held in memory as parallel arrays of ascending keys and their frequencies.
+ * Used where the same documents are compared many times, so they are read from disk once.
+ */
+public class SortedTerms implements TermVector {
+    private final long[] keys;
+    private final int[] frequencies;
+    private final int size;
+    private final long termCount;
+    private final long sumOfSquares;
+
+    /**
+     * @param keys        Keys in ascending order
+     * @param frequencies The frequency of each key
+     * @param size        The number of entries used in the arrays
+     */
+    public SortedTerms(long[] keys, int[] frequencies, int size) {
+        this.keys = keys;
+        this.frequencies = frequencies;
+        this.size = size;
+        long count = 0;
+        long squares = 0;
+        for (int i = 0; i < size; i++) {
+            count += frequencies[i];
+            squares += (long) frequencies[i] * frequencies[i];
+        }
+        this.termCount = count;
+        this.sumOfSquares = squares;
+    }
+
+    /**
+     * Reads every remaining entry of a cursor
+     *
+     * @param source The cursor to drain
+     * @return The entries of the cursor
+     */
+    public static SortedTerms from(TermCursor source) {
+        long[] keys = new long[64];
+        int[] frequencies = new int[64];
+        int size = 0;
+        while (source.next()) {
+            if (size == keys.length) {
+                keys = Arrays.copyOf(keys, size * 2);
+                frequencies = Arrays.copyOf(frequencies, size * 2);
+            }
+            keys[size] = source.key();
+            frequencies[size] = source.frequency();
+            size++;
+        }
+        return new SortedTerms(keys, frequencies, size);
+    }
+
+    @Override
+    public int search(long key) {
+        int found = Arrays.binarySearch(keys, 0, size, key);
+        return found >= 0 ? frequencies[found] : 0;
+    }
+
+    /**
+     * @return A new cursor over the entries
+     */
+    @Override
+    public TermCursor cursor() {
+        return new TermCursor() {
+            private int position = -1;
+
+            @Override
+            public boolean next() {
+                position++;
+                return position < size;
+            }
+
+            @Override
+            public void seek(long key) {
+                int found = Arrays.binarySearch(keys, 0, size, key);
+                position = (found >= 0 ? found : -found - 1) - 1;
+            }
+
+            @Override
+            public long key() {
+                return keys[position];
+            }
+
+            @Override
+            public int frequency() {
+                return frequencies[position];
+            }
+        };
+    }
+
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public long totalWordCount() {
+        return termCount;
+    }
+
+    @Override
+    public int totalNumKeys() {
+        return size;
+    }
+
+    @Override
+    public double norm() {
+        return Math.sqrt(sumOfSquares);
+    }
+}
@@ -0,0 +1,31 @@
+package com.nesposi3;
+
+/**
+ * A forward cursor over the entries of a document vector, in ascending key order.
+ * A cursor starts before its first entry, so next() must be called before key() or frequency().
+ */
+public interface TermCursor {
+    /**
+     * Moves to the next entry
+     *
+     * @return true if the cursor is on an entry, false once the entries are exhausted
+     */
+    boolean next();
+
+    /**
+     * Positions the cursor so the following call to next() moves to the first entry with a key of at least the given one
+     *
+     * @param key The key to seek to
+     */
+    void seek(long key);
+
+    /**
+     * @return The key of the current entry
+     */
+    long key();
+
+    /**
+     * @return The frequency of the current entry
+     */
+    int frequency();
+}
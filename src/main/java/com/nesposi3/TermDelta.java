@@ -0,0 +1,118 @@
+package com.nesposi3;
+
+import java.util.Arrays;
+
+/**
+ * The change between two versions of a document vector, as the keys whose frequency changed and by how much.
+ * Applying it to the old version gives the new one, so a re-downloaded document that barely changed
+ * can be updated with a few writes instead of being stored again.
+ */
+public class TermDelta {
+    public final long[] keys;
+    public final int[] deltas;
+    public final int size;
+
+    /**
+     * @param keys   Keys in strictly ascending order
+     * @param deltas The change in frequency of each key, never 0
+     * @param size   The number of entries used in the arrays
+     */
+    public TermDelta(long[] keys, int[] deltas, int size) {
+        this.keys = keys;
+        this.deltas = deltas;
+        this.size = size;
+    }
+
+    /**
+     * Walks both vectors in key order, so the difference costs one pass over each
+     *
+     * @param from The old version
+     * @param to   The new version
+     * @return The changes that turn from into to
+     */
+    public static TermDelta between(TermVector from, TermVector to) {
+        long[] keys = new long[64];
+        int[] deltas = new int[64];
+        int size = 0;
+        TermCursor a = from.cursor();
+        TermCursor b = to.cursor();
+        boolean hasA = a.next();
+        boolean hasB = b.next();
+        while (hasA || hasB) {
+            long key;
+            int delta;
+            if (!hasB || (hasA && a.key() < b.key())) {
+                key = a.key();
+                delta = -a.frequency();
+                hasA = a.next();
+            } else if (!hasA || b.key() < a.key()) {
+                key = b.key();
+                delta = b.frequency();
+                hasB = b.next();
+            } else {
+                key = a.key();
+                delta = b.frequency() - a.frequency();
+                hasA = a.next();
+                hasB = b.next();
+            }
+            if (delta == 0) {
+                continue;
+            }
+            if (size == keys.length) {
+                keys = Arrays.copyOf(keys, size * 2);
+                deltas = Arrays.copyOf(deltas, size * 2);
+            }
+            keys[size] = key;
+            deltas[size] = delta;
+            size++;
+        }
+        return new TermDelta(keys, deltas, size);
+    }
+
+    /**
+     * @return True if the two versions were the same
+     */
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Applies the changes to the old version in memory. Keys whose frequency drops to 0 are left out
+     *
+     * @param terms The old version
+     * @return The new version
+     */
+    public SortedTerms applyTo(SortedTerms terms) {
+        long[] merged = new long[terms.totalNumKeys() + size];
+        int[] frequencies = new int[merged.length];
+        int count = 0;
+        int d = 0;
+        TermCursor cursor = terms.cursor();
+        boolean has = cursor.next();
+        while (has || d < size) {
+            long key;
+            int frequency;
+            if (d == size || (has && cursor.key() < keys[d])) {
+                key = cursor.key();
+                frequency = cursor.frequency();
+                has = cursor.next();
+            } else if (!has || keys[d] < cursor.key()) {
+                key = keys[d];
+                frequency = deltas[d++];
+            } else {
+                key = keys[d];
+                frequency = cursor.frequency() + deltas[d++];
+                has = cursor.next();
+            }
+            if (frequency < 0) {
+                throw new IllegalArgumentException("Frequency of key " + key + " cannot drop below 0");
+            }
+            if (frequency > 0) {
+                merged[count] = key;
+                frequencies[count] = frequency;
+                count++;
+            }
+        }
+        return new SortedTerms(merged, frequencies, count);
+    }
+}
@@ -0,0 +1,401 @@
+package com.nesposi3;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * The words of every document in the corpus, each with a dense int id in the order it was first seen
+ * and the hash that is its key in term vectors. Code that needs arrays indexed by term can map keys to ids,
+ * and any key can be turned back into its word for debugging.
+ * A hash shared by two words keeps the word seen first.
+ *
+ * The dictionary lives in three files of a directory. The words are appended to a string pool, which is
+ * read through a memory map. The hash and pool offset of every id are appended to the id file as words are added.
+ * The open addressing table from hash to id is written on flush, and rebuilt from the id file when opening
+ * finds it missing or behind, as a crash before a flush leaves it.
+ *
+ * Pool format in bytes, one record per id:
+ *        4          n
+ *    | length | UTF-8 bytes |
+ *
+ * Id file format in bytes:
+ *       4          4            8          4
+ *    | magic | term hash | ( hash | pool offset ) * ids |
+ *
+ * Table file format in bytes, a slot holds 1 more than the id of the hash that probed to it, or 0 if empty:
+ *       4        4         4           4 * capacity
+ *    | magic | ids | capacity |           slots           |
+ */
+public class TermDictionary implements AutoCloseable {
+    static final String POOL_NAME = "pool";
+    static final String IDS_NAME = "ids";
+    static final String TABLE_NAME = "table";
+    static final int IDS_MAGIC = 0x54444944;
+    static final int TABLE_MAGIC = 0x54445442;
+    static final int IDS_HEADER_SIZE = 8;
+    static final int ID_ENTRY_SIZE = 12;
+    static final int TABLE_HEADER_SIZE = 12;
+    private static final int MIN_CAPACITY = 1024;
+
+    private final File directory;
+    private final TermHash termHash;
+    private final FileChannel pool;
+    private final FileChannel ids;
+    private long poolLength;
+    // The hash and pool offset of every id
+    private long[] hashes;
+    private int[] offsets;
+    private int size;
+    // Slots of the table, 1 more than an id, 0 for empty. Kept at most half full
+    private int[] slots;
+    // The number of ids the table file holds
+    private int tableSize;
+    private MappedByteBuffer poolMap;
+
+    /**
+     * Opens the dictionary in the given directory, creating it if it does not exist
+     *
+     * @param directory The directory holding the dictionary
+     * @param termHash  The function the hashes of the words come from
+     * @throws IOException If the files cannot be opened, or hold words hashed by another function
+     */
+    public TermDictionary(String directory, TermHash termHash) throws IOException {
+        this.directory = new File(directory);
+        this.termHash = termHash;
+        this.directory.mkdirs();
+        this.pool = FileChannel.open(new File(this.directory, POOL_NAME).toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.ids = FileChannel.open(new File(this.directory, IDS_NAME).toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            loadIds();
+            loadTable();
+            this.poolMap = pool.map(FileChannel.MapMode.READ_ONLY, 0, poolLength);
+        } catch (IOException e) {
+            pool.close();
+            ids.close();
+            throw e;
+        }
+    }
+
+    private void loadIds() throws IOException {
+        if (ids.size() < IDS_HEADER_SIZE) {
+            ByteBuffer header = ByteBuffer.allocate(IDS_HEADER_SIZE);
+            header.putInt(IDS_MAGIC);
+            header.putInt(termHash.ordinal());
+            header.flip();
+            ids.truncate(0);
+            write(ids, header, 0);
+            pool.truncate(0);
+            this.hashes = new long[MIN_CAPACITY / 2];
+            this.offsets = new int[MIN_CAPACITY / 2];
+            return;
+        }
+        ByteBuffer buffer = read(ids, 0, (int) ids.size());
+        if (buffer.getInt() != IDS_MAGIC) {
+            throw new IOException(directory + " does not hold a term dictionary");
+        }
+        TermHash recorded = TermHash.fromOrdinal(buffer.getInt());
+        if (recorded != termHash) {
+            throw new IOException(directory + " holds " + recorded + " hashes, not " + termHash);
+        }
+        int count = buffer.remaining() / ID_ENTRY_SIZE;
+        this.hashes = new long[Math.max(count, MIN_CAPACITY / 2)];
+        this.offsets = new int[hashes.length];
+        for (int i = 0; i < count; i++) {
+            hashes[i] = buffer.getLong();
+            offsets[i] = buffer.getInt();
+        }
+        // Words are written to the pool before their ids, only the last ids can point past what made it to the pool
+        long poolSize = pool.size();
+        long end = 0;
+        while (count > 0) {
+            int offset = offsets[count - 1];
+            if (offset + 4L <= poolSize) {
+                end = offset + 4L + read(pool, offset, 4).getInt();
+                if (end <= poolSize) {
+                    break;
+                }
+            }
+            count--;
+            end = 0;
+        }
+        this.size = count;
+        ids.truncate(IDS_HEADER_SIZE + (long) size * ID_ENTRY_SIZE);
+        pool.truncate(end);
+        this.poolLength = end;
+    }
+
+    private void loadTable() throws IOException {
+        File file = new File(directory, TABLE_NAME);
+        if (file.exists() && file.length() >= TABLE_HEADER_SIZE) {
+            try (FileChannel table = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                ByteBuffer header = read(table, 0, TABLE_HEADER_SIZE);
+                int count = header.getInt(4);
+                int capacity = header.getInt(8);
+                if (header.getInt(0) == TABLE_MAGIC && count == size
+                        && table.size() == TABLE_HEADER_SIZE + 4L * capacity && Integer.bitCount(capacity) == 1) {
+                    slots = new int[capacity];
+                    read(table, TABLE_HEADER_SIZE, 4 * capacity).asIntBuffer().get(slots);
+                    tableSize = size;
+                    return;
+                }
+            }
+        }
+        // Missing or behind the ids, build it again
+        slots = new int[capacityFor(size)];
+        for (int id = 0; id < size; id++) {
+            slots[findSlot(hashes[id])] = id + 1;
+        }
+        tableSize = -1;
+    }
+
+    private static int capacityFor(int size) {
+        int capacity = MIN_CAPACITY;
+        while (capacity < 2L * (size + 1)) {
+            capacity *= 2;
+        }
+        return capacity;
+    }
+
+    /**
+     * @return The slot holding the hash, or the empty slot where it would go
+     */
+    private int findSlot(long hash) {
+        int mask = slots.length - 1;
+        int slot = (int) (hash ^ (hash >>> 32)) & mask;
+        while (slots[slot] != 0 && hashes[slots[slot] - 1] != hash) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    /**
+     * @param hash The key of a word in term vectors
+     * @return The id of the word, or -1 if it is not in the dictionary
+     */
+    public synchronized int id(long hash) {
+        return slots[findSlot(hash)] - 1;
+    }
+
+    /**
+     * @param id An id
+     * @return The key of the word with that id in term vectors
+     */
+    public synchronized long hash(int id) {
+        checkId(id);
+        return hashes[id];
+    }
+
+    /**
+     * @param id An id
+     * @return The word with that id
+     */
+    public synchronized String term(int id) {
+        checkId(id);
+        int offset = offsets[id];
+        if (offset + 4L > poolMap.capacity()) {
+            // Added after the pool was last mapped
+            try {
+                poolMap = pool.map(FileChannel.MapMode.READ_ONLY, 0, poolLength);
+            } catch (IOException e) {
+                throw new IllegalStateException("Could not map the pool of " + directory, e);
+            }
+        }
+        ByteBuffer record = poolMap.duplicate();
+        record.position(offset);
+        byte[] bytes = new byte[record.getInt()];
+        record.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private void checkId(int id) {
+        if (id < 0 || id >= size) {
+            throw new IllegalArgumentException("No term has id " + id);
+        }
+    }
+
+    /**
+     * @return The number of words, every id is below it
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    public TermHash getTermHash() {
+        return termHash;
+    }
+
+    /**
+     * Adds a word if its hash is not in the dictionary yet
+     *
+     * @param hash  The key of the word
+     * @param chars The text holding the word
+     * @param from  The first char of the word
+     * @param to    The char after the word
+     * @return The id of the word
+     * @throws IOException If the word could not be written
+     */
+    public synchronized int add(long hash, CharSequence chars, int from, int to) throws IOException {
+        int[] starts = {from};
+        int[] ends = {to};
+        addAll(chars, new long[]{hash}, starts, ends, 1);
+        return id(hash);
+    }
+
+    /**
+     * Adds the words of a document whose hashes are not in the dictionary yet, writing them all at once.
+     * If the words cannot be written the dictionary is left as it was before the call
+     *
+     * @param text   The text of the document
+     * @param hashes The key of every word
+     * @param starts The first char of every word
+     * @param ends   The char after every word
+     * @param count  The number of words
+     * @throws IOException If the words could not be written
+     */
+    public synchronized void addAll(CharSequence text, long[] hashes, int[] starts, int[] ends, int count)
+            throws IOException {
+        int first = size;
+        long firstPoolLength = poolLength;
+        try {
+            ByteBuffer words = null;
+            for (int i = 0; i < count; i++) {
+                int slot = findSlot(hashes[i]);
+                if (slots[slot] != 0) {
+                    continue;
+                }
+                byte[] bytes = text.subSequence(starts[i], ends[i]).toString().getBytes(StandardCharsets.UTF_8);
+                if (words == null) {
+                    words = ByteBuffer.allocate(Math.max(1024, 4 + bytes.length));
+                } else if (words.remaining() < 4 + bytes.length) {
+                    words = ByteBuffer.allocate(Math.max(2 * words.capacity(), words.position() + 4 + bytes.length))
+                            .put(words.flip());
+                }
+                if (poolLength + words.position() + 4 + bytes.length > Integer.MAX_VALUE) {
+                    throw new IOException("The pool of " + directory + " is full");
+                }
+                if (size == this.hashes.length) {
+                    this.hashes = Arrays.copyOf(this.hashes, size * 2);
+                    this.offsets = Arrays.copyOf(this.offsets, size * 2);
+                }
+                this.hashes[size] = hashes[i];
+                this.offsets[size] = (int) (poolLength + words.position());
+                words.putInt(bytes.length);
+                words.put(bytes);
+                slots[slot] = size + 1;
+                size++;
+                if (2 * (size + 1) > slots.length) {
+                    grow();
+                }
+            }
+            if (words == null) {
+                return;
+            }
+            words.flip();
+            int written = words.remaining();
+            write(pool, words, poolLength);
+            poolLength += written;
+            ByteBuffer entries = ByteBuffer.allocate((size - first) * ID_ENTRY_SIZE);
+            for (int id = first; id < size; id++) {
+                entries.putLong(this.hashes[id]);
+                entries.putInt(offsets[id]);
+            }
+            entries.flip();
+            write(ids, entries, IDS_HEADER_SIZE + (long) first * ID_ENTRY_SIZE);
+        } catch (IOException | RuntimeException e) {
+            rollBack(first, firstPoolLength, e);
+            throw e;
+        }
+    }
+
+    /**
+     * Forgets the words added from the given id on, and cuts off whatever part of them reached the files.
+     * Slots are emptied newest first, so the probe chain of every id still to be removed is intact when it is,
+     * and the chains of older ids never ran through the slots of newer ones
+     */
+    private void rollBack(int first, long firstPoolLength, Exception cause) {
+        for (int id = size - 1; id >= first; id--) {
+            slots[findSlot(hashes[id])] = 0;
+        }
+        size = first;
+        poolLength = firstPoolLength;
+        try {
+            ids.truncate(IDS_HEADER_SIZE + (long) first * ID_ENTRY_SIZE);
+            pool.truncate(firstPoolLength);
+        } catch (IOException e) {
+            // Opening the dictionary again drops ids past the end of the pool
+            cause.addSuppressed(e);
+        }
+    }
+
+    private void grow() {
+        slots = new int[slots.length * 2];
+        for (int id = 0; id < size; id++) {
+            slots[findSlot(hashes[id])] = id + 1;
+        }
+    }
+
+    /**
+     * Writes the table if words were added since it was last written, and syncs every file to disk
+     *
+     * @throws IOException On a failed write
+     */
+    public synchronized void flush() throws IOException {
+        pool.force(false);
+        ids.force(false);
+        if (tableSize == size) {
+            return;
+        }
+        ByteBuffer table = ByteBuffer.allocate(TABLE_HEADER_SIZE + 4 * slots.length);
+        table.putInt(TABLE_MAGIC);
+        table.putInt(size);
+        table.putInt(slots.length);
+        table.asIntBuffer().put(slots);
+        table.position(table.capacity());
+        table.flip();
+        // Written next to the old table and moved over it, so a crash leaves one or the other
+        File temp = new File(directory, TABLE_NAME + ".tmp");
+        try (FileChannel channel = FileChannel.open(temp.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            write(channel, table, 0);
+            channel.force(false);
+        }
+        Files.move(temp.toPath(), new File(directory, TABLE_NAME).toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        tableSize = size;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        flush();
+        pool.close();
+        ids.close();
+    }
+
+    private static ByteBuffer read(FileChannel channel, long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                break;
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    private static void write(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        long at = position;
+        while (buffer.hasRemaining()) {
+            at += channel.write(buffer, at);
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package com.nesposi3;
+
+import com.nesposi3.Utils.ClusteringUtils;
+import com.nesposi3.Utils.HashUtils;
+
+/**
+ * The function that turns words into the 64 bit keys of term vectors.
+ * Vectors can only be compared if their keys come from the same function, so the function a store or tree
+ * was filled with is recorded in it, by its ordinal, and used for every document added later.
+ */
+public enum TermHash {
+    /**
+     * The first 64 bits of the MD5 of the word's bytes, used by everything written before the function was recorded.
+     * Words are split with the original regex, which also counts the empty words between adjacent delimiters
+     */
+    MD5 {
+        @Override
+        public long hash(CharSequence chars, int from, int to) {
+            return ClusteringUtils.stringHash64(chars.subSequence(from, to).toString());
+        }
+    },
+    XXHASH64 {
+        @Override
+        public long hash(CharSequence chars, int from, int to) {
+            return HashUtils.xxHash64(chars, from, to, 0);
+        }
+    },
+    MURMUR3 {
+        @Override
+        public long hash(CharSequence chars, int from, int to) {
+            return HashUtils.murmur3(chars, from, to, 0);
+        }
+    };
+
+    /**
+     * The function new stores and trees are filled with
+     */
+    public static final TermHash DEFAULT = XXHASH64;
+
+    /**
+     * @param chars The text holding the word
+     * @param from  The first char of the word
+     * @param to    The char after the word
+     * @return The key of the word
+     */
+    public abstract long hash(CharSequence chars, int from, int to);
+
+    /**
+     * @param ordinal The ordinal recorded in a file
+     * @return The function with that ordinal
+     * @throws IllegalArgumentException If no function has that ordinal
+     */
+    public static TermHash fromOrdinal(int ordinal) {
+        TermHash[] values = values();
+        if (ordinal < 0 || ordinal >= values.length) {
+            throw new IllegalArgumentException("Unknown term hash " + ordinal);
+        }
+        return values[ordinal];
+    }
+}
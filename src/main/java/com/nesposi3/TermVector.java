@@ -0,0 +1,63 @@
+package com.nesposi3;
+
+import com.nesposi3.Utils.SimilarityUtils;
+
+/**
+ * The term frequency vector of a document, wherever it is stored.
+ * BTree files and documents read from a SegmentStore can be compared with each other through this interface.
+ */
+public interface TermVector {
+    /**
+     * @param key The key to look for
+     * @return The frequency of the key, or 0 if it is absent
+     */
+    int search(long key);
+
+    /**
+     * Looks up many keys at once
+     *
+     * @param sortedKeys The keys to look for, in ascending order
+     * @param out        Receives the frequency of each key, or 0 if it is absent, at the same index
+     */
+    default void searchAll(long[] sortedKeys, int[] out) {
+        for (int i = 0; i < sortedKeys.length; i++) {
+            out[i] = search(sortedKeys[i]);
+        }
+    }
+
+    /**
+     * @return A cursor over every entry in ascending key order
+     */
+    TermCursor cursor();
+
+    /**
+     * @return The sum of the frequencies of every key
+     */
+    long totalWordCount();
+
+    /**
+     * @return The number of keys
+     */
+    int totalNumKeys();
+
+    /**
+     * @return The length of the frequency vector
+     */
+    double norm();
+
+    /**
+     * @param other The vector to compare to
+     * @return The cosine similarity of the two vectors
+     */
+    default double cosineSimilarity(TermVector other) {
+        return SimilarityUtils.dotProduct(this.cursor(), other.cursor()) / (this.norm() * other.norm());
+    }
+
+    /**
+     * @param other The vector to compare to
+     * @return The Euclidean distance between the two vectors
+     */
+    default double computeEuclideanDistance(TermVector other) {
+        return SimilarityUtils.euclideanDistance(this.cursor(), other.cursor());
+    }
+}
@@ -1,39 +1,81 @@
 package com.nesposi3.Utils;
 
+import java.nio.ByteBuffer;
+
 public class BTreeUtils {
     public static final String BTREE_FOLDER_NAME ="storage/btrees/";
     public static final long NULL = -1;
-    public static final int T = 3;
-    public static final int K = (2*T)-1;
-    public static final int NUM_CHILDREN = K+1;
     public static final int ADDRESS_SIZE = 8;
-    public static final int BLOCK_SIZE = 512;
-    public static final int CACHE_MAX_SIZE = 100;
+    public static final int DEFAULT_PAGE_SIZE = 4096;
+    // Files written before headers existed used order 3 nodes in 512 byte blocks
+    public static final int LEGACY_T = 3;
+    public static final int LEGACY_BLOCK_SIZE = 512;
+    public static final int DEFAULT_CACHE_PAGES = 100;
+    public static final int DEFAULT_GROUP_COMMIT_SIZE = 256;
+    public static final double DEFAULT_BLOOM_FALSE_POSITIVE_RATE = 0.01;
+    // The fewest keys a Bloom filter is sized for, it doubles whenever the tree outgrows it
+    public static final long MIN_BLOOM_CAPACITY = 1024;
+    public static final long WAL_CHECKPOINT_BYTES = 16 * 1024 * 1024;
+    public static final String WAL_SUFFIX = ".wal";
+    public static final String REBUILD_SUFFIX = ".rebuild";
 
     /**
-     * Converts a Byte object array to a primitive byte array
-     * @param objectBytes Byte object array to convert
-     * @return the primitve byte array representing the object Byte array
+     * Writes a long as an unsigned variable length integer, 7 bits per byte with the high bit marking continuation
+     * @param buffer The buffer to write into
+     * @param value The value to write, treated as unsigned
      */
-    public static byte[] toPrimitiveBytes(Byte[] objectBytes){
-        byte[] bytes = new byte[objectBytes.length];
-        for (int i = 0; i <objectBytes.length ; i++) {
-            bytes[i] = objectBytes[i];
+    public static void putVarLong(ByteBuffer buffer, long value){
+        while ((value & ~0x7FL) != 0) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
         }
-        return bytes;
+        buffer.put((byte) value);
     }
 
     /**
-     * Converts a byte primitive array to a Byte object array
-     * @param primBytes byte primitive array to voncert
-     * @return the Byte object array representing the primitive byte array
+     * Reads an unsigned variable length integer written by putVarLong
+     * @param buffer The buffer to read from
+     * @return The value read
      */
-    public static Byte[] fromPrimitiveBytes(byte[] primBytes){
-        Byte[] bytes = new Byte[primBytes.length];
-        for (int i = 0; i < primBytes.length ; i++) {
-            bytes[i] = primBytes[i];
+    public static long getVarLong(ByteBuffer buffer){
+        long value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = buffer.get();
+            value |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        } while (b < 0);
+        return value;
+    }
 
+    /**
+     * @param value The value, treated as unsigned
+     * @return The number of bytes putVarLong takes to write the value
+     */
+    public static int varLongSize(long value){
+        int size = 1;
+        while ((value & ~0x7FL) != 0) {
+            value >>>= 7;
+            size++;
         }
-        return bytes;
+        return size;
+    }
+
+    /**
+     * Maps signed values to unsigned ones so small negative numbers stay small as variable length integers
+     * @param value A signed value
+     * @return The zigzag encoded value
+     */
+    public static long zigZag(long value){
+        return (value << 1) ^ (value >> 63);
+    }
+
+    /**
+     * @param value A zigzag encoded value
+     * @return The signed value
+     */
+    public static long unZigZag(long value){
+        return (value >>> 1) ^ -(value & 1);
     }
 }
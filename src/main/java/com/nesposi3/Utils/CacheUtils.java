@@ -3,26 +3,37 @@ package com.nesposi3.Utils;
 import com.nesposi3.BTree;
 import com.nesposi3.Cluster;
 import com.nesposi3.GraphNode;
+import com.nesposi3.HtmlPage;
+import com.nesposi3.IngestConfig;
+import com.nesposi3.IngestPipeline;
+import com.nesposi3.LongIntHashMap;
+import com.nesposi3.SegmentStore;
+import com.nesposi3.SortedTerms;
+import com.nesposi3.TermDictionary;
+import com.nesposi3.TermHash;
+import com.nesposi3.TermVector;
 import org.jsoup.Connection;
 import org.jsoup.Jsoup;
-import org.jsoup.nodes.Document;
-import org.jsoup.nodes.Element;
-import org.jsoup.select.Elements;
 
-import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileWriter;
 import java.io.IOException;
+import java.nio.file.Files;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.*;
-import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 public class CacheUtils {
     public static final String DIRECTORY_NAME = "storage/btrees/";
+    public static final String SEGMENT_DIRECTORY = "storage/segments/";
+    public static final String TERM_DIRECTORY = "storage/terms/";
     public final static String BASE_URI = "https://en.wikipedia.org";
     public static final String URL_BEGINNING = "httpsenwikipediaorgwiki";
+    //This pattern excludes all files, special wikipedia pages, and disambiguation pages
+    private static final Pattern LINK_PATTERN = Pattern.compile("\\/wiki\\/((?!((Wikipedia:)|(File:)|(Help:))).)*(?<!(_\\(disambiguation\\)))");
+    private static final int LINKS_PER_PAGE = 50;
+    private static SegmentStore documentStore;
+    private static TermDictionary termDictionary;
     /**
      * Removes special characters from the input string
      *
@@ -41,31 +52,29 @@ public class CacheUtils {
      * @throws ParseException
      */
     public static void initialize() throws IOException, ParseException {
-        File links = new File("links.txt");
-        Scanner file = new Scanner(links);
-        //This pattern excludes all files, special wikipedia pages, and disambiguation pages
-        Pattern urlPattern = Pattern.compile("\\/wiki\\/((?!((Wikipedia:)|(File:)|(Help:))).)*(?<!(_\\(disambiguation\\)))");
+        initialize(IngestConfig.defaults());
+    }
+
+    /**
+     * Goes through control file and adds files to cache based on links from those files.
+     * The pages of the control file are ingested first, in parallel, then every page they link to
+     *
+     * @param config The threads of each stage of the ingestion
+     * @throws IOException
+     * @throws ParseException
+     */
+    public static void initialize(IngestConfig config) throws IOException, ParseException {
+        List<String> roots = new ArrayList<>();
+        Scanner file = new Scanner(new File("links.txt"));
         while (file.hasNextLine()) {
-            String line = file.nextLine();
-            Document doc = (getWebsiteDocument(line));
-            Elements linkElements = doc.select("a");
-            int numLinks = 0;
-            int i = 0;
-            writeDocToBtree(generateFileName(line),doc,true);
-            while (numLinks < 50 && i < linkElements.size()) {
-                Element e = linkElements.get(i);
-                i++;
-                String link = (e.attr("href"));
-                Matcher m = urlPattern.matcher(link);
-                if (m.matches()) {
-                    numLinks++;
-                    String flink = BASE_URI + (e.attr("href"));
-                    Document linkedDoc = getWebsiteDocument(flink);
-                    writeDocToBtree(generateFileName(flink),linkedDoc,true);
-                }
-            }
+            roots.add(file.nextLine());
         }
         file.close();
+        IngestPipeline pipeline = new IngestPipeline(config, LINK_PATTERN, LINKS_PER_PAGE);
+        pipeline.ingest(roots);
+        documentStore().flush();
+        termDictionary().flush();
+        System.out.print(pipeline.stats());
     }
     public static void initializeGraph() throws IOException, ParseException{
         File dir = new File("storage/html");
@@ -75,23 +84,18 @@ public class CacheUtils {
         for (int i = 0; i <files.length ; i++) {
             //Strips the .html from the filename
             String strippedUrl = files[i].getName().substring(0,files[i].getName().length()-5);
-            Document doc = getDocFromFile(strippedUrl);
-            Elements linkElements = doc.select("a");
-            BTree root = writeDocToBtree(strippedUrl,doc,false);
-            GraphNode g = new GraphNode(doc.title(),strippedUrl);
-            for (Element e: linkElements
-                 ) {
-                String link = (e.attr("href"));
-                Matcher m = urlPattern.matcher(link);
-                if(m.matches()){
-                    String flink = BASE_URI + (e.attr("href"));
-                    Document linkedDoc = getDocFromFile(generateFileName(flink));
-                    if(linkedDoc!=null){
-                        //We have this page in our graph
-                        BTree linked = writeDocToBtree(generateFileName(flink),linkedDoc,false);
-                        double similarity = (1.0 - root.cosineSimilarity(linked));
-                        g.addLinked(generateFileName(flink),similarity);
-                    }
+            // Only the title, text and matching links are kept, no tree is built of the page
+            HtmlPage page = getPageFromFile(strippedUrl, urlPattern);
+            TermVector root = readDoc(strippedUrl,page);
+            GraphNode g = new GraphNode(page.getTitle(),strippedUrl);
+            for (String link : page.getLinks()) {
+                String flink = BASE_URI + link;
+                // A linked page is only read from its file if the store does not have it yet
+                TermVector linked = readCachedDoc(generateFileName(flink));
+                if(linked!=null){
+                    //We have this page in our graph
+                    double similarity = (1.0 - root.cosineSimilarity(linked));
+                    g.addLinked(generateFileName(flink),similarity);
                 }
             }
             g.writeToDisk();
@@ -180,11 +184,11 @@ public class CacheUtils {
      * Checks when files stored in cache were last updated, if later than web, redownload
      *
      * @param url The url for the website to be downloaded
-     * @return The jsoup Document created by the method
+     * @return The html of the website
      * @throws IOException
      * @throws ParseException
      */
-    public static Document getWebsiteDocument(String url) throws IOException, ParseException {
+    public static String getWebsiteHtml(String url) throws IOException, ParseException {
         String fileName = generateFileName(url);
         File f = new File("storage/html/" + fileName + ".html");
         if (f.exists()) {
@@ -198,61 +202,163 @@ public class CacheUtils {
             System.out.println(dString);
             Date date = format.parse(dString);
             long webMod = date.getTime();
-            // If website modified after local, get page again
+            // If website modified after local, keep the page the check already downloaded
             if (webMod > localMod) {
-                f.delete();
-                f.createNewFile();
-                Document doc = Jsoup.connect(url).get();
-                String text = doc.outerHtml();
-                BufferedWriter writer = new BufferedWriter(new FileWriter(f));
-                writer.write(text);
-                writer.close();
-                return doc;
+                String text = conn.body();
+                Files.writeString(f.toPath(), text);
+                return text;
             } else {
-                return Jsoup.parse(f, "UTF-8", "");
+                return Files.readString(f.toPath());
             }
         } else {
-            f.createNewFile();
             //file doesn't exist, download
-            Document doc = Jsoup.connect(url).get();
-            String text = doc.outerHtml();
-            BufferedWriter writer = new BufferedWriter(new FileWriter(f));
-            writer.write(text);
-            writer.close();
-            return doc;
+            String text = Jsoup.connect(url).execute().body();
+            Files.writeString(f.toPath(), text);
+            return text;
         }
     }
-    public static Document getDocFromFile(String fileName) throws IOException, ParseException {
+    /**
+     * Takes in a url, creates and stores an html file from the url, and extracts its title and text
+     *
+     * @param url The url for the website to be downloaded
+     * @return The page, with no links kept
+     * @throws IOException
+     * @throws ParseException
+     */
+    public static HtmlPage getWebsitePage(String url) throws IOException, ParseException {
+        return HtmlPage.fromHtml(getWebsiteHtml(url), null, 0);
+    }
+
+    /**
+     * Extracts a page from its file in the html cache, reading the file through a fixed size buffer
+     *
+     * @param fileName    The name of the page, as generateFileName gives it
+     * @param linkPattern The links to keep, matched against their href
+     * @return The page, or null if it is not in the cache
+     * @throws IOException If the file could not be read
+     */
+    public static HtmlPage getPageFromFile(String fileName, Pattern linkPattern) throws IOException {
         File f = new File("storage/html/" + fileName + ".html");
-        if(f.exists()){
-            return Jsoup.parse(f, "UTF-8", "");
-        }else {
-            return null;
+        return f.exists() ? HtmlPage.fromFile(f, linkPattern, Integer.MAX_VALUE) : null;
+    }
+
+    /**
+     * Counts the words of a page and writes its term vector to the document store,
+     * adding any word not seen before to the term dictionary.
+     * If the store already holds an older version, only the terms that changed are written,
+     * unless so many changed that writing the whole vector again is smaller
+     * @param name The name to store the page under
+     * @param page The page
+     * @return The term vector of the page
+     * @throws IOException If the store could not be written
+     */
+    public static SortedTerms writeDocToStore(String name,HtmlPage page) throws IOException {
+        SortedTerms terms = countHashes(TokenizerUtils.hashWords(page.getText(),
+                documentStore().getTermHash(), termDictionary()));
+        storeTerms(name, terms);
+        return terms;
+    }
+
+    /**
+     * Counts the hashes of a document's words into its term vector.
+     * Each hash is counted in a primitive map, so only the distinct hashes are sorted afterwards
+     * @param hashes The hash of every word
+     * @return The term vector
+     */
+    public static SortedTerms countHashes(long[] hashes) {
+        // Most words of a page repeat, a quarter as many distinct hashes rarely needs a resize
+        LongIntHashMap counts = new LongIntHashMap(hashes.length / 4);
+        for (long hash : hashes) {
+            counts.increment(hash);
         }
+        return counts.toSortedTerms();
+    }
+
+    /**
+     * Writes a document's term vector to the document store.
+     * If the store already holds an older version, only the terms that changed are written,
+     * unless so many changed that writing the whole vector again is smaller.
+     * Safe to call from several threads for the same name
+     * @param name The name to store the document under
+     * @param terms The term vector of the document
+     * @throws IOException If the store could not be written
+     */
+    public static void storeTerms(String name, SortedTerms terms) throws IOException {
+        documentStore().update(name, terms);
     }
 
-    public static BTree writeDocToBtree(String name,Document document,boolean diskWrite) throws IOException {
+    /**
+     * Reads a page's term vector from the store, counting it from the page if it was never stored
+     * @param name The name the page is stored under
+     * @param page The page
+     * @return The term vector of the page
+     * @throws IOException If the store could not be read or written
+     */
+    public static TermVector readDoc(String name,HtmlPage page) throws IOException {
+        SortedTerms terms = documentStore().get(name);
+        return terms != null ? terms : writeDocToStore(name, page);
+    }
 
-        BTree bTree = new BTree(DIRECTORY_NAME+name);
-        if(!diskWrite) return bTree;
-        //Maps word hash with frequencies
-        HashMap<Long,Integer> map = new HashMap<>();
-        String content = document.text();
-        String delimiters ="[ .!?@\\[\\]/()\\-—,\"\']";
-        String[] words = content.split(delimiters);
-        for (int i = 0; i <words.length ; i++) {
-            // Use the 64 bit hashing function
-            Long hashedWord = ClusteringUtils.stringHash64(words[i]);
-            //Check if word exists, if yes, increment value
-            if(map.containsKey(hashedWord)){
-                map.put(hashedWord,map.get(hashedWord)+1);
-            }else{
-                map.put(hashedWord,1);
+    /**
+     * Reads a cached page's term vector from the store, extracting the page from its file if it was never stored
+     * @param name The name the page is stored under
+     * @return The term vector of the page, or null if it is not in the html cache
+     * @throws IOException If the file or the store could not be read, or the store could not be written
+     */
+    private static TermVector readCachedDoc(String name) throws IOException {
+        if (!new File("storage/html/" + name + ".html").exists()) {
+            return null;
+        }
+        SortedTerms terms = documentStore().get(name);
+        return terms != null ? terms : writeDocToStore(name, getPageFromFile(name, null));
+    }
+
+    /**
+     * Opens the store holding every cached document, shared by the whole program.
+     * Documents cached as one BTree file each by earlier versions are copied into it the first time
+     * @return The document store
+     * @throws IOException If the store could not be opened
+     */
+    public static synchronized SegmentStore documentStore() throws IOException {
+        if (documentStore == null) {
+            File[] trees = new File(DIRECTORY_NAME).listFiles((dir, name) ->
+                    !name.endsWith(BTreeUtils.WAL_SUFFIX) && !name.endsWith(BTreeUtils.REBUILD_SUFFIX));
+            // A new store takes the hash of the trees it is filled from, so their keys stay comparable
+            TermHash termHash = TermHash.DEFAULT;
+            if (trees != null && trees.length > 0 && !new File(SEGMENT_DIRECTORY).exists()) {
+                try (BTree tree = new BTree(DIRECTORY_NAME + trees[0].getName())) {
+                    termHash = tree.getTermHash();
+                }
             }
+            documentStore = new SegmentStore(SEGMENT_DIRECTORY, SegmentStore.DEFAULT_SEGMENT_BYTES, termHash);
+            if (documentStore.size() == 0 && trees != null) {
+                for (File f : trees) {
+                    try (BTree tree = new BTree(DIRECTORY_NAME + f.getName())) {
+                        if (tree.getTermHash() != documentStore.getTermHash()) {
+                            System.out.println("Skipping " + f.getName() + ", its keys are " + tree.getTermHash()
+                                    + " hashes and the store's are " + documentStore.getTermHash());
+                            continue;
+                        }
+                        documentStore.put(f.getName(), SortedTerms.from(tree.cursor()));
+                    }
+                }
+                documentStore.flush();
+            }
+        }
+        return documentStore;
+    }
+
+    /**
+     * Opens the dictionary of every word seen in a cached document, shared by the whole program.
+     * Its hashes come from the same function as the document store's keys
+     * @return The term dictionary
+     * @throws IOException If the dictionary could not be opened
+     */
+    public static synchronized TermDictionary termDictionary() throws IOException {
+        if (termDictionary == null) {
+            termDictionary = new TermDictionary(TERM_DIRECTORY, documentStore().getTermHash());
         }
-        // Add vals to bTree
-        map.forEach(bTree::insert);
-        return bTree;
+        return termDictionary;
     }
     public static String titleFromFileName(String name){
         return  name.split(URL_BEGINNING)[1];
@@ -0,0 +1,85 @@
+package com.nesposi3.Utils;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.CRC32C;
+
+/**
+ * CRC32C checksums for the pages of BTree files and for the small record files of the graph and clusters.
+ *
+ * A checksummed page keeps its last 4 bytes for the checksum of the bytes before them.
+ * A record file ends in a trailer after the record:
+ *        4          4
+ *    | CRC32C | trailer magic |
+ * Record files written before checksums end right after the record, they are read without a check.
+ */
+public class ChecksumUtils {
+    public static final int CHECKSUM_SIZE = 4;
+    public static final int RECORD_TRAILER_MAGIC = 0x43524331;
+    public static final int RECORD_TRAILER_SIZE = 8;
+
+    /**
+     * @param bytes  The bytes to check
+     * @param offset Where to start
+     * @param length How many bytes to check
+     * @return The CRC32C of the bytes
+     */
+    public static int crc32c(byte[] bytes, int offset, int length){
+        CRC32C crc = new CRC32C();
+        crc.update(bytes, offset, length);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Writes the checksum of a page into its last 4 bytes
+     * @param page     The bytes holding the page
+     * @param offset   Where the page starts
+     * @param pageSize The size of the page
+     */
+    public static void stampPage(byte[] page, int offset, int pageSize){
+        int body = pageSize - CHECKSUM_SIZE;
+        ByteBuffer.wrap(page).putInt(offset + body, crc32c(page, offset, body));
+    }
+
+    /**
+     * @param page     The bytes holding the page
+     * @param offset   Where the page starts
+     * @param pageSize The size of the page
+     * @return True if the last 4 bytes of the page hold the checksum of the rest
+     */
+    public static boolean verifyPage(byte[] page, int offset, int pageSize){
+        int body = pageSize - CHECKSUM_SIZE;
+        return ByteBuffer.wrap(page).getInt(offset + body) == crc32c(page, offset, body);
+    }
+
+    /**
+     * @param record The bytes of a record
+     * @return The record followed by its trailer, ready to be written to its file
+     */
+    public static byte[] seal(byte[] record){
+        byte[] out = Arrays.copyOf(record, record.length + RECORD_TRAILER_SIZE);
+        ByteBuffer.wrap(out, record.length, RECORD_TRAILER_SIZE)
+                .putInt(crc32c(record, 0, record.length))
+                .putInt(RECORD_TRAILER_MAGIC);
+        return out;
+    }
+
+    /**
+     * Checks the trailer of a record file once the record has been read from the buffer
+     * @param buffer The buffer the record was read from, positioned just past the record
+     * @throws IllegalArgumentException If anything but a trailer follows the record, or the trailer does not match
+     */
+    public static void checkTrailer(ByteBuffer buffer){
+        int end = buffer.position();
+        if (buffer.remaining() == 0) {
+            // Written before checksums
+            return;
+        }
+        if (buffer.remaining() != RECORD_TRAILER_SIZE || buffer.getInt(end + 4) != RECORD_TRAILER_MAGIC) {
+            throw new IllegalArgumentException("Unexpected " + buffer.remaining() + " bytes after the record");
+        }
+        if (buffer.getInt(end) != crc32c(buffer.array(), buffer.arrayOffset(), end)) {
+            throw new IllegalArgumentException("Record failed its checksum");
+        }
+    }
+}
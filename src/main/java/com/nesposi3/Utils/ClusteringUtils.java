@@ -1,8 +1,10 @@
 package com.nesposi3.Utils;
 
-import com.nesposi3.BTree;
 import com.nesposi3.Cluster;
-import org.jsoup.nodes.Document;
+import com.nesposi3.HtmlPage;
+import com.nesposi3.SegmentStore;
+import com.nesposi3.SortedTerms;
+import com.nesposi3.TermVector;
 
 import java.io.File;
 import java.io.IOException;
@@ -10,9 +12,9 @@ import java.nio.ByteBuffer;
 import java.nio.file.Files;
 import java.text.ParseException;
 import java.util.HashMap;
-import java.util.Map;
+import java.util.HashSet;
+import java.util.List;
 
-import static com.nesposi3.Utils.BTreeUtils.BTREE_FOLDER_NAME;
 import static org.apache.commons.codec.digest.DigestUtils.md5;
 
 public class ClusteringUtils {
@@ -36,21 +38,17 @@ public class ClusteringUtils {
     }
 
     /**
-     * This function reforms a k-medioids analysis on the cached btrees
+     * This function reforms a k-medioids analysis on the cached documents
      * @throws IOException
      */
     public static void kMedioids()throws IOException {
-        HashMap<BTree, String> bTreeMap = new HashMap<>();
-        HashMap<String,HashMap<Long,Integer>> bTreeFreqMap = new HashMap<>();
-        // Get all btrees from the folder, add them to the map with String name
-        File dir = new File(BTREE_FOLDER_NAME);
-        File[] files = dir.listFiles();
+        HashMap<String,SortedTerms> docTerms = new HashMap<>();
+        // Read every document from the store in one sequential pass
+        SegmentStore store = CacheUtils.documentStore();
+        store.scan(docTerms::put);
+        List<String> names = store.names();
+        HashSet<String> unassigned = new HashSet<>(names);
         Cluster[] clusters = new Cluster[NUM_CLUSTERS];
-        for (int i = 0; i < files.length ; i++) {
-            BTree tree = new BTree(BTREE_FOLDER_NAME  + files[i].getName());
-            bTreeMap.put(tree,files[i].getName());
-            bTreeFreqMap.put(tree.getFileName(),tree.getKeyFreqMap());
-        }
 
         // create blank cluster with given id
         for (int i = 0; i <NUM_CLUSTERS ; i++) {
@@ -60,29 +58,28 @@ public class ClusteringUtils {
 
         // Assign initial medioids to the clusters
         for (int i = 0; i <NUM_CLUSTERS ; i++) {
-            clusters[i].setMedioid(files[i*10].getName());
-            System.out.println("Initital Mediod: " + files[i*10].getName() );
+            clusters[i].setMedioid(names.get(i*10));
+            System.out.println("Initital Mediod: " + names.get(i*10) );
         }
         // At every medioid, add some members to it based on who is the closest
         for (int i = 0; i <clusters.length ; i++) {
             Cluster cluster = clusters[i];
-            BTree medioid = new BTree(BTREE_FOLDER_NAME+cluster.medioid);
-            HashMap<Long,Integer> medMap = medioid.getKeyFreqMap();
+            SortedTerms medTerms = docTerms.get(cluster.medioid);
             int numMembers = 0;
             while(numMembers<10){
-                BTree closest = null;
+                String closest = null;
                 double closestValue = Double.MIN_VALUE;
-                for(BTree x:bTreeMap.keySet()){
-                    double similarity = cosineSimilarity(bTreeFreqMap.get(x.getFileName()),medMap);
+                for(String x:unassigned){
+                    double similarity = docTerms.get(x).cosineSimilarity(medTerms);
                     if(similarity > closestValue){
                         closestValue = similarity;
                         closest = x;
                     }
                 }
-                cluster.addMember(bTreeMap.get(closest));
-                System.out.println(bTreeMap.get(closest));
+                cluster.addMember(closest);
+                System.out.println(closest);
                 numMembers++;
-                bTreeMap.remove(closest);
+                unassigned.remove(closest);
             }
 
         }
@@ -92,22 +89,18 @@ public class ClusteringUtils {
             Cluster currentCluster = clusters[i];
             String[] members = currentCluster.getMembers();
             double totalcost=0;
-            BTree medtree =  new BTree(BTREE_FOLDER_NAME + currentCluster.getMedioid());
-            HashMap<Long,Integer> medMap = bTreeFreqMap.get(medtree.getFileName());
+            SortedTerms medTerms = docTerms.get(currentCluster.getMedioid());
             for(String member:members){
-                BTree tree = new BTree(BTREE_FOLDER_NAME + member);
-                HashMap<Long,Integer> treeMap = bTreeFreqMap.get(tree.getFileName());
-                totalcost += cosineSimilarity(medMap,treeMap);
+                SortedTerms memberTerms = docTerms.get(member);
+                totalcost += medTerms.cosineSimilarity(memberTerms);
             }
             int j = 0;
             while(j<SWAP_ITERATION && j<members.length){
                 double trialCost = 0;
-                BTree newMed = new BTree(BTREE_FOLDER_NAME + members[j]);
-                HashMap<Long,Integer> trialMedioidMap = bTreeFreqMap.get(newMed.getFileName());
+                SortedTerms trialMedioidTerms = docTerms.get(members[j]);
                 for (String member: members) {
-                    BTree tree = new BTree(BTREE_FOLDER_NAME + member);
-                    HashMap<Long,Integer> trialNeighborMap = bTreeFreqMap.get(tree.getFileName());
-                    trialCost += cosineSimilarity(trialMedioidMap,trialNeighborMap);
+                    SortedTerms trialNeighborTerms = docTerms.get(member);
+                    trialCost += trialMedioidTerms.cosineSimilarity(trialNeighborTerms);
                 }
                 if(trialCost<totalcost){
                     String oldMedioid = currentCluster.getMedioid();
@@ -122,34 +115,25 @@ public class ClusteringUtils {
         }
     }
     public static String findClosestTree(String url)throws ParseException, IOException{
-        HashMap<BTree, String> bTreeMap = new HashMap<>();
-
-        // Get all btrees from the folder, add them to the map with String name
-        File dir = new File(BTREE_FOLDER_NAME);
-        File[] files = dir.listFiles();
-        for (int i = 0; i < files.length ; i++) {
-            BTree tree = new BTree(BTREE_FOLDER_NAME  + files[i].getName());
-            bTreeMap.put(tree,files[i].getName());
-        }
-
-        Document doc = CacheUtils.getWebsiteDocument(url);
-        BTree newTree = CacheUtils.writeDocToBtree(CacheUtils.generateFileName(url),doc,true);
-        return SimilarityUtils.findClosest(newTree,bTreeMap);
+        HashMap<TermVector, String> docMap = readAllDocs();
+        HtmlPage doc = CacheUtils.getWebsitePage(url);
+        TermVector newDoc = CacheUtils.writeDocToStore(CacheUtils.generateFileName(url),doc);
+        return SimilarityUtils.findClosest(newDoc,docMap);
     }
     public static Cluster findClosestCluster(String url){
         File dir = new File(CLUSTER_LOCATION);
         File[] files = dir.listFiles();
         Cluster[] clusters = new Cluster[files.length];
         try{
-            Document doc = CacheUtils.getWebsiteDocument(url);
-            BTree newTree = CacheUtils.writeDocToBtree(CacheUtils.generateFileName(url),doc,true);
+            HtmlPage doc = CacheUtils.getWebsitePage(url);
+            TermVector newDoc = CacheUtils.writeDocToStore(CacheUtils.generateFileName(url),doc);
             double closestNumber = Double.MIN_VALUE;
             int closestIndex = -1;
             for (int i = 0; i <files.length ; i++) {
                 Cluster c = new Cluster(Files.readAllBytes(files[i].toPath()));
                 clusters[i] = c;
-                BTree medioid = new BTree(BTREE_FOLDER_NAME + c.medioid);
-                double result = newTree.cosineSimilarity(medioid);
+                TermVector medioid = CacheUtils.documentStore().get(c.medioid);
+                double result = newDoc.cosineSimilarity(medioid);
                 System.out.println(c.medioid + result);
                 if(result>closestNumber){
                     closestIndex = i;
@@ -165,39 +149,20 @@ public class ClusteringUtils {
         }
     }
     public static String findClosestTfIdf(String url)throws ParseException, IOException{
-        HashMap<BTree, String> bTreeMap = new HashMap<>();
-
-        // Get all btrees from the folder, add them to the map with String name
-        File dir = new File(BTREE_FOLDER_NAME);
-        File[] files = dir.listFiles();
-        for (int i = 0; i < files.length ; i++) {
-            BTree tree = new BTree(BTREE_FOLDER_NAME  + files[i].getName());
-            bTreeMap.put(tree,files[i].getName());
-        }
-
-        Document doc = CacheUtils.getWebsiteDocument(url);
-        BTree newTree = CacheUtils.writeDocToBtree(CacheUtils.generateFileName(url),doc,true);
-        return SimilarityUtils.findMostSimilarTfIdf(newTree,bTreeMap);
+        HashMap<TermVector, String> docMap = readAllDocs();
+        HtmlPage doc = CacheUtils.getWebsitePage(url);
+        TermVector newDoc = CacheUtils.writeDocToStore(CacheUtils.generateFileName(url),doc);
+        return SimilarityUtils.findMostSimilarTfIdf(newDoc,docMap);
     }
-    private static double cosineSimilarity(HashMap<Long,Integer> currMap,HashMap<Long,Integer> otherMap){
-        double top = 0;
-        double bottomA =0;
-        double bottomB = 0;
-        for(Map.Entry<Long,Integer> entry:currMap.entrySet()){
-            int a = entry.getValue().intValue();
-            int b =0;
-            if(otherMap.containsKey(entry.getKey())){
-                b = otherMap.get(entry.getKey());
-            }
-            top += (a * b);
-            bottomA += (a*a);
-        }
-        for(Map.Entry<Long,Integer> entry:otherMap.entrySet()){
-            int b = entry.getValue().intValue();
-            bottomB +=(b*b);
-        }
-        double bottom = ((Math.sqrt(bottomA)) * (Math.sqrt(bottomB)));
-        return top/bottom;
+    /**
+     * Reads every cached document in one sequential pass over the store
+     * @return Each document's term vector, mapped to its name
+     * @throws IOException
+     */
+    private static HashMap<TermVector,String> readAllDocs() throws IOException {
+        HashMap<TermVector, String> docMap = new HashMap<>();
+        CacheUtils.documentStore().scan((name, terms) -> docMap.put(terms, name));
+        return docMap;
     }
 
 }
@@ -0,0 +1,164 @@
+package com.nesposi3.Utils;
+
+/**
+ * Non-cryptographic 64 bit hashes of a range of chars, for hashing words straight out of a document's text.
+ * The chars are hashed as their UTF-16LE bytes, so the results match the reference xxHash64 and MurmurHash3
+ * of those bytes, without the bytes ever being copied out. Four chars make one 64 bit lane.
+ */
+public class HashUtils {
+    private static final long XX_P1 = 0x9E3779B185EBCA87L;
+    private static final long XX_P2 = 0xC2B2AE3D27D4EB4FL;
+    private static final long XX_P3 = 0x165667B19E3779F9L;
+    private static final long XX_P4 = 0x85EBCA77C2B2AE63L;
+    private static final long XX_P5 = 0x27D4EB2F165667C5L;
+    private static final long MURMUR_C1 = 0x87C37B91114253D5L;
+    private static final long MURMUR_C2 = 0x4CF5AD432745937FL;
+
+    /**
+     * @param chars The text
+     * @param from  The first char to hash
+     * @param to    The char after the last one to hash
+     * @param seed  The seed
+     * @return The xxHash64 of the UTF-16LE bytes of the chars
+     */
+    public static long xxHash64(CharSequence chars, int from, int to, long seed) {
+        int p = from;
+        long h;
+        // 32 bytes at a time, in four lanes
+        if (to - from >= 16) {
+            long v1 = seed + XX_P1 + XX_P2;
+            long v2 = seed + XX_P2;
+            long v3 = seed;
+            long v4 = seed - XX_P1;
+            do {
+                v1 = xxRound(v1, lane(chars, p));
+                v2 = xxRound(v2, lane(chars, p + 4));
+                v3 = xxRound(v3, lane(chars, p + 8));
+                v4 = xxRound(v4, lane(chars, p + 12));
+                p += 16;
+            } while (p <= to - 16);
+            h = Long.rotateLeft(v1, 1) + Long.rotateLeft(v2, 7) + Long.rotateLeft(v3, 12) + Long.rotateLeft(v4, 18);
+            h = xxMerge(h, v1);
+            h = xxMerge(h, v2);
+            h = xxMerge(h, v3);
+            h = xxMerge(h, v4);
+        } else {
+            h = seed + XX_P5;
+        }
+        h += 2L * (to - from);
+        for (; p + 4 <= to; p += 4) {
+            h ^= xxRound(0, lane(chars, p));
+            h = Long.rotateLeft(h, 27) * XX_P1 + XX_P4;
+        }
+        if (p + 2 <= to) {
+            long word = (chars.charAt(p) | (long) chars.charAt(p + 1) << 16) & 0xFFFFFFFFL;
+            h ^= word * XX_P1;
+            h = Long.rotateLeft(h, 23) * XX_P2 + XX_P3;
+            p += 2;
+        }
+        if (p < to) {
+            // The two bytes of the last char, low byte first
+            char c = chars.charAt(p);
+            h ^= (c & 0xFF) * XX_P5;
+            h = Long.rotateLeft(h, 11) * XX_P1;
+            h ^= (c >>> 8) * XX_P5;
+            h = Long.rotateLeft(h, 11) * XX_P1;
+        }
+        h ^= h >>> 33;
+        h *= XX_P2;
+        h ^= h >>> 29;
+        h *= XX_P3;
+        h ^= h >>> 32;
+        return h;
+    }
+
+    private static long xxRound(long acc, long input) {
+        acc += input * XX_P2;
+        acc = Long.rotateLeft(acc, 31);
+        return acc * XX_P1;
+    }
+
+    private static long xxMerge(long h, long v) {
+        h ^= xxRound(0, v);
+        return h * XX_P1 + XX_P4;
+    }
+
+    /**
+     * @param chars The text
+     * @param from  The first char to hash
+     * @param to    The char after the last one to hash
+     * @param seed  The seed
+     * @return The first 64 bits of the x64 128 bit MurmurHash3 of the UTF-16LE bytes of the chars
+     */
+    public static long murmur3(CharSequence chars, int from, int to, long seed) {
+        long h1 = seed;
+        long h2 = seed;
+        int p = from;
+        // 16 bytes at a time
+        for (; p + 8 <= to; p += 8) {
+            h1 ^= murmurK1(lane(chars, p));
+            h1 = Long.rotateLeft(h1, 27) + h2;
+            h1 = h1 * 5 + 0x52DCE729;
+            h2 ^= murmurK2(lane(chars, p + 4));
+            h2 = Long.rotateLeft(h2, 31) + h1;
+            h2 = h2 * 5 + 0x38495AB5;
+        }
+        int tail = to - p;
+        if (tail > 4) {
+            h2 ^= murmurK2(partialLane(chars, p + 4, to));
+        }
+        if (tail > 0) {
+            h1 ^= murmurK1(partialLane(chars, p, Math.min(to, p + 4)));
+        }
+        long length = 2L * (to - from);
+        h1 ^= length;
+        h2 ^= length;
+        h1 += h2;
+        h2 += h1;
+        h1 = fmix(h1);
+        h2 = fmix(h2);
+        return h1 + h2;
+    }
+
+    private static long murmurK1(long k1) {
+        k1 *= MURMUR_C1;
+        k1 = Long.rotateLeft(k1, 31);
+        return k1 * MURMUR_C2;
+    }
+
+    private static long murmurK2(long k2) {
+        k2 *= MURMUR_C2;
+        k2 = Long.rotateLeft(k2, 33);
+        return k2 * MURMUR_C1;
+    }
+
+    private static long fmix(long k) {
+        k ^= k >>> 33;
+        k *= 0xFF51AFD7ED558CCDL;
+        k ^= k >>> 33;
+        k *= 0xC4CEB9FE1A85EC53L;
+        k ^= k >>> 33;
+        return k;
+    }
+
+    /**
+     * @return Four chars as the little endian long of their UTF-16LE bytes
+     */
+    private static long lane(CharSequence chars, int p) {
+        return chars.charAt(p)
+                | (long) chars.charAt(p + 1) << 16
+                | (long) chars.charAt(p + 2) << 32
+                | (long) chars.charAt(p + 3) << 48;
+    }
+
+    /**
+     * @return Up to four chars as a lane, the missing ones as zero bytes
+     */
+    private static long partialLane(CharSequence chars, int p, int to) {
+        long lane = 0;
+        for (int i = 0; p + i < to; i++) {
+            lane |= (long) chars.charAt(p + i) << (16 * i);
+        }
+        return lane;
+    }
+}
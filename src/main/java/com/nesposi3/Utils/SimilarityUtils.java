@@ -1,8 +1,9 @@
 package com.nesposi3.Utils;
 
 
-import com.nesposi3.BTree;
 import com.nesposi3.GraphNode;
+import com.nesposi3.TermCursor;
+import com.nesposi3.TermVector;
 
 import java.util.*;
 
@@ -12,13 +13,13 @@ public class SimilarityUtils {
 
     /**
      * TF Algorithm gives us word frequency in a document
-     * @param key The word to check frequency, String
-     * @param doc The document with which to check, Represented by a HashTable
-     * @return The frequency of key
+     * @param frequency The frequency of the word in the document
+     * @param doc The document with which to check
+     * @return The share of the document's words that are this word
      */
-    private static double TF(long key, BTree doc){
+    private static double TF(int frequency, TermVector doc){
 
-        double top = doc.search(key);
+        double top = frequency;
         double bottom = doc.totalWordCount();
         return top / (bottom);
 
@@ -26,19 +27,13 @@ public class SimilarityUtils {
 
     /**
      * IDF Algorithm helps determine how rare a word is in a corpus, with more rarity yielding a higher value
-     * @param key The word to check, a String
-     * @param docList The corpus, represented as an array of HashTables
+     * @param numWithKey The number of documents containing the word
+     * @param corpusSize The number of documents in the corpus
      * @return
      */
-    private static double IDF(long key, BTree[] docList){
-        int numWithKey = 0;
-        for (int i = 0; i <docList.length ; i++) {
-            if(docList[i].search(key)!=0){
-                numWithKey++;
-            }
-        }
+    private static double IDF(int numWithKey, int corpusSize){
         if(numWithKey>0){
-            double quotient = ((double) docList.length )/ (numWithKey);
+            double quotient = ((double) corpusSize )/ (numWithKey);
             return Math.log(quotient);
         }else{
             return 0;
@@ -49,41 +44,53 @@ public class SimilarityUtils {
     /**
      * This method produces the most similar document of a corpus to the entered document
      * Uses TF and IDF
-     * @param enteredDoc The Document that is being compared to, a  BTree
+     * @param enteredDoc The Document that is being compared to
      * @return A string with the title of the most similar webpage
      */
-    public static String findMostSimilarTfIdf(BTree enteredDoc,HashMap<BTree,String> map){
-        BTree[] cachedDocs = map.keySet().toArray(new BTree[map.keySet().size()]);
-        //This hashmap stores tf-idf vectors for each word in the entered document
-        HashMap<Long, Double[]> cachedDocumentVectors = new HashMap<>();
-        //This hashmap represents the tfidf vector of the query
-        HashMap<Long,Double> queryVector = new HashMap<>();
-
-        HashMap<Long,Integer> newdocMap = enteredDoc.getKeyFreqMap();
-        for (Map.Entry<Long,Integer> entry: newdocMap.entrySet()){
-            Double queryTF = TF(entry.getKey(),enteredDoc);
-            Double queryIDF = IDF(entry.getKey(),cachedDocs);
-            Double queryTFIDF = queryTF * queryIDF;
-            queryVector.put(entry.getKey(),queryTFIDF);
-            Double[] wordVector = new Double[enteredDoc.totalNumKeys()];
+    public static String findMostSimilarTfIdf(TermVector enteredDoc,HashMap<TermVector,String> map){
+        TermVector[] cachedDocs = map.keySet().toArray(new TermVector[map.keySet().size()]);
+        //The words of the entered document, in key order so each cached document is looked up in one batch
+        int numKeys = enteredDoc.totalNumKeys();
+        long[] keys = new long[numKeys];
+        int[] queryFrequencies = new int[numKeys];
+        TermCursor terms = enteredDoc.cursor();
+        for (int j = 0; j < numKeys && terms.next(); j++) {
+            keys[j] = terms.key();
+            queryFrequencies[j] = terms.frequency();
+        }
+        int[][] frequencies = new int[cachedDocs.length][numKeys];
+        int[] numWithKey = new int[numKeys];
+        for (int i = 0; i <cachedDocs.length ; i++) {
+            cachedDocs[i].searchAll(keys, frequencies[i]);
+            for (int j = 0; j < numKeys; j++) {
+                if(frequencies[i][j]!=0){
+                    numWithKey[j]++;
+                }
+            }
+        }
+        //The tfidf vector of the query, and of each cached document over the query's words, indexed like keys
+        double[] queryVector = new double[numKeys];
+        double[][] cachedDocumentVectors = new double[cachedDocs.length][numKeys];
+        for (int j = 0; j < numKeys; j++) {
+            double queryTF = TF(queryFrequencies[j],enteredDoc);
+            double queryIDF = IDF(numWithKey[j],cachedDocs.length);
+            queryVector[j] = queryTF * queryIDF;
             for (int i = 0; i <cachedDocs.length ; i++) {
-                double tf = TF(entry.getKey(),cachedDocs[i]);
-                double idf = IDF(entry.getKey(),cachedDocs);
-                wordVector[i] = tf * idf;
-                cachedDocumentVectors.put(entry.getKey(),wordVector);
+                double tf = TF(frequencies[i][j],cachedDocs[i]);
+                cachedDocumentVectors[i][j] = tf * queryIDF;
             }
         }
         //Cosine similarity for each document
         double maxSimilarity =0;
         String closestSite = "";
         for (int i = 0; i < cachedDocs.length; i++) {
-            BTree doc = cachedDocs[i];
+            TermVector doc = cachedDocs[i];
             double top = 0;
             double queryBottom = 0;
             double cachedBottom = 0;
-            for(Map.Entry<Long,Double> entry:queryVector.entrySet()){
-                double tfidfQuery = entry.getValue();
-                double cachedTFIDF = cachedDocumentVectors.get(entry.getKey())[i];
+            for (int j = 0; j < numKeys; j++) {
+                double tfidfQuery = queryVector[j];
+                double cachedTFIDF = cachedDocumentVectors[i][j];
                 queryBottom += tfidfQuery * (tfidfQuery);
                 cachedBottom += cachedTFIDF * cachedTFIDF;
                 double dotProductPart = tfidfQuery * cachedTFIDF;
@@ -99,21 +106,74 @@ public class SimilarityUtils {
         return closestSite;
 
     }
-    public static String findClosest(BTree enteredDoc,HashMap<BTree,String> map){
-        BTree[] cachedDocs = map.keySet().toArray(new BTree[map.keySet().size()]);
+    public static String findClosest(TermVector enteredDoc,HashMap<TermVector,String> map){
+        TermVector[] cachedDocs = map.keySet().toArray(new TermVector[map.keySet().size()]);
         double closestNum = Double.MIN_VALUE;
         int closestIndex = -1;
         for (int i = 0; i <cachedDocs.length ; i++) {
-            BTree test = cachedDocs[i];
+            TermVector test = cachedDocs[i];
             double result = enteredDoc.cosineSimilarity(test);
             if(result>closestNum){
                 closestNum = result;
                 closestIndex = i;
             }
         }
-        BTree winner = cachedDocs[closestIndex];
+        TermVector winner = cachedDocs[closestIndex];
         return map.get(winner);
     }
+    /**
+     * Dot product of two document vectors, computed in one pass that walks both in key order
+     * @param a The first vector
+     * @param b The second vector
+     * @return The sum of the products of the frequencies of every shared key
+     */
+    public static double dotProduct(TermCursor a, TermCursor b){
+        double total = 0;
+        boolean hasA = a.next();
+        boolean hasB = b.next();
+        while (hasA && hasB) {
+            long keyA = a.key();
+            long keyB = b.key();
+            if (keyA < keyB) {
+                hasA = a.next();
+            } else if (keyA > keyB) {
+                hasB = b.next();
+            } else {
+                total += (double) a.frequency() * b.frequency();
+                hasA = a.next();
+                hasB = b.next();
+            }
+        }
+        return total;
+    }
+
+    /**
+     * Euclidean distance between two document vectors, over every key in either, computed in one pass
+     * @param a The first vector
+     * @param b The second vector
+     * @return The distance between the two vectors
+     */
+    public static double euclideanDistance(TermCursor a, TermCursor b){
+        double total = 0;
+        boolean hasA = a.next();
+        boolean hasB = b.next();
+        while (hasA || hasB) {
+            double diff;
+            if (!hasB || (hasA && a.key() < b.key())) {
+                diff = a.frequency();
+                hasA = a.next();
+            } else if (!hasA || b.key() < a.key()) {
+                diff = b.frequency();
+                hasB = b.next();
+            } else {
+                diff = (double) a.frequency() - b.frequency();
+                hasA = a.next();
+                hasB = b.next();
+            }
+            total += diff * diff;
+        }
+        return Math.sqrt(total);
+    }
     public static GraphNode djikstra(GraphNode source,GraphNode dest,GraphNode[] graph){
         //There will never be a path if there are no children
         if(source.getChildren().length==0){
@@ -0,0 +1,121 @@
+package com.nesposi3.Utils;
+
+import com.nesposi3.TermDictionary;
+import com.nesposi3.TermHash;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.regex.Pattern;
+
+/**
+ * Splits the text of a document into words and hashes them.
+ * Words are the runs of chars between delimiters. The text is scanned once, and each word is hashed
+ * where it lies in the text, so no String is created per word.
+ */
+public class TokenizerUtils {
+    // The delimiters of the original tokenizer, which MD5 stores keep using
+    private static final Pattern LEGACY_DELIMITERS = Pattern.compile("[ .!?@\\[\\]/()\\-—,\"\']");
+
+    /**
+     * @param c A char of the text
+     * @return True if the char separates words
+     */
+    public static boolean isDelimiter(char c) {
+        switch (c) {
+            case ' ':
+            case '.':
+            case '!':
+            case '?':
+            case '@':
+            case '[':
+            case ']':
+            case '/':
+            case '(':
+            case ')':
+            case '-':
+            case '—':
+            case ',':
+            case '"':
+            case '\'':
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * @param text The text of a document
+     * @param hash The function to hash words with
+     * @return The hash of every word, in the order of the words
+     */
+    public static long[] hashWords(String text, TermHash hash) {
+        try {
+            return hashWords(text, hash, null);
+        } catch (IOException e) {
+            // Only the dictionary writes
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @param text       The text of a document
+     * @param hash       The function to hash words with
+     * @param dictionary The dictionary to add the words to, or null
+     * @return The hash of every word, in the order of the words
+     * @throws IOException If the words could not be added to the dictionary
+     */
+    public static long[] hashWords(String text, TermHash hash, TermDictionary dictionary) throws IOException {
+        if (hash == TermHash.MD5) {
+            return hashWordsLegacy(text, dictionary);
+        }
+        // Words average several chars, so this rarely grows
+        long[] hashes = new long[Math.max(16, text.length() / 4)];
+        int[] starts = dictionary == null ? null : new int[hashes.length];
+        int[] ends = dictionary == null ? null : new int[hashes.length];
+        int count = 0;
+        int length = text.length();
+        int i = 0;
+        while (i < length) {
+            while (i < length && isDelimiter(text.charAt(i))) {
+                i++;
+            }
+            int start = i;
+            while (i < length && !isDelimiter(text.charAt(i))) {
+                i++;
+            }
+            if (i > start) {
+                if (count == hashes.length) {
+                    hashes = Arrays.copyOf(hashes, count * 2);
+                    if (dictionary != null) {
+                        starts = Arrays.copyOf(starts, count * 2);
+                        ends = Arrays.copyOf(ends, count * 2);
+                    }
+                }
+                if (dictionary != null) {
+                    starts[count] = start;
+                    ends[count] = i;
+                }
+                hashes[count++] = hash.hash(text, start, i);
+            }
+        }
+        if (dictionary != null) {
+            dictionary.addAll(text, hashes, starts, ends, count);
+        }
+        return Arrays.copyOf(hashes, count);
+    }
+
+    /**
+     * Splits and hashes as documents were before the hash was recorded, so MD5 stores get the same keys as before
+     */
+    private static long[] hashWordsLegacy(String text, TermDictionary dictionary) throws IOException {
+        String[] words = LEGACY_DELIMITERS.split(text);
+        long[] hashes = new long[words.length];
+        for (int i = 0; i <words.length ; i++) {
+            hashes[i] = ClusteringUtils.stringHash64(words[i]);
+            if (dictionary != null) {
+                dictionary.add(hashes[i], words[i], 0, words[i].length());
+            }
+        }
+        return hashes;
+    }
+}
@@ -0,0 +1,230 @@
+package com.nesposi3;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.zip.CRC32;
+
+/**
+ * A redo log of page images for a BTree file.
+ * Pages changed by a group of mutations are appended together with a commit record and synced once,
+ * after which they may be written to the main file in any order. A checkpoint syncs the main file and
+ * empties the log. When a tree is opened, committed groups still in the log are copied into the main file,
+ * and a group without a valid commit record, from a crash mid-write, is ignored.
+ *
+ * Log format in bytes:
+ *       4          4
+ *    | magic | page size |  records...
+ *
+ * Page record:               Commit record:
+ *     1        8        p        1          4            8
+ *   | 1 | address | page |    | 2 | page count | CRC32 of the group's page records |
+ */
+public class WriteAheadLog implements AutoCloseable {
+    private static final int MAGIC = 0x57414C31;
+    private static final int LOG_HEADER_SIZE = 8;
+    private static final byte PAGE_RECORD = 1;
+    private static final byte COMMIT_RECORD = 2;
+    private static final int COMMIT_RECORD_SIZE = 13;
+
+    private final String fileName;
+    private final int pageSize;
+    private FileChannel channel;
+    private long length;
+    private ByteBuffer group;
+    private int groupPages;
+    private final CRC32 groupCrc = new CRC32();
+
+    /**
+     * Opens the log, the file itself is only created once something is committed
+     *
+     * @param fileName The path of the log
+     * @param pageSize The size of a page of the main file
+     */
+    public WriteAheadLog(String fileName, int pageSize) {
+        this.fileName = fileName;
+        this.pageSize = pageSize;
+        this.group = ByteBuffer.allocate(16 * (pageSize + 9));
+    }
+
+    /**
+     * Adds a page image to the current group
+     *
+     * @param address The address of the page in the main file
+     * @param page    The contents of the page
+     */
+    public void append(long address, byte[] page) {
+        int start = group.position();
+        if (group.remaining() < pageSize + 9 + COMMIT_RECORD_SIZE) {
+            ByteBuffer bigger = ByteBuffer.allocate(group.capacity() * 2);
+            group.flip();
+            bigger.put(group);
+            group = bigger;
+        }
+        group.put(PAGE_RECORD);
+        group.putLong(address);
+        group.put(page, 0, pageSize);
+        groupCrc.update(group.array(), start, pageSize + 9);
+        groupPages++;
+    }
+
+    /**
+     * Writes the current group followed by its commit record, and syncs the log once
+     *
+     * @throws IOException On a failed write or sync
+     */
+    public void commit() throws IOException {
+        if (groupPages == 0) {
+            return;
+        }
+        group.put(COMMIT_RECORD);
+        group.putInt(groupPages);
+        group.putLong(groupCrc.getValue());
+        group.flip();
+        FileChannel log = open();
+        while (group.hasRemaining()) {
+            length += log.write(group, length);
+        }
+        log.force(false);
+        group.clear();
+        groupPages = 0;
+        groupCrc.reset();
+    }
+
+    /**
+     * Empties the log, called once every committed page has been synced to the main file
+     *
+     * @throws IOException On a failed truncate
+     */
+    public void reset() throws IOException {
+        if (channel != null && length > LOG_HEADER_SIZE) {
+            channel.truncate(LOG_HEADER_SIZE);
+            channel.force(false);
+            length = LOG_HEADER_SIZE;
+        }
+        group.clear();
+        groupPages = 0;
+        groupCrc.reset();
+    }
+
+    /**
+     * @return The number of bytes committed to the log since the last reset
+     */
+    public long size() {
+        return channel == null ? 0 : length - LOG_HEADER_SIZE;
+    }
+
+    /**
+     * Closes the log, deleting the file if it holds nothing
+     *
+     * @throws IOException On a failed close
+     */
+    @Override
+    public void close() throws IOException {
+        if (channel != null) {
+            channel.close();
+            channel = null;
+            if (length <= LOG_HEADER_SIZE) {
+                new File(fileName).delete();
+            }
+        }
+    }
+
+    private FileChannel open() throws IOException {
+        if (channel == null) {
+            channel = FileChannel.open(new File(fileName).toPath(),
+                    StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            channel.truncate(0);
+            ByteBuffer header = ByteBuffer.allocate(LOG_HEADER_SIZE);
+            header.putInt(MAGIC);
+            header.putInt(pageSize);
+            header.flip();
+            channel.write(header, 0);
+            length = LOG_HEADER_SIZE;
+        }
+        return channel;
+    }
+
+    /**
+     * Copies every committed group in a log into the main file, syncs it and deletes the log
+     *
+     * @param fileName The path of the log
+     * @param file     The main file
+     * @return The number of pages copied
+     * @throws IOException On a failed read or write
+     */
+    public static int replay(String fileName, PageFile file) throws IOException {
+        File f = new File(fileName);
+        if (!f.exists()) {
+            return 0;
+        }
+        int applied = 0;
+        try (FileChannel log = FileChannel.open(f.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(LOG_HEADER_SIZE);
+            if (log.read(header, 0) == LOG_HEADER_SIZE && header.getInt(0) == MAGIC) {
+                int pageSize = header.getInt(4);
+                long position = LOG_HEADER_SIZE;
+                long logLength = log.size();
+                ArrayList<Long> groupOffsets = new ArrayList<>();
+                CRC32 crc = new CRC32();
+                ByteBuffer record = ByteBuffer.allocate(pageSize + 9);
+                ByteBuffer commit = ByteBuffer.allocate(COMMIT_RECORD_SIZE);
+                while (position < logLength) {
+                    record.clear();
+                    record.limit(1);
+                    log.read(record, position);
+                    byte type = record.get(0);
+                    if (type == PAGE_RECORD) {
+                        if (position + pageSize + 9 > logLength) {
+                            break;
+                        }
+                        record.clear();
+                        readFully(log, record, position);
+                        crc.update(record.array(), 0, pageSize + 9);
+                        groupOffsets.add(position);
+                        position += pageSize + 9;
+                    } else if (type == COMMIT_RECORD) {
+                        if (position + COMMIT_RECORD_SIZE > logLength) {
+                            break;
+                        }
+                        commit.clear();
+                        readFully(log, commit, position);
+                        if (commit.getInt(1) != groupOffsets.size() || commit.getLong(5) != crc.getValue()) {
+                            break;
+                        }
+                        for (long offset : groupOffsets) {
+                            record.clear();
+                            readFully(log, record, offset);
+                            long address = record.getLong(1);
+                            record.position(9);
+                            file.write(address, record);
+                            applied++;
+                        }
+                        groupOffsets.clear();
+                        crc.reset();
+                        position += COMMIT_RECORD_SIZE;
+                    } else {
+                        break;
+                    }
+                }
+            }
+        }
+        file.force();
+        f.delete();
+        return applied;
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer dst, long position) throws IOException {
+        while (dst.hasRemaining()) {
+            int n = channel.read(dst, position);
+            if (n < 0) {
+                throw new IOException("Unexpected end of log");
+            }
+            position += n;
+        }
+        dst.flip();
+    }
+}
@@ -0,0 +1,305 @@
+package com.nesposi3;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static com.nesposi3.Utils.BTreeUtils.LEGACY_BLOCK_SIZE;
+import static com.nesposi3.Utils.BTreeUtils.LEGACY_T;
+import static com.nesposi3.Utils.BTreeUtils.NULL;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class BTreeTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Writes a file as trees were stored before headers existed, one node of order 3 per 512 byte block
+     */
+    private static void writeLegacyFile(File file, long[][] keys, int[][] frequencies) throws Exception {
+        int maxKeys = 2 * LEGACY_T - 1;
+        try (RandomAccessFile out = new RandomAccessFile(file, "rw")) {
+            for (int b = 0; b < keys.length; b++) {
+                ByteBuffer block = ByteBuffer.allocate(LEGACY_BLOCK_SIZE);
+                block.putLong((long) b * LEGACY_BLOCK_SIZE);
+                // The parent, which nothing reads
+                block.putLong(NULL);
+                for (int c = 0; c < 2 * LEGACY_T; c++) {
+                    boolean child = b == 0 && c + 1 < keys.length;
+                    block.putLong(child ? (long) (c + 1) * LEGACY_BLOCK_SIZE : NULL);
+                }
+                for (int i = 0; i < maxKeys; i++) {
+                    block.putLong(i < keys[b].length ? keys[b][i] : NULL);
+                }
+                for (int i = 0; i < maxKeys; i++) {
+                    block.putInt(i < keys[b].length ? frequencies[b][i] : -1);
+                }
+                out.write(block.array());
+            }
+        }
+    }
+
+    /**
+     * @return The keys of every node, the root first and then each subtree from left to right
+     */
+    private static List<String> shape(BTree tree) {
+        List<String> nodes = new ArrayList<>();
+        tree.forEach(n -> nodes.add(Arrays.toString(Arrays.copyOf(n.keys, n.numKeys()))));
+        return nodes;
+    }
+
+    /**
+     * Opens a tree of order 2, where a node holds 1 to 3 keys, holding the given keys in the given order
+     */
+    private BTree smallTree(String name, long... keys) throws Exception {
+        BTree tree = new BTree(new File(folder.getRoot(), name).getPath(), BTreeConfig.defaults().order(2));
+        for (long key : keys) {
+            tree.insert(key, (int) key);
+        }
+        return tree;
+    }
+
+    private void assertClean(String name) throws Exception {
+        Fsck.Report report = Fsck.checkBTree(new File(folder.getRoot(), name));
+        assertEquals(report.problems.toString(), 0, report.errors);
+    }
+
+    @Test
+    public void deleteFromALeaf() throws Exception {
+        try (BTree tree = smallTree("leaf", 10, 20, 30, 40, 5)) {
+            assertEquals(Arrays.asList("[20]", "[5, 10]", "[30, 40]"), shape(tree));
+            assertEquals(40, tree.delete(40));
+            assertEquals(0, tree.delete(40));
+            assertEquals(0, tree.search(40));
+            assertEquals(Arrays.asList("[20]", "[5, 10]", "[30]"), shape(tree));
+            assertEquals(4, tree.totalNumKeys());
+            assertEquals(65, tree.totalWordCount());
+        }
+        assertClean("leaf");
+    }
+
+    @Test
+    public void emptiedLeafBorrowsFromItsLeftSibling() throws Exception {
+        try (BTree tree = smallTree("left", 10, 20, 30, 5)) {
+            assertEquals(Arrays.asList("[20]", "[5, 10]", "[30]"), shape(tree));
+            assertEquals(30, tree.delete(30));
+            // The last key of the left leaf moves up, and the separator down
+            assertEquals(Arrays.asList("[10]", "[5]", "[20]"), shape(tree));
+            assertEquals(20, tree.search(20));
+        }
+        assertClean("left");
+    }
+
+    @Test
+    public void emptiedLeafBorrowsFromItsRightSibling() throws Exception {
+        try (BTree tree = smallTree("right", 10, 20, 30, 40)) {
+            assertEquals(Arrays.asList("[20]", "[10]", "[30, 40]"), shape(tree));
+            assertEquals(10, tree.delete(10));
+            assertEquals(Arrays.asList("[30]", "[20]", "[40]"), shape(tree));
+            assertEquals(20, tree.search(20));
+        }
+        assertClean("right");
+    }
+
+    @Test
+    public void mergesCollapseTheRoot() throws Exception {
+        try (BTree tree = smallTree("merge", 10, 20, 30, 40)) {
+            assertEquals(40, tree.delete(40));
+            assertEquals(Arrays.asList("[20]", "[10]", "[30]"), shape(tree));
+            // Neither leaf can lend, so they merge with the separator and the empty root goes away
+            assertEquals(10, tree.delete(10));
+            assertEquals(Collections.singletonList("[20, 30]"), shape(tree));
+        }
+        assertClean("merge");
+
+        // A taller tree deleted down to one key loses a level at a time
+        try (BTree tree = smallTree("tall")) {
+            for (long k = 1; k <= 200; k++) {
+                tree.insert(k, (int) k);
+            }
+            for (long k = 200; k > 1; k--) {
+                assertEquals(k, tree.delete(k));
+            }
+            assertEquals(Collections.singletonList("[1]"), shape(tree));
+            assertEquals(1, tree.totalNumKeys());
+        }
+        assertClean("tall");
+    }
+
+    @Test
+    public void compactAfterDeletesShrinksTheFile() throws Exception {
+        File file = new File(folder.getRoot(), "deleted");
+        List<Long> keys = new ArrayList<>();
+        for (long k = 0; k < 5000; k++) {
+            keys.add(k * 11);
+        }
+        Collections.shuffle(keys, new Random(7));
+        try (BTree tree = new BTree(file.getPath(), BTreeConfig.defaults().order(4))) {
+            for (long key : keys) {
+                tree.insert(key, (int) (key % 13) + 1);
+            }
+            tree.commit();
+            long full = file.length();
+            // Delete four keys in five in random order, so every kind of rebalance happens
+            for (long key : keys.subList(0, 4000)) {
+                assertEquals((int) (key % 13) + 1, tree.delete(key));
+            }
+            tree.commit();
+            assertEquals(1000, tree.totalNumKeys());
+            tree.compact();
+            assertTrue(file.length() < full / 2);
+            for (int i = 0; i < keys.size(); i++) {
+                long key = keys.get(i);
+                assertEquals(i < 4000 ? 0 : (int) (key % 13) + 1, tree.search(key));
+            }
+        }
+        Fsck.Report report = Fsck.checkBTree(file);
+        assertEquals(report.problems.toString(), 0, report.errors);
+        assertEquals(report.problems.toString(), 0, report.warnings);
+    }
+
+    @Test
+    public void legacyFileIsMigratedAndReopened() throws Exception {
+        File file = new File(folder.getRoot(), "legacy");
+        long[][] keys = {{40, 90}, {-7, 12}, {55}};
+        int[][] frequencies = {{4, 9}, {1, 2}, {5}};
+        writeLegacyFile(file, keys, frequencies);
+
+        try (BTree tree = new BTree(file.getPath())) {
+            assertEquals(TermHash.MD5, tree.getTermHash());
+            for (int b = 0; b < keys.length; b++) {
+                for (int i = 0; i < keys[b].length; i++) {
+                    assertEquals(frequencies[b][i], tree.search(keys[b][i]));
+                }
+            }
+            assertEquals(0, tree.search(13));
+        }
+        // The migrated file has a header and checksums, and opens as it is
+        try (BTree tree = new BTree(file.getPath())) {
+            assertEquals(TermHash.MD5, tree.getTermHash());
+            assertEquals(9, tree.search(90));
+            assertEquals(1, tree.search(-7));
+            assertEquals(5, tree.search(55));
+        }
+        Fsck.Report report = Fsck.checkBTree(file);
+        assertEquals(report.problems.toString(), 0, report.errors);
+    }
+
+    @Test
+    public void insertReplacesRepeatedKeyAndCompacts() throws Exception {
+        File file = new File(folder.getRoot(), "repeated");
+        try (BTree tree = new BTree(file.getPath())) {
+            tree.insert(5, 1);
+            tree.insert(5, 2);
+            tree.insert(7, 1);
+            assertEquals(2, tree.totalNumKeys());
+            assertEquals(3, tree.totalWordCount());
+            tree.compact();
+            assertEquals(2, tree.search(5));
+            assertEquals(1, tree.search(7));
+            assertEquals(2, tree.totalNumKeys());
+        }
+    }
+
+    @Test
+    public void headerKeepsEveryFieldAcrossReopen() throws Exception {
+        File file = new File(folder.getRoot(), "header");
+        BTreeConfig config = BTreeConfig.defaults().encoding(NodeFormat.Encoding.PACKED).termHash(TermHash.MURMUR3);
+        try (BTree tree = new BTree(file.getPath(), config)) {
+            for (int k = 0; k < 500; k++) {
+                tree.insert(k * 7L - 1000, k % 5 + 1);
+            }
+        }
+        try (BTree tree = new BTree(file.getPath())) {
+            assertEquals(TermHash.MURMUR3, tree.getTermHash());
+            assertEquals(500, tree.totalNumKeys());
+            assertEquals(1500, tree.totalWordCount());
+            assertEquals(3, tree.search(2 * 7L - 1000));
+        }
+        Fsck.Report report = Fsck.checkBTree(file);
+        assertEquals(report.problems.toString(), 0, report.errors);
+
+        // Any other version is refused rather than read with the wrong layout
+        try (RandomAccessFile out = new RandomAccessFile(file, "rw")) {
+            out.seek(4);
+            out.writeInt(BTreeHeader.VERSION + 1);
+        }
+        try {
+            new BTree(file.getPath()).close();
+            fail("Opened a file of an unknown version");
+        } catch (IllegalArgumentException expected) {
+            // The file was left alone
+        }
+    }
+
+    @Test
+    public void readersSeeEveryKeyWhileAWriterSplitsNodes() throws Exception {
+        File file = new File(folder.getRoot(), "concurrent");
+        // A low order and a small cache, so the writer splits nodes and pages are evicted under the readers
+        BTreeConfig config = BTreeConfig.defaults().order(3).cachePages(64).groupCommitSize(16);
+        int preloaded = 2000;
+        int written = 3000;
+        try (BTree tree = new BTree(file.getPath(), config)) {
+            for (int k = 0; k < preloaded; k++) {
+                tree.insert(2L * k, k + 1);
+            }
+            AtomicBoolean writing = new AtomicBoolean(true);
+            AtomicReference<Throwable> failure = new AtomicReference<>();
+            List<Thread> readers = new ArrayList<>();
+            for (int r = 0; r < 4; r++) {
+                Random random = new Random(r);
+                readers.add(new Thread(() -> {
+                    try {
+                        while (writing.get()) {
+                            int k = random.nextInt(preloaded);
+                            assertEquals(k + 1, tree.search(2L * k));
+                            // A key the writer adds is either not there yet or there whole
+                            int w = random.nextInt(written);
+                            int found = tree.search(2L * w + 1);
+                            if (found != 0) {
+                                assertEquals(w + 1, found);
+                            }
+                        }
+                    } catch (Throwable t) {
+                        failure.compareAndSet(null, t);
+                    }
+                }));
+            }
+            readers.forEach(Thread::start);
+            try {
+                for (int w = 0; w < written; w++) {
+                    tree.insert(2L * w + 1, w + 1);
+                }
+            } finally {
+                writing.set(false);
+                for (Thread reader : readers) {
+                    reader.join();
+                }
+            }
+            if (failure.get() != null) {
+                throw new AssertionError("A reader failed", failure.get());
+            }
+            assertEquals(preloaded + written, tree.totalNumKeys());
+        }
+        Fsck.Report report = Fsck.checkBTree(file);
+        assertEquals(report.problems.toString(), 0, report.errors);
+        try (BTree tree = new BTree(file.getPath())) {
+            for (int w = 0; w < written; w++) {
+                assertEquals(w + 1, tree.search(2L * w + 1));
+            }
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package com.nesposi3;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+
+import static com.nesposi3.Utils.BTreeUtils.MIN_BLOOM_CAPACITY;
+import static com.nesposi3.Utils.ChecksumUtils.CHECKSUM_SIZE;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class BloomFilterTest {
+    private static final int PAGE_SIZE = 512;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void falsePositiveRateStaysNearTheTarget() {
+        int capacity = 20000;
+        BloomFilter filter = BloomFilter.create(capacity, 0.01, PAGE_SIZE, CHECKSUM_SIZE);
+        // Consecutive keys, as the mix has to spread keys that are not already hashes
+        for (long key = 0; key < capacity; key++) {
+            filter.add(key);
+        }
+        for (long key = 0; key < capacity; key++) {
+            assertTrue(filter.mightContain(key));
+        }
+        int probes = 200000;
+        int falsePositives = 0;
+        for (long key = capacity; key < capacity + probes; key++) {
+            if (filter.mightContain(key)) {
+                falsePositives++;
+            }
+        }
+        double rate = (double) falsePositives / probes;
+        assertTrue("False positive rate " + rate, rate < 0.015);
+    }
+
+    @Test
+    public void storedFilterLoadsWithTheSameBits() throws Exception {
+        File file = new File(folder.getRoot(), "filter");
+        BloomFilter filter = BloomFilter.create(5000, 0.01, PAGE_SIZE, CHECKSUM_SIZE);
+        for (long key = 0; key < 5000; key++) {
+            filter.add(key * 31);
+        }
+        // The filter takes many pages at this page size, so the whole chain is followed
+        assertTrue(filter.pageCount() > 10);
+        long head;
+        try (PageFile pageFile = new PageFile(file.getPath())) {
+            PageCache cache = new PageCache(pageFile, PAGE_SIZE, 8);
+            PageAllocator allocator = new PageAllocator(PAGE_SIZE, PAGE_SIZE);
+            head = filter.store(cache, allocator);
+            // Keys added after the first store only rewrite the pages they changed
+            filter.add(-5);
+            assertEquals(head, filter.store(cache, allocator));
+            cache.flush();
+        }
+        try (PageFile pageFile = new PageFile(file.getPath())) {
+            PageCache cache = new PageCache(pageFile, PAGE_SIZE, 8);
+            BloomFilter loaded = new BloomFilter(filter.getCapacity(), filter.getNumHashes(), filter.getNumBits(),
+                    PAGE_SIZE, CHECKSUM_SIZE);
+            loaded.load(cache, head);
+            assertTrue(loaded.mightContain(-5));
+            for (long key = -20000; key < 200000; key++) {
+                assertEquals(filter.mightContain(key), loaded.mightContain(key));
+            }
+        }
+    }
+
+    @Test
+    public void grownFilterSurvivesReopen() throws Exception {
+        File file = new File(folder.getRoot(), "tree");
+        // Past its first capacity the filter is replaced by a larger one
+        long keys = 3 * MIN_BLOOM_CAPACITY;
+        try (BTree tree = new BTree(file.getPath())) {
+            for (long k = 0; k < keys; k++) {
+                tree.insert(k * 5, (int) k + 1);
+            }
+        }
+        // A search for a key the loaded filter lost would come back 0
+        try (BTree tree = new BTree(file.getPath())) {
+            for (long k = 0; k < keys; k++) {
+                assertEquals(k + 1, tree.search(k * 5));
+            }
+            assertEquals(0, tree.search(1));
+            tree.insert(1, 9);
+        }
+        try (BTree tree = new BTree(file.getPath())) {
+            assertEquals(9, tree.search(1));
+        }
+        Fsck.Report report = Fsck.checkBTree(file);
+        assertEquals(report.problems.toString(), 0, report.errors);
+    }
+}
@@ -0,0 +1,99 @@
+package com.nesposi3;
+
+import com.nesposi3.Utils.TokenizerUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class FsckTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Fills the segments and term dictionary of a storage directory, with small segments so there are several,
+     * and patches so records link back to others
+     */
+    private File fillStore() throws Exception {
+        File root = folder.newFolder("storage");
+        String[] pages = {"the quick brown fox", "jumps over the lazy dog", "the dog sleeps", "a fox runs over"};
+        try (SegmentStore store = new SegmentStore(new File(root, "segments").getPath(), 256);
+             TermDictionary dictionary = new TermDictionary(new File(root, "terms").getPath(), store.getTermHash())) {
+            for (int round = 0; round < 3; round++) {
+                for (int p = 0; p < pages.length; p++) {
+                    long[] hashes = TokenizerUtils.hashWords(pages[p] + " round" + round, store.getTermHash(),
+                            dictionary);
+                    LongIntHashMap counts = new LongIntHashMap();
+                    for (long hash : hashes) {
+                        counts.increment(hash);
+                    }
+                    store.update("page" + p, counts.toSortedTerms());
+                }
+            }
+        }
+        return root;
+    }
+
+    private static int errors(List<Fsck.Report> reports, String fileName) {
+        int errors = 0;
+        for (Fsck.Report report : reports) {
+            if (report.file.endsWith(fileName)) {
+                errors += report.errors;
+            }
+        }
+        return errors;
+    }
+
+    private static void flip(File f, long position) throws Exception {
+        try (RandomAccessFile out = new RandomAccessFile(f, "rw")) {
+            out.seek(position);
+            int b = out.read();
+            out.seek(position);
+            out.write(b ^ 0x20);
+        }
+    }
+
+    @Test
+    public void soundStoreHasNoProblems() throws Exception {
+        File root = fillStore();
+        List<Fsck.Report> reports = Fsck.check(root);
+        // At least two segments, the index, the meta file and the dictionary
+        assertTrue(reports.size() >= 5);
+        for (Fsck.Report report : reports) {
+            assertEquals(report.file + " " + report.problems, 0, report.errors + report.warnings);
+        }
+    }
+
+    @Test
+    public void segmentRecordFailingItsChecksumIsAnError() throws Exception {
+        File root = fillStore();
+        // A byte of the name of the first record
+        flip(SegmentStore.segmentFile(new File(root, "segments"), 0), 4 + 2);
+        List<Fsck.Report> reports = Fsck.check(root);
+        assertEquals(1, errors(reports, "segment-00000.seg"));
+        assertEquals(0, errors(reports, "index"));
+    }
+
+    @Test
+    public void indexEntryFailingItsChecksumIsAnError() throws Exception {
+        File root = fillStore();
+        flip(new File(root, "segments/index"), 3);
+        List<Fsck.Report> reports = Fsck.check(root);
+        assertEquals(1, errors(reports, "index"));
+    }
+
+    @Test
+    public void wordNotHashingToItsKeyIsAnError() throws Exception {
+        File root = fillStore();
+        // A letter of the first word in the pool, "the", after its length
+        flip(new File(root, "terms/pool"), 4);
+        List<Fsck.Report> reports = Fsck.check(root);
+        assertEquals(1, errors(reports, "terms"));
+    }
+}
@@ -0,0 +1,105 @@
+package com.nesposi3;
+
+import com.nesposi3.Utils.CacheUtils;
+import com.nesposi3.Utils.TokenizerUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class IngestPipelineTest {
+    private static final Pattern WIKI_LINKS = Pattern.compile("/wiki/.*");
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static String url(String title) {
+        return CacheUtils.BASE_URI + "/wiki/" + title;
+    }
+
+    /**
+     * Writes a page to the html folder under the name the html cache would give it
+     */
+    private void writePage(File html, String title, String text, String... links) throws Exception {
+        StringBuilder page = new StringBuilder("<html><head><title>" + title + "</title></head><body><p>" + text);
+        for (String link : links) {
+            page.append(" <a href=\"/wiki/").append(link).append("\">").append(link).append("</a>");
+        }
+        page.append("</p><script>var hidden = 1;</script></body></html>");
+        Files.writeString(new File(html, CacheUtils.generateFileName(url(title)) + ".html").toPath(), page);
+    }
+
+    @Test
+    public void localPagesAndTheirLinksAreStoredOnce() throws Exception {
+        File html = folder.newFolder("html");
+        writePage(html, "Alpha", "alpha links to shared pages", "Shared", "Beta", "Only");
+        writePage(html, "Beta", "beta also links to shared", "Shared", "Alpha");
+        writePage(html, "Shared", "shared words shared again");
+        writePage(html, "Only", "only alpha links here");
+        Map<String, AtomicInteger> fetches = new ConcurrentHashMap<>();
+        IngestPipeline.Fetcher fetcher = url -> {
+            fetches.computeIfAbsent(url, u -> new AtomicInteger()).incrementAndGet();
+            return Files.readString(new File(html, CacheUtils.generateFileName(url) + ".html").toPath());
+        };
+        IngestConfig config = IngestConfig.defaults().fetchThreads(2).parseThreads(2).tokenizeThreads(2)
+                .aggregateThreads(1).persistThreads(2).queueCapacity(2);
+        String store = new File(folder.getRoot(), "segments").getPath();
+        String terms = new File(folder.getRoot(), "terms").getPath();
+        try (SegmentStore documents = new SegmentStore(store);
+             TermDictionary dictionary = new TermDictionary(terms, documents.getTermHash())) {
+            IngestPipeline pipeline = new IngestPipeline(config, WIKI_LINKS, 10, fetcher, documents, dictionary);
+            pipeline.ingest(Arrays.asList(url("Alpha"), url("Beta")));
+
+            // Shared is linked twice and Alpha is a root, but every page is fetched once
+            assertEquals(4, fetches.size());
+            for (AtomicInteger count : fetches.values()) {
+                assertEquals(1, count.get());
+            }
+            assertEquals(4, documents.size());
+            for (String title : Arrays.asList("Alpha", "Beta", "Shared", "Only")) {
+                String name = CacheUtils.generateFileName(url(title));
+                HtmlPage page = HtmlPage.fromFile(new File(html, name + ".html"), null, 0);
+                SortedTerms expected = CacheUtils.countHashes(
+                        TokenizerUtils.hashWords(page.getText(), documents.getTermHash(), null));
+                SortedTerms stored = documents.get(name);
+                assertEquals(expected.totalNumKeys(), stored.totalNumKeys());
+                assertEquals(expected.totalWordCount(), stored.totalWordCount());
+                TermCursor cursor = expected.cursor();
+                while (cursor.next()) {
+                    assertEquals(cursor.frequency(), stored.search(cursor.key()));
+                    assertTrue(dictionary.id(cursor.key()) >= 0);
+                }
+            }
+            long shared = documents.getTermHash().hash("shared", 0, 6);
+            assertEquals(2, documents.get(CacheUtils.generateFileName(url("Shared"))).search(shared));
+            assertEquals("shared", dictionary.term(dictionary.id(shared)));
+            // Script text is not part of a page's words
+            assertEquals(-1, dictionary.id(documents.getTermHash().hash("hidden", 0, 6)));
+            assertNull(documents.get(CacheUtils.generateFileName(url("Missing"))));
+        }
+        // A second run over the same pages stores nothing new
+        try (SegmentStore documents = new SegmentStore(store);
+             TermDictionary dictionary = new TermDictionary(terms, documents.getTermHash())) {
+            int words = dictionary.size();
+            new IngestPipeline(config, WIKI_LINKS, 10, fetcher, documents, dictionary)
+                    .ingest(Collections.singletonList(url("Alpha")));
+            assertEquals(4, documents.size());
+            assertEquals(words, dictionary.size());
+        }
+        Fsck.Report report = Fsck.checkTermDictionary(new File(terms));
+        assertEquals(report.problems.toString(), 0, report.errors);
+    }
+}
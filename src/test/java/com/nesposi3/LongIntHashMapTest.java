@@ -0,0 +1,157 @@
+package com.nesposi3;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class LongIntHashMapTest {
+    /**
+     * @return The slot a key probes from in a table of the given capacity, as the map computes it
+     */
+    private static int home(long key, int capacity) {
+        return (int) ((key * 0x9E3779B97F4A7C15L) >>> 32) & (capacity - 1);
+    }
+
+    /**
+     * @return Keys that all probe from the given slot of a table of 16
+     */
+    private static long[] colliding(int slot, int count) {
+        long[] keys = new long[count];
+        int found = 0;
+        for (long key = 1; found < count; key++) {
+            if (home(key, 16) == slot) {
+                keys[found++] = key;
+            }
+        }
+        return keys;
+    }
+
+    private static void assertSame(Map<Long, Integer> expected, LongIntHashMap map) {
+        assertEquals(expected.size(), map.size());
+        for (Map.Entry<Long, Integer> entry : expected.entrySet()) {
+            assertTrue(map.containsKey(entry.getKey()));
+            assertEquals((int) entry.getValue(), map.get(entry.getKey()));
+        }
+        Map<Long, Integer> seen = new HashMap<>();
+        map.forEach(seen::put);
+        assertEquals(expected, seen);
+    }
+
+    @Test
+    public void growingKeepsEveryEntry() {
+        LongIntHashMap map = new LongIntHashMap();
+        Map<Long, Integer> expected = new HashMap<>();
+        Random random = new Random(24);
+        // From the smallest table through a dozen doublings
+        for (int i = 0; i < 50000; i++) {
+            long key = random.nextLong();
+            map.put(key, i);
+            expected.put(key, i);
+            if (Integer.bitCount(i + 1) == 1) {
+                assertSame(expected, map);
+            }
+        }
+        assertSame(expected, map);
+        long[] sorted = map.sortedKeys();
+        for (int i = 1; i < sorted.length; i++) {
+            assertTrue(sorted[i - 1] < sorted[i]);
+        }
+    }
+
+    @Test
+    public void removalShiftsLaterEntriesOfTheChainBack() {
+        // Five keys probing from slot 14 of the first table, so their chain wraps around to slots 0 to 2
+        long[] chain = colliding(14, 5);
+        // A key at home in slot 1, which lands after the chain and follows it back as it shrinks, never past slot 1
+        long[] other = colliding(1, 1);
+        LongIntHashMap map = new LongIntHashMap();
+        for (int i = 0; i < chain.length; i++) {
+            map.put(chain[i], i + 1);
+        }
+        map.put(other[0], 99);
+        assertEquals(2, map.remove(chain[1]));
+        assertEquals(0, map.remove(chain[1]));
+        assertEquals(1, map.remove(chain[0]));
+        assertEquals(4, map.size());
+        assertFalse(map.containsKey(chain[0]));
+        for (int i = 2; i < chain.length; i++) {
+            assertEquals(i + 1, map.get(chain[i]));
+        }
+        assertEquals(99, map.get(other[0]));
+        // Emptying the chain leaves the other key where a probe finds it
+        for (int i = 2; i < chain.length; i++) {
+            assertEquals(i + 1, map.remove(chain[i]));
+        }
+        assertEquals(99, map.get(other[0]));
+        assertEquals(1, map.size());
+    }
+
+    @Test
+    public void mixedPutsAndRemovesMatchAHashMap() {
+        LongIntHashMap map = new LongIntHashMap();
+        Map<Long, Integer> expected = new HashMap<>();
+        Random random = new Random(7);
+        // A small key range, so chains are long and removals happen in the middle of them
+        for (int i = 0; i < 200000; i++) {
+            long key = random.nextInt(300) - 150;
+            switch (random.nextInt(3)) {
+                case 0:
+                    assertEquals(expected.getOrDefault(key, 0).intValue(), map.put(key, i));
+                    expected.put(key, i);
+                    break;
+                case 1:
+                    Integer old = expected.remove(key);
+                    assertEquals(old == null ? 0 : old, map.remove(key));
+                    break;
+                default:
+                    assertEquals(expected.merge(key, 3, Integer::sum).intValue(), map.merge(key, 3));
+            }
+            if (i % 10000 == 0) {
+                assertSame(expected, map);
+            }
+        }
+        assertSame(expected, map);
+    }
+
+    @Test
+    public void zeroKeyIsKeptOutsideTheTable() {
+        LongIntHashMap map = new LongIntHashMap();
+        assertFalse(map.containsKey(0));
+        assertEquals(-1, map.getOrDefault(0, -1));
+        assertEquals(1, map.increment(0));
+        assertEquals(1, map.put(0, 5));
+        assertEquals(8, map.merge(0, 3));
+        // Enough other keys to grow the table, which must not count the zero key twice or lose it
+        for (long key = 1; key <= 40; key++) {
+            map.put(-key, (int) key);
+        }
+        assertEquals(41, map.size());
+        assertEquals(8, map.get(0));
+        assertEquals(0L, map.sortedKeys()[40]);
+        List<Long> keys = new ArrayList<>();
+        map.forEach((key, value) -> keys.add(key));
+        assertTrue(keys.contains(0L));
+        SortedTerms terms = map.toSortedTerms();
+        assertEquals(8, terms.search(0));
+
+        assertEquals(8, map.remove(0));
+        assertEquals(0, map.remove(0));
+        assertFalse(map.containsKey(0));
+        assertEquals(40, map.size());
+        map.clear();
+        assertTrue(map.isEmpty());
+        assertArrayEquals(new long[0], map.sortedKeys());
+        map.put(0, 2);
+        assertEquals(1, map.size());
+        assertEquals(2, map.get(0));
+    }
+}
@@ -0,0 +1,98 @@
+package com.nesposi3;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import static com.nesposi3.Utils.BTreeUtils.DEFAULT_PAGE_SIZE;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class NodeFormatTest {
+    private static final int T = NodeFormat.maxOrder(DEFAULT_PAGE_SIZE, NodeFormat.Encoding.PACKED);
+
+    private static Node roundTrip(NodeFormat format, Node n) {
+        ByteBuffer page = ByteBuffer.allocate(DEFAULT_PAGE_SIZE);
+        format.encode(n, page);
+        assertEquals(DEFAULT_PAGE_SIZE, page.position());
+        page.flip();
+        return format.decode(page);
+    }
+
+    @Test
+    public void fullPackedNodeWithNegativeKeysRoundTrips() {
+        NodeFormat format = new NodeFormat(T, DEFAULT_PAGE_SIZE, NodeFormat.Encoding.PACKED, true);
+        Node n = format.newNode();
+        n.address = 7L * DEFAULT_PAGE_SIZE;
+        // Small deltas from a negative first key, so all 2T-1 keys fit and the first one is zigzag encoded.
+        // -1 is NULL, so it is stepped over
+        long key = -3 * T;
+        for (int i = 0; i < format.maxKeys(); i++) {
+            if (key == -1) {
+                key++;
+            }
+            n.keys[i] = key;
+            n.frequencies[i] = i % 3 == 0 ? Integer.MAX_VALUE - i : i + 1;
+            key += 1 + i % 4;
+        }
+        for (int i = 0; i <= format.maxKeys(); i++) {
+            n.children[i] = (long) (i + 100) * DEFAULT_PAGE_SIZE;
+        }
+        assertTrue(format.fits(n));
+        Node decoded = roundTrip(format, n);
+        assertEquals(n, decoded);
+        assertEquals(format.maxKeys(), decoded.numKeys());
+        assertTrue(n.keys[0] < 0);
+    }
+
+    @Test
+    public void packedLeafWithWideKeysRoundTrips() {
+        NodeFormat format = new NodeFormat(T, DEFAULT_PAGE_SIZE, NodeFormat.Encoding.PACKED, true);
+        Random random = new Random(42);
+        long[] keys = new long[format.maxKeys()];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = random.nextLong();
+        }
+        keys[0] = Long.MIN_VALUE;
+        keys[1] = Long.MAX_VALUE;
+        Arrays.sort(keys);
+        // Hashed keys are spread over the whole range, so deltas take up to 10 bytes and the page fills first
+        Node n = format.newNode();
+        n.address = DEFAULT_PAGE_SIZE;
+        int count = 0;
+        while (count < keys.length) {
+            n.keys[count] = keys[count];
+            n.frequencies[count] = count + 1;
+            if (!format.fits(n)) {
+                n.keys[count] = -1;
+                n.frequencies[count] = -1;
+                break;
+            }
+            count++;
+        }
+        assertTrue(count > 1);
+        assertTrue(n.leafStatus());
+        Node decoded = roundTrip(format, n);
+        assertEquals(n, decoded);
+        assertEquals(count, decoded.numKeys());
+        assertEquals(Long.MIN_VALUE, decoded.keys[0]);
+        assertTrue(format.encodedSize(n) <= format.getCapacity());
+    }
+
+    @Test
+    public void deltasOverflowingALongRoundTrip() {
+        NodeFormat format = new NodeFormat(T, DEFAULT_PAGE_SIZE, NodeFormat.Encoding.PACKED, true);
+        Node n = format.newNode();
+        // The first step is wider than Long.MAX_VALUE, so its stored delta wraps around to a negative number
+        long[] keys = {Long.MIN_VALUE, 3, Long.MAX_VALUE};
+        for (int i = 0; i < keys.length; i++) {
+            n.keys[i] = keys[i];
+            n.frequencies[i] = i;
+        }
+        assertTrue(keys[1] - keys[0] < 0);
+        Node decoded = roundTrip(format, n);
+        assertEquals(n, decoded);
+    }
+}
@@ -0,0 +1,55 @@
+package com.nesposi3;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.HashSet;
+import java.util.Set;
+
+import static com.nesposi3.Utils.BTreeUtils.NULL;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+public class PageAllocatorTest {
+    private static final int PAGE_SIZE = 512;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void freeListLongerThanOnePageSurvivesReload() throws Exception {
+        File file = new File(folder.getRoot(), "pages");
+        // Enough free pages to need four chain pages
+        int released = 3 * PageAllocator.addressesPerPage(PAGE_SIZE) + 5;
+        Set<Long> free = new HashSet<>();
+        long head;
+        try (PageFile pageFile = new PageFile(file.getPath())) {
+            PageCache cache = new PageCache(pageFile, PAGE_SIZE, 8);
+            PageAllocator allocator = new PageAllocator(PAGE_SIZE, PAGE_SIZE);
+            for (int i = 0; i < released; i++) {
+                free.add(allocator.allocate());
+            }
+            for (long address : free) {
+                allocator.release(address);
+            }
+            head = allocator.store(cache);
+            assertNotEquals(NULL, head);
+            cache.flush();
+        }
+        try (PageFile pageFile = new PageFile(file.getPath())) {
+            PageCache cache = new PageCache(pageFile, PAGE_SIZE, 8);
+            PageAllocator allocator = new PageAllocator(PAGE_SIZE, PAGE_SIZE + (long) released * PAGE_SIZE);
+            allocator.load(cache, head);
+            // The chain pages are free again once loaded, so every released page comes back exactly once
+            assertEquals(released, allocator.getFreeCount());
+            Set<Long> reloaded = new HashSet<>();
+            for (int i = 0; i < released; i++) {
+                reloaded.add(allocator.allocate());
+            }
+            assertEquals(free, reloaded);
+            assertEquals(PAGE_SIZE + (long) released * PAGE_SIZE, allocator.allocate());
+        }
+    }
+}
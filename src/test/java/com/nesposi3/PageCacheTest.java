@@ -0,0 +1,75 @@
+package com.nesposi3;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class PageCacheTest {
+    private static final int PAGE_SIZE = 64;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void pagesSurviveConcurrentEviction() throws Exception {
+        File file = new File(folder.getRoot(), "pages");
+        int pages = 64;
+        try (PageFile pageFile = new PageFile(file.getPath())) {
+            PageCache cache = new PageCache(pageFile, PAGE_SIZE, 4);
+            ExecutorService pool = Executors.newFixedThreadPool(8);
+            try {
+                List<Future<Void>> done = new ArrayList<>();
+                for (int t = 0; t < 8; t++) {
+                    int thread = t;
+                    done.add(pool.submit((Callable<Void>) () -> {
+                        // Each thread owns the pages congruent to it, and fills each with its page number
+                        for (int round = 0; round < 20; round++) {
+                            for (int p = thread; p < pages; p += 8) {
+                                long address = (long) p * PAGE_SIZE;
+                                byte[] frame = round == 0 ? cache.pinForOverwrite(address) : cache.pin(address);
+                                if (round > 0) {
+                                    assertEquals("Page " + p, (byte) (p + round - 1), frame[PAGE_SIZE - 1]);
+                                }
+                                frame[0] = (byte) p;
+                                frame[PAGE_SIZE - 1] = (byte) (p + round);
+                                cache.unpin(address, true);
+                            }
+                        }
+                        return null;
+                    }));
+                }
+                for (Future<Void> future : done) {
+                    future.get(60, TimeUnit.SECONDS);
+                }
+            } finally {
+                pool.shutdownNow();
+            }
+            cache.flush();
+            assertEquals(0, cache.getDirtyCount());
+            for (int p = 0; p < pages; p++) {
+                byte[] frame = cache.pin((long) p * PAGE_SIZE);
+                assertEquals((byte) p, frame[0]);
+                assertEquals((byte) (p + 19), frame[PAGE_SIZE - 1]);
+                cache.unpin((long) p * PAGE_SIZE, false);
+            }
+            assertTrue(cache.getMisses() > 0);
+            // Nothing is left pinned, so the file can be swapped out
+            File other = folder.newFile("other");
+            cache.replaceFile(other.getPath());
+            assertEquals(0, cache.pin(0)[0]);
+            cache.unpin(0, false);
+        }
+    }
+}
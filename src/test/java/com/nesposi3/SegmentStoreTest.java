@@ -0,0 +1,255 @@
+package com.nesposi3;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class SegmentStoreTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static SortedTerms terms(long key, int frequency) {
+        return new SortedTerms(new long[]{key}, new int[]{frequency}, 1);
+    }
+
+    @Test
+    public void indexEntryFailingItsChecksumIsDropped() throws Exception {
+        File directory = folder.newFolder("store");
+        try (SegmentStore store = new SegmentStore(directory.getPath())) {
+            store.put("a", terms(3, 1));
+            store.put("b", terms(4, 2));
+        }
+        try (SegmentStore store = new SegmentStore(directory.getPath())) {
+            assertEquals(2, store.size());
+            assertEquals(2, store.get("b").search(4));
+        }
+        // Flip a byte of the offset of the second entry, the first entry is 2 + 1 + 20 bytes long
+        try (RandomAccessFile index = new RandomAccessFile(new File(directory, "index"), "rw")) {
+            long position = 23 + 2 + 1 + 4 + 7;
+            index.seek(position);
+            int b = index.read();
+            index.seek(position);
+            index.write(b ^ 1);
+        }
+        try (SegmentStore store = new SegmentStore(directory.getPath())) {
+            assertEquals(1, store.size());
+            assertEquals(1, store.get("a").search(3));
+            assertNull(store.get("b"));
+        }
+    }
+
+    @Test
+    public void recordFailingItsChecksumIsNotDecoded() throws Exception {
+        File directory = folder.newFolder("store");
+        try (SegmentStore store = new SegmentStore(directory.getPath())) {
+            store.put("a", terms(3, 1));
+            store.put("b", terms(4, 2));
+        }
+        // The frequency of the first record, which is its last byte before the checksum
+        try (RandomAccessFile segment = new RandomAccessFile(new File(directory, "segment-00000.seg"), "rw")) {
+            int length = segment.readInt();
+            segment.seek(4 + length - 1);
+            segment.write(7);
+        }
+        try (SegmentStore store = new SegmentStore(directory.getPath())) {
+            assertEquals(2, store.get("b").search(4));
+            try {
+                store.get("a");
+                fail("Decoded a record failing its checksum");
+            } catch (IOException expected) {
+                // Reported rather than read as frequency 7
+            }
+            try {
+                store.scan((name, vector) -> { });
+                fail("Scanned a record failing its checksum");
+            } catch (IOException expected) {
+                // The scan stops at the record
+            }
+        }
+    }
+
+    @Test
+    public void concurrentUpdatesLeaveOneWholeVersion() throws Exception {
+        File directory = folder.newFolder("store");
+        // Each version shares most keys with the others, so updates are written as patches
+        int versions = 8;
+        SortedTerms[] vectors = new SortedTerms[versions];
+        for (int v = 0; v < versions; v++) {
+            long[] keys = new long[32];
+            int[] frequencies = new int[32];
+            for (int i = 0; i < 32; i++) {
+                keys[i] = i;
+                frequencies[i] = i < 4 ? 1 + v * 4 + i : 1;
+            }
+            vectors[v] = new SortedTerms(keys, frequencies, 32);
+        }
+        try (SegmentStore store = new SegmentStore(directory.getPath())) {
+            store.update("doc", vectors[0]);
+            ExecutorService pool = Executors.newFixedThreadPool(versions);
+            try {
+                List<Future<Void>> done = new ArrayList<>();
+                for (int v = 0; v < versions; v++) {
+                    SortedTerms vector = vectors[v];
+                    done.add(pool.submit((Callable<Void>) () -> {
+                        for (int round = 0; round < 50; round++) {
+                            store.update("doc", vector);
+                        }
+                        return null;
+                    }));
+                }
+                for (Future<Void> future : done) {
+                    future.get(60, TimeUnit.SECONDS);
+                }
+            } finally {
+                pool.shutdownNow();
+            }
+            SortedTerms stored = store.get("doc");
+            int[] frequencies = new int[32];
+            for (int i = 0; i < 32; i++) {
+                frequencies[i] = stored.search(i);
+            }
+            boolean whole = false;
+            for (SortedTerms vector : vectors) {
+                int[] expected = new int[32];
+                for (int i = 0; i < 32; i++) {
+                    expected[i] = vector.search(i);
+                }
+                whole |= Arrays.equals(expected, frequencies);
+            }
+            assertTrue("Stored a mix of versions " + Arrays.toString(frequencies), whole);
+        }
+    }
+
+    @Test
+    public void scanWhileWritingReadsOnlyWholeRecords() throws Exception {
+        File directory = folder.newFolder("store");
+        // Small segments, so the writer starts new ones while scans run
+        try (SegmentStore store = new SegmentStore(directory.getPath(), 4096)) {
+            for (int d = 0; d < 100; d++) {
+                store.put("doc" + d, terms(d, d + 1));
+            }
+            ExecutorService pool = Executors.newSingleThreadExecutor();
+            try {
+                Future<Void> writer = pool.submit((Callable<Void>) () -> {
+                    for (int d = 100; d < 2000; d++) {
+                        store.put("doc" + d, terms(d, d + 1));
+                    }
+                    return null;
+                });
+                while (!writer.isDone()) {
+                    List<String> seen = new ArrayList<>();
+                    store.scan((name, vector) -> {
+                        int d = Integer.parseInt(name.substring(3));
+                        assertEquals(d + 1, vector.search(d));
+                        seen.add(name);
+                    });
+                    assertTrue(seen.size() >= 100);
+                }
+                writer.get(60, TimeUnit.SECONDS);
+            } finally {
+                pool.shutdownNow();
+            }
+            List<String> seen = new ArrayList<>();
+            store.scan((name, vector) -> seen.add(name));
+            assertEquals(2000, seen.size());
+        }
+    }
+
+    @Test
+    public void patchesAreFollowedAndRewrittenPastTheMaxDepth() throws Exception {
+        File directory = folder.newFolder("store");
+        File segment = new File(directory, "segment-00000.seg");
+        int size = 200;
+        long[] keys = new long[size];
+        int[] frequencies = new int[size];
+        for (int i = 0; i < size; i++) {
+            keys[i] = i * 1000L;
+            frequencies[i] = i + 1;
+        }
+        try (SegmentStore store = new SegmentStore(directory.getPath())) {
+            store.put("doc", new SortedTerms(keys, frequencies, size));
+            store.put("other", terms(5, 5));
+            long fullRecord = segment.length();
+            for (int p = 1; p <= SegmentStore.MAX_PATCH_DEPTH; p++) {
+                long before = segment.length();
+                // Change one key, and drop another by taking its frequency to 0
+                store.patch("doc", new TermDelta(new long[]{p * 1000L, (100 + p) * 1000L},
+                        new int[]{10, -(101 + p)}, 2));
+                assertTrue(segment.length() - before < fullRecord / 10);
+            }
+            // One more patch would be too deep, so the document is written whole
+            long before = segment.length();
+            store.patch("doc", new TermDelta(new long[]{0}, new int[]{1}, 1));
+            assertTrue(segment.length() - before > fullRecord / 2);
+        }
+        try (SegmentStore store = new SegmentStore(directory.getPath())) {
+            SortedTerms expected = expectedAfterPatches(keys, frequencies);
+            assertEquals(size - SegmentStore.MAX_PATCH_DEPTH, expected.totalNumKeys());
+            assertVectorEquals(expected, store.get("doc"));
+            List<String> scanned = new ArrayList<>();
+            store.scan((name, vector) -> {
+                scanned.add(name);
+                if (name.equals("doc")) {
+                    assertVectorEquals(expected, vector);
+                }
+            });
+            // Scans go in record order, and the document was written again after the other one
+            assertEquals(Arrays.asList("other", "doc"), scanned);
+            // A patch of a patch still reads back through the whole chain after a reopen
+            store.patch("doc", new TermDelta(new long[]{1000L}, new int[]{-1}, 1));
+        }
+        try (SegmentStore store = new SegmentStore(directory.getPath())) {
+            assertEquals(11, store.get("doc").search(1000L));
+            assertEquals(5, store.get("other").search(5));
+        }
+    }
+
+    private static SortedTerms expectedAfterPatches(long[] keys, int[] frequencies) {
+        int[] expected = frequencies.clone();
+        expected[0] += 1;
+        for (int p = 1; p <= SegmentStore.MAX_PATCH_DEPTH; p++) {
+            expected[p] += 10;
+            expected[100 + p] = 0;
+        }
+        long[] keptKeys = new long[keys.length];
+        int[] kept = new int[keys.length];
+        int count = 0;
+        for (int i = 0; i < keys.length; i++) {
+            if (expected[i] != 0) {
+                keptKeys[count] = keys[i];
+                kept[count++] = expected[i];
+            }
+        }
+        return new SortedTerms(keptKeys, kept, count);
+    }
+
+    private static void assertVectorEquals(SortedTerms expected, SortedTerms actual) {
+        assertEquals(expected.totalNumKeys(), actual.totalNumKeys());
+        TermCursor e = expected.cursor();
+        TermCursor a = actual.cursor();
+        while (e.next()) {
+            assertTrue(a.next());
+            assertEquals(e.key(), a.key());
+            assertEquals(e.frequency(), a.frequency());
+        }
+        assertFalse(a.next());
+    }
+}
@@ -0,0 +1,152 @@
+package com.nesposi3;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TermDictionaryTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void failedWriteLeavesDictionaryUnchanged() throws Exception {
+        String directory = folder.newFolder("terms").getPath();
+        String text = "alpha beta gamma";
+        TermDictionary dictionary = new TermDictionary(directory, TermHash.DEFAULT);
+        dictionary.addAll(text, new long[]{11, 12}, new int[]{0, 6}, new int[]{5, 10}, 2);
+        dictionary.close();
+        // Writes to a closed dictionary fail, as they would on a full disk
+        try {
+            dictionary.addAll(text, new long[]{12, 13, 14}, new int[]{6, 11, 0}, new int[]{10, 16, 5}, 3);
+            fail("Added words to a closed dictionary");
+        } catch (IOException expected) {
+            // The words were not added
+        }
+        assertEquals(2, dictionary.size());
+        assertEquals(-1, dictionary.id(13));
+        assertEquals(-1, dictionary.id(14));
+        assertEquals(1, dictionary.id(12));
+
+        try (TermDictionary reopened = new TermDictionary(directory, TermHash.DEFAULT)) {
+            assertEquals(2, reopened.size());
+            assertEquals("beta", reopened.term(reopened.id(12)));
+        }
+    }
+
+    private static String word(int i) {
+        return "w" + i;
+    }
+
+    private static long hashOf(String word) {
+        return TermHash.DEFAULT.hash(word, 0, word.length());
+    }
+
+    /**
+     * Adds the words from first to last, one document of ten words at a time, each repeated in the next document
+     */
+    private static void addWords(TermDictionary dictionary, int first, int last) throws IOException {
+        for (int start = first; start < last; start += 10) {
+            StringBuilder text = new StringBuilder();
+            int from = Math.max(first, start - 1);
+            int count = Math.min(last, start + 10) - from;
+            long[] hashes = new long[count];
+            int[] starts = new int[count];
+            int[] ends = new int[count];
+            for (int i = 0; i < count; i++) {
+                String word = word(from + i);
+                starts[i] = text.length();
+                text.append(word);
+                ends[i] = text.length();
+                text.append(' ');
+                hashes[i] = hashOf(word);
+            }
+            dictionary.addAll(text, hashes, starts, ends, count);
+        }
+    }
+
+    private static void assertWords(TermDictionary dictionary, int count) {
+        assertEquals(count, dictionary.size());
+        for (int i = 0; i < count; i++) {
+            assertEquals(i, dictionary.id(hashOf(word(i))));
+            assertEquals(hashOf(word(i)), dictionary.hash(i));
+            assertEquals(word(i), dictionary.term(i));
+        }
+        assertEquals(-1, dictionary.id(hashOf(word(count))));
+    }
+
+    @Test
+    public void idsAreDenseInTheOrderWordsAreFirstSeen() throws Exception {
+        String directory = folder.newFolder("terms").getPath();
+        try (TermDictionary dictionary = new TermDictionary(directory, TermHash.DEFAULT)) {
+            // Past the first table and arrays, so both grow
+            addWords(dictionary, 0, 3000);
+            assertWords(dictionary, 3000);
+            // A hash already present keeps its first word and id
+            assertEquals(7, dictionary.add(hashOf(word(7)), "other", 0, 5));
+            assertEquals(word(7), dictionary.term(7));
+            assertEquals(3000, dictionary.add(hashOf("new"), "new", 0, 3));
+        }
+    }
+
+    @Test
+    public void reopenedDictionaryKeepsEveryWord() throws Exception {
+        File directory = folder.newFolder("terms");
+        try (TermDictionary dictionary = new TermDictionary(directory.getPath(), TermHash.DEFAULT)) {
+            addWords(dictionary, 0, 1000);
+        }
+        try (TermDictionary dictionary = new TermDictionary(directory.getPath(), TermHash.DEFAULT)) {
+            assertWords(dictionary, 1000);
+            addWords(dictionary, 1000, 2000);
+        }
+        try (TermDictionary dictionary = new TermDictionary(directory.getPath(), TermHash.DEFAULT)) {
+            assertWords(dictionary, 2000);
+        }
+        try {
+            new TermDictionary(directory.getPath(), TermHash.MURMUR3).close();
+            fail("Opened a dictionary with the wrong hash");
+        } catch (IOException expected) {
+            // Its hashes would not match the keys of the words
+        }
+    }
+
+    @Test
+    public void crashBeforeFlushIsRecoveredOnReopen() throws Exception {
+        File directory = folder.newFolder("terms");
+        File table = new File(directory, "table");
+        byte[] oldTable;
+        try (TermDictionary dictionary = new TermDictionary(directory.getPath(), TermHash.DEFAULT)) {
+            addWords(dictionary, 0, 500);
+            dictionary.flush();
+            oldTable = Files.readAllBytes(table.toPath());
+            addWords(dictionary, 500, 1500);
+        }
+        // The table as the last flush left it, and the ids and pool with half written words at their ends
+        Files.write(table.toPath(), oldTable);
+        try (RandomAccessFile ids = new RandomAccessFile(new File(directory, "ids"), "rw")) {
+            ids.seek(ids.length());
+            ids.write(new byte[]{1, 2, 3, 4, 5});
+        }
+        try (RandomAccessFile pool = new RandomAccessFile(new File(directory, "pool"), "rw")) {
+            pool.seek(pool.length());
+            pool.writeInt(100);
+            pool.write(new byte[]{'x', 'y'});
+        }
+        Fsck.Report report = Fsck.checkTermDictionary(directory);
+        assertEquals(report.problems.toString(), 0, report.errors);
+        assertTrue(report.warnings >= 3);
+        try (TermDictionary dictionary = new TermDictionary(directory.getPath(), TermHash.DEFAULT)) {
+            assertWords(dictionary, 1500);
+        }
+        report = Fsck.checkTermDictionary(directory);
+        assertEquals(report.problems.toString(), 0, report.errors + report.warnings);
+    }
+}
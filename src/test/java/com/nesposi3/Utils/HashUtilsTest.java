@@ -0,0 +1,145 @@
+package com.nesposi3.Utils;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+public class HashUtilsTest {
+    private static final long P1 = 0x9E3779B185EBCA87L;
+    private static final long P2 = 0xC2B2AE3D27D4EB4FL;
+    private static final long P3 = 0x165667B19E3779F9L;
+    private static final long P4 = 0x85EBCA77C2B2AE63L;
+    private static final long P5 = 0x27D4EB2F165667C5L;
+    private static final long C1 = 0x87C37B91114253D5L;
+    private static final long C2 = 0x4CF5AD432745937FL;
+
+    /**
+     * xxHash64 of a byte array, written from the specification a byte at a time
+     */
+    private static long xxHash64(byte[] bytes, long seed) {
+        ByteBuffer in = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+        int length = bytes.length;
+        long h;
+        if (length >= 32) {
+            long[] v = {seed + P1 + P2, seed + P2, seed, seed - P1};
+            while (in.remaining() >= 32) {
+                for (int i = 0; i < 4; i++) {
+                    v[i] = round(v[i], in.getLong());
+                }
+            }
+            h = Long.rotateLeft(v[0], 1) + Long.rotateLeft(v[1], 7) + Long.rotateLeft(v[2], 12)
+                    + Long.rotateLeft(v[3], 18);
+            for (int i = 0; i < 4; i++) {
+                h = (h ^ round(0, v[i])) * P1 + P4;
+            }
+        } else {
+            h = seed + P5;
+        }
+        h += length;
+        while (in.remaining() >= 8) {
+            h = Long.rotateLeft(h ^ round(0, in.getLong()), 27) * P1 + P4;
+        }
+        if (in.remaining() >= 4) {
+            h = Long.rotateLeft(h ^ (in.getInt() & 0xFFFFFFFFL) * P1, 23) * P2 + P3;
+        }
+        while (in.hasRemaining()) {
+            h = Long.rotateLeft(h ^ (in.get() & 0xFFL) * P5, 11) * P1;
+        }
+        h = (h ^ (h >>> 33)) * P2;
+        h = (h ^ (h >>> 29)) * P3;
+        return h ^ (h >>> 32);
+    }
+
+    private static long round(long acc, long input) {
+        return Long.rotateLeft(acc + input * P2, 31) * P1;
+    }
+
+    /**
+     * The first 64 bits of the x64 128 bit MurmurHash3 of a byte array, as in the reference implementation
+     */
+    private static long murmur3(byte[] bytes, long seed) {
+        ByteBuffer in = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+        long h1 = seed;
+        long h2 = seed;
+        while (in.remaining() >= 16) {
+            h1 ^= Long.rotateLeft(in.getLong() * C1, 31) * C2;
+            h1 = (Long.rotateLeft(h1, 27) + h2) * 5 + 0x52DCE729;
+            h2 ^= Long.rotateLeft(in.getLong() * C2, 33) * C1;
+            h2 = (Long.rotateLeft(h2, 31) + h1) * 5 + 0x38495AB5;
+        }
+        long k1 = 0;
+        long k2 = 0;
+        int tail = in.remaining();
+        for (int i = tail - 1; i >= 8; i--) {
+            k2 |= (bytes[in.position() + i] & 0xFFL) << (8 * (i - 8));
+        }
+        for (int i = Math.min(tail, 8) - 1; i >= 0; i--) {
+            k1 |= (bytes[in.position() + i] & 0xFFL) << (8 * i);
+        }
+        if (tail > 8) {
+            h2 ^= Long.rotateLeft(k2 * C2, 33) * C1;
+        }
+        if (tail > 0) {
+            h1 ^= Long.rotateLeft(k1 * C1, 31) * C2;
+        }
+        h1 ^= bytes.length;
+        h2 ^= bytes.length;
+        h1 += h2;
+        h2 += h1;
+        h1 = fmix(h1);
+        h2 = fmix(h2);
+        return h1 + h2;
+    }
+
+    private static long fmix(long k) {
+        k = (k ^ (k >>> 33)) * 0xFF51AFD7ED558CCDL;
+        k = (k ^ (k >>> 33)) * 0xC4CEB9FE1A85EC53L;
+        return k ^ (k >>> 33);
+    }
+
+    private static byte[] ascii(String s) {
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    @Test
+    public void referenceImplementationsMatchPublishedVectors() {
+        assertEquals(0xEF46DB3751D8E999L, xxHash64(ascii(""), 0));
+        assertEquals(0xD24EC4F1A98C6E5BL, xxHash64(ascii("a"), 0));
+        assertEquals(0x44BC2CF5AD770999L, xxHash64(ascii("abc"), 0));
+        assertEquals(0xFBCEA83C8A378BF1L, xxHash64(ascii("Nobody inspects the spammish repetition"), 0));
+        assertEquals(0L, murmur3(ascii(""), 0));
+        assertEquals(0xCBD8A7B341BD9B02L, murmur3(ascii("hello"), 0));
+        assertEquals(0xE34BBC7BBC071B6CL, murmur3(ascii("The quick brown fox jumps over the lazy dog"), 0));
+    }
+
+    @Test
+    public void emptyRangeHashesAsNoBytes() {
+        assertEquals(0xEF46DB3751D8E999L, HashUtils.xxHash64("", 0, 0, 0));
+        assertEquals(0L, HashUtils.murmur3("", 0, 0, 0));
+    }
+
+    @Test
+    public void charsHashAsTheirUtf16LittleEndianBytes() {
+        Random random = new Random(365);
+        // Every length up to a few blocks, so every tail of both hashes is taken
+        for (int length = 0; length <= 40; length++) {
+            for (int trial = 0; trial < 20; trial++) {
+                char[] chars = new char[length + 6];
+                for (int i = 0; i < chars.length; i++) {
+                    // Wide chars as well, so the high byte of every char matters
+                    chars[i] = (char) (trial % 2 == 0 ? 'a' + random.nextInt(26) : random.nextInt(0xD800));
+                }
+                String text = new String(chars);
+                byte[] bytes = text.substring(3, 3 + length).getBytes(StandardCharsets.UTF_16LE);
+                long seed = trial < 10 ? 0 : random.nextLong();
+                assertEquals(xxHash64(bytes, seed), HashUtils.xxHash64(text, 3, 3 + length, seed));
+                assertEquals(murmur3(bytes, seed), HashUtils.murmur3(text, 3, 3 + length, seed));
+            }
+        }
+    }
+}
@@ -0,0 +1,167 @@
+package com.nesposi3;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import static com.nesposi3.Utils.BTreeUtils.WAL_SUFFIX;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class WriteAheadLogTest {
+    private static final int PAGE_SIZE = 512;
+    // A page record is a type byte, an address and the page
+    private static final int PAGE_RECORD_SIZE = 1 + 8 + PAGE_SIZE;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static byte[] page(int fill) {
+        byte[] page = new byte[PAGE_SIZE];
+        Arrays.fill(page, (byte) fill);
+        return page;
+    }
+
+    private static int firstByte(PageFile file, long address) throws Exception {
+        ByteBuffer buffer = ByteBuffer.allocate(PAGE_SIZE);
+        file.read(address, buffer);
+        return buffer.get(0);
+    }
+
+    /**
+     * Logs two committed groups, then a third whose records are damaged by the given action, and replays the log
+     */
+    private PageFile replayAfter(String name, LogDamage damage) throws Exception {
+        File log = new File(folder.getRoot(), name + WAL_SUFFIX);
+        long thirdGroup;
+        try (WriteAheadLog wal = new WriteAheadLog(log.getPath(), PAGE_SIZE)) {
+            wal.append(0, page(1));
+            wal.append(PAGE_SIZE, page(2));
+            wal.commit();
+            // The second group rewrites a page of the first, replay must apply them in order
+            wal.append(0, page(3));
+            wal.commit();
+            thirdGroup = 8 + wal.size();
+            wal.append(2 * PAGE_SIZE, page(4));
+            wal.append(PAGE_SIZE, page(5));
+            wal.commit();
+        }
+        damage.apply(log, thirdGroup);
+        PageFile file = new PageFile(new File(folder.getRoot(), name).getPath());
+        WriteAheadLog.replay(log.getPath(), file);
+        assertFalse(log.exists());
+        return file;
+    }
+
+    private interface LogDamage {
+        void apply(File log, long thirdGroup) throws Exception;
+    }
+
+    @Test
+    public void everyCommittedGroupIsReplayed() throws Exception {
+        try (PageFile file = replayAfter("intact", (log, third) -> { })) {
+            assertEquals(3, firstByte(file, 0));
+            assertEquals(5, firstByte(file, PAGE_SIZE));
+            assertEquals(4, firstByte(file, 2 * PAGE_SIZE));
+        }
+    }
+
+    @Test
+    public void tornTrailingGroupIsIgnored() throws Exception {
+        // The crash came after the first page record of the third group
+        try (PageFile file = replayAfter("torn", (log, third) -> {
+            try (RandomAccessFile out = new RandomAccessFile(log, "rw")) {
+                out.setLength(third + PAGE_RECORD_SIZE + 100);
+            }
+        })) {
+            assertEquals(3, firstByte(file, 0));
+            assertEquals(2, firstByte(file, PAGE_SIZE));
+            assertEquals(2 * PAGE_SIZE, file.length());
+        }
+    }
+
+    @Test
+    public void trailingGroupFailingItsChecksumIsIgnored() throws Exception {
+        // A page of the third group was written wrong, its commit record is complete
+        try (PageFile file = replayAfter("corrupt", (log, third) -> {
+            try (RandomAccessFile out = new RandomAccessFile(log, "rw")) {
+                long position = third + PAGE_RECORD_SIZE + 9 + 17;
+                out.seek(position);
+                int b = out.read();
+                out.seek(position);
+                out.write(b ^ 0x40);
+            }
+        })) {
+            assertEquals(3, firstByte(file, 0));
+            assertEquals(2, firstByte(file, PAGE_SIZE));
+            assertEquals(2 * PAGE_SIZE, file.length());
+        }
+    }
+
+    @Test
+    public void checkpointEmptiesTheLog() throws Exception {
+        File log = new File(folder.getRoot(), "reset" + WAL_SUFFIX);
+        try (WriteAheadLog wal = new WriteAheadLog(log.getPath(), PAGE_SIZE)) {
+            wal.append(0, page(1));
+            wal.commit();
+            assertEquals(PAGE_RECORD_SIZE + 13, wal.size());
+            wal.reset();
+            assertEquals(0, wal.size());
+            // Only the log header is left
+            assertEquals(8, log.length());
+            // Pages appended but never committed do not survive a reset either
+            wal.append(PAGE_SIZE, page(2));
+            wal.reset();
+            wal.append(2 * PAGE_SIZE, page(3));
+            wal.commit();
+        }
+        try (PageFile file = new PageFile(new File(folder.getRoot(), "reset").getPath())) {
+            assertEquals(1, WriteAheadLog.replay(log.getPath(), file));
+            assertEquals(3, firstByte(file, 2 * PAGE_SIZE));
+            assertEquals(0, firstByte(file, PAGE_SIZE));
+        }
+    }
+
+    @Test
+    public void reopenedTreeHasEveryCommittedInsert() throws Exception {
+        File file = new File(folder.getRoot(), "tree");
+        File log = new File(file.getPath() + WAL_SUFFIX);
+        try (BTree tree = new BTree(file.getPath())) {
+            for (int k = 0; k < 300; k++) {
+                tree.insert(k * 3L, k + 1);
+            }
+        }
+        byte[] beforeCommit = Files.readAllBytes(file.toPath());
+        byte[] logged;
+        try (BTree tree = new BTree(file.getPath())) {
+            for (int k = 300; k < 600; k++) {
+                tree.insert(k * 3L, k + 1);
+            }
+            tree.commit();
+            logged = Files.readAllBytes(log.toPath());
+        }
+        // A crash after the log was synced but before the file was: the file is as it was and the log holds
+        // the commit, followed by a group the crash cut short
+        Files.write(file.toPath(), beforeCommit);
+        byte[] torn = Arrays.copyOf(logged, logged.length + PAGE_RECORD_SIZE / 2);
+        torn[logged.length] = 1;
+        Files.write(log.toPath(), torn);
+
+        try (BTree tree = new BTree(file.getPath())) {
+            assertFalse(log.exists());
+            assertEquals(600, tree.totalNumKeys());
+            for (int k = 0; k < 600; k++) {
+                assertEquals(k + 1, tree.search(k * 3L));
+            }
+            assertEquals(0, tree.search(1));
+        }
+        Fsck.Report report = Fsck.checkBTree(file);
+        assertEquals(report.problems.toString(), 0, report.errors);
+    }
+}